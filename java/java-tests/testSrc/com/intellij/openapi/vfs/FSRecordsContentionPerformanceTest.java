@@ -0,0 +1,149 @@
+package com.intellij.openapi.vfs;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
+import com.intellij.openapi.vfs.newvfs.persistent.FSRecords;
+import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hammers {@link FSRecords} getters from several threads while another thread keeps updating the records, and compares
+ * the time with the one taken when reads are serialized (<code>idea.vfs.concurrent.reads=false</code>).
+ */
+public class FSRecordsContentionPerformanceTest extends LightPlatformTestCase {
+  private static final int FILES = 500;
+  private static final int ITERATIONS = 200;
+
+  private int myDirId;
+  private int[] myIds;
+
+  @Override
+  protected void tearDown() throws Exception {
+    FSRecords.setConcurrentReadsForTests(true);
+    super.tearDown();
+  }
+
+  public void testConcurrentGettersWithWriter() throws Throwable {
+    createFiles();
+    for (int id : myIds) {
+      FSRecords.setTimestamp(id, timestamp(0));
+    }
+
+    FSRecords.setConcurrentReadsForTests(false);
+    long start = System.currentTimeMillis();
+    readWhileWriting();
+    final long serialized = System.currentTimeMillis() - start;
+
+    FSRecords.setConcurrentReadsForTests(true);
+    start = System.currentTimeMillis();
+    readWhileWriting();
+    final long concurrent = System.currentTimeMillis() - start;
+    System.out.println("FSRecords getters with a concurrent writer: " + concurrent + "ms, with serialized reads: " + serialized + "ms");
+
+    PlatformTestUtil.startPerformanceTest("FSRecords concurrent getters with a writer", 5000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        readWhileWriting();
+      }
+    }).cpuBound().usesAllCPUCores().assertTiming();
+  }
+
+  private void createFiles() throws IOException {
+    final File dir = FileUtil.createTempDirectory("FSRecords", "");
+    disposeOnTearDown(new Disposable() {
+      @Override
+      public void dispose() {
+        FileUtil.delete(dir);
+      }
+    });
+
+    for (int i = 0; i < FILES; i++) {
+      assertTrue(new File(dir, "file" + i + ".txt").createNewFile());
+    }
+    final VirtualFile vDir = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(dir);
+    assertNotNull(vDir);
+    final VirtualFile[] children = vDir.getChildren();
+    assertEquals(FILES, children.length);
+
+    myDirId = ((NewVirtualFile)vDir).getId();
+    myIds = new int[children.length];
+    for (int i = 0; i < children.length; i++) {
+      myIds[i] = ((NewVirtualFile)children[i]).getId();
+    }
+  }
+
+  // both halves are equal, so a torn read is seen as a broken timestamp
+  private static long timestamp(int value) {
+    return ((long)value << 32) | value;
+  }
+
+  private void readWhileWriting() throws Throwable {
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final AtomicBoolean readersDone = new AtomicBoolean();
+
+    Thread writer = new Thread("FSRecords writer") {
+      @Override
+      public void run() {
+        try {
+          int value = 0;
+          while (!readersDone.get()) {
+            value++;
+            for (int id : myIds) {
+              FSRecords.setTimestamp(id, timestamp(value));
+            }
+          }
+        }
+        catch (Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      }
+    };
+
+    final int threadCount = Runtime.getRuntime().availableProcessors();
+    List<Thread> readers = new ArrayList<Thread>();
+    for (int t = 0; t < threadCount; t++) {
+      readers.add(new Thread("FSRecords reader " + t) {
+        @Override
+        public void run() {
+          try {
+            for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+              for (int id : myIds) {
+                assertEquals(myDirId, FSRecords.getParent(id));
+                assertTrue(FSRecords.getName(id).startsWith("file"));
+                FSRecords.getFlags(id);
+                FSRecords.getLength(id);
+                final long timestamp = FSRecords.getTimestamp(id);
+                assertEquals(timestamp >>> 32, timestamp & 0xFFFFFFFFL);
+                FSRecords.getModCount(id);
+              }
+              assertEquals(FILES, FSRecords.list(myDirId).length);
+            }
+          }
+          catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      });
+    }
+
+    writer.start();
+    for (Thread reader : readers) {
+      reader.start();
+    }
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    readersDone.set(true);
+    writer.join();
+    if (failure.get() != null) throw failure.get();
+  }
+}
@@ -18,6 +18,8 @@ public class BuilderRegistry {
   }
   private final Map<BuilderCategory, List<Builder>> myBuilders = new HashMap<BuilderCategory, List<Builder>>();
   private ExecutorService myTasksExecutor;
+  // source roots walk only: walk tasks never wait for other tasks, so builds of different modules can share it
+  private ExecutorService myFSWalkExecutor;
 
   public static BuilderRegistry getInstance() {
     return Holder.ourInstance;
@@ -29,9 +31,11 @@ public class BuilderRegistry {
     }
     final Runtime runtime = Runtime.getRuntime();
     myTasksExecutor = Executors.newFixedThreadPool(runtime.availableProcessors());
+    myFSWalkExecutor = Executors.newFixedThreadPool(runtime.availableProcessors());
     runtime.addShutdownHook(new Thread() {
       public void run() {
         myTasksExecutor.shutdownNow();
+        myFSWalkExecutor.shutdownNow();
       }
     });
 
@@ -56,8 +60,13 @@ public class BuilderRegistry {
     return myBuilders.get(category); // todo
   }
 
+  public ExecutorService getFSWalkExecutor() {
+    return myFSWalkExecutor;
+  }
+
   public void shutdown() {
     myTasksExecutor.shutdownNow();
+    myFSWalkExecutor.shutdownNow();
   }
 
 }
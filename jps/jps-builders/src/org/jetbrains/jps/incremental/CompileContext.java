@@ -27,10 +27,11 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
   private volatile boolean myCompilingTests = false;
   private final BuildDataManager myDataManager;
   private final Mappings myMappings;
-  private final Set<Module> myDirtyModules = new HashSet<Module>();
-  private final Map<Module, Collection<File>> myTempSourceRoots = new HashMap<Module, Collection<File>>();
+  // shared between the build context and all chunk contexts created from it
+  private final Set<Module> myDirtyModules;
+  private final Map<Module, Collection<File>> myTempSourceRoots;
 
-  private SLRUCache<Module, FSSnapshot> myFilesCache = new SLRUCache<Module, FSSnapshot>(10, 10) {
+  private final SLRUCache<Module, FSSnapshot> myFilesCache = new SLRUCache<Module, FSSnapshot>(10, 10) {
     @NotNull
     public FSSnapshot createValue(Module key) {
       return buildSnapshot(key);
@@ -53,6 +54,30 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
     myDataManager = new BuildDataManager(projectName);
     myMappings = mappings;
     myProjectPaths = new ProjectPaths(scope.getProject());
+    myDirtyModules = Collections.synchronizedSet(new HashSet<Module>());
+    myTempSourceRoots = Collections.synchronizedMap(new HashMap<Module, Collection<File>>());
+  }
+
+  /**
+   * Creates a context for building a single chunk concurrently with other chunks.
+   * Build data, mappings and dirty state are shared with the parent; user data and the files cache are chunk-local.
+   */
+  private CompileContext(CompileContext parent, MessageHandler messageHandler) {
+    myScope = parent.myScope;
+    myIsMake = parent.myIsMake;
+    myProductionChunks = parent.myProductionChunks;
+    myTestChunks = parent.myTestChunks;
+    myDelegateMessageHandler = messageHandler;
+    myCompilingTests = parent.myCompilingTests;
+    myDataManager = parent.myDataManager;
+    myMappings = parent.myMappings;
+    myProjectPaths = parent.myProjectPaths;
+    myDirtyModules = parent.myDirtyModules;
+    myTempSourceRoots = parent.myTempSourceRoots;
+  }
+
+  CompileContext createChunkContext(MessageHandler messageHandler) {
+    return new CompileContext(this, messageHandler);
   }
 
   public Project getProject() {
@@ -88,6 +113,12 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
       return;
     }
     
+    synchronized (myDirtyModules) {
+      markDirty(chunk, modules);
+    }
+  }
+
+  private void markDirty(ModuleChunk chunk, Set<Module> modules) {
     myDirtyModules.addAll(modules);
     // now mark all modules that depend on dirty modules
     final ClasspathKind classpathKind = ClasspathKind.compile(isCompilingTests());
@@ -127,19 +158,23 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
   void setCompilingTests(boolean compilingTests) {
     myCompilingTests = compilingTests;
     myFilesCache.clear();
-    for (Collection<File> roots : myTempSourceRoots.values()) {
-      if (roots != null) {
-        for (File root : roots) {
-          FileUtil.delete(root);
+    synchronized (myTempSourceRoots) {
+      for (Collection<File> roots : myTempSourceRoots.values()) {
+        if (roots != null) {
+          for (File root : roots) {
+            FileUtil.delete(root);
+          }
         }
       }
+      myTempSourceRoots.clear();
     }
-    myTempSourceRoots.clear();
   }
 
   void onChunkBuildComplete(@NotNull ModuleChunk chunk) {
     myFilesCache.clear();
-    myMappings.clearMemoryCaches();
+    synchronized (myMappings) {
+      myMappings.clearMemoryCaches();
+    }
     for (Module module : chunk.getModules()) {
       final Collection<File> roots = myTempSourceRoots.remove(module);
       if (roots != null) {
@@ -181,7 +216,11 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
     if (isMake() && !sources.isEmpty()) {
       final Mappings mappings = getMappings();
       for (File file : sources) {
-        final Set<ClassRepr> classes = mappings.getClasses(FileUtil.toSystemIndependentName(file.getPath()));
+        final Set<ClassRepr> classes;
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (mappings) {
+          classes = mappings.getClasses(FileUtil.toSystemIndependentName(file.getPath()));
+        }
         if (classes != null) {
           for (ClassRepr aClass : classes) {
             final String fileName = aClass.getFileName();
@@ -196,12 +235,14 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
 
   // assuming the root file exists
   public void registerTempSourceRoot(Module module, File root) {
-    Collection<File> roots = myTempSourceRoots.get(module);
-    if (roots == null) {
-      roots = new HashSet<File>();
-      myTempSourceRoots.put(module, roots);
+    synchronized (myTempSourceRoots) {
+      Collection<File> roots = myTempSourceRoots.get(module);
+      if (roots == null) {
+        roots = new HashSet<File>();
+        myTempSourceRoots.put(module, roots);
+      }
+      roots.add(root);
     }
-    roots.add(root);
   }
 
 
@@ -211,37 +252,30 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
     for (String excludePath : module.getExcludes()) {
       excludes.add(new File(excludePath));
     }
-    final FSSnapshot snapshot = new FSSnapshot(module);
+    final FSSnapshotBuilder builder = new FSSnapshotBuilder(
+      module, excludes, BuilderRegistry.getInstance().getFSWalkExecutor(), myDataManager.getDirectoryListingStorage()
+    );
     final Collection<String> roots = myCompilingTests? module.getTestRoots() : module.getSourceRoots();
     for (String srcRoot : roots) {
       final String normalizedRoot = FileUtil.toCanonicalPath(srcRoot);
       final File rootFile = new File(normalizedRoot);
       if (rootFile.exists()) {
-        final FSSnapshot.Root root = snapshot.addRoot(rootFile, normalizedRoot);
-        buildStructure(root.getNode(), excludes);
+        builder.addRoot(rootFile, normalizedRoot);
+      }
+      else {
+        builder.removeRoot(rootFile);
       }
     }
-    final Collection<File> tempRoots = myTempSourceRoots.get(module);
+    final Collection<File> tempRoots;
+    synchronized (myTempSourceRoots) {
+      final Collection<File> registered = myTempSourceRoots.get(module);
+      tempRoots = registered != null? new ArrayList<File>(registered) : null;
+    }
     if (tempRoots != null) {
       for (File tempRoot : tempRoots) {
-        final FSSnapshot.Root root = snapshot.addRoot(tempRoot, FileUtil.toSystemIndependentName(tempRoot.getPath()));
-        buildStructure(root.getNode(), excludes);
-      }
-    }
-    return snapshot;
-  }
-
-  private static void buildStructure(final FSSnapshot.Node from, final Set<File> excluded) {
-    if (from.isDirectory()) {
-      final File nodeFile = from.getFile();
-      if (!PathUtil.isUnder(excluded, nodeFile)) {
-        final File[] children = nodeFile.listFiles();
-        if (children != null) {
-          for (File child : children) {
-            buildStructure(from.addChild(child), excluded);
-          }
-        }
+        builder.addRoot(tempRoot, FileUtil.toSystemIndependentName(tempRoot.getPath()));
       }
     }
+    return builder.getResult();
   }
 }
@@ -0,0 +1,151 @@
+package org.jetbrains.jps.incremental;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Processes items concurrently so that an item is started only when all the items it depends on are processed.
+ * All scheduling is done in the calling thread; on the first failure no new items are started and the error is rethrown
+ * after the running ones complete. If the calling thread is interrupted, the running items are interrupted and waited for.
+ */
+class DependentTasksRunner<T> {
+  interface Processor<T> {
+    /**
+     * Called in a pooled thread
+     */
+    void process(T item) throws ProjectBuildException;
+
+    /**
+     * Called in the scheduling thread after the item is processed successfully
+     */
+    void processed(T item);
+  }
+
+  private final Map<T, Set<T>> myPendingDependencies = new HashMap<T, Set<T>>();
+  private final Map<T, List<T>> myDependents = new HashMap<T, List<T>>();
+  private final List<T> myItems;
+
+  /**
+   * @param items        items in an order compatible with the dependencies
+   * @param dependencies items each item depends on, dependencies not in <code>items</code> are ignored
+   */
+  DependentTasksRunner(List<T> items, Map<T, ? extends Collection<T>> dependencies) {
+    myItems = items;
+    final Set<T> itemSet = new HashSet<T>(items);
+    for (T item : items) {
+      final Set<T> deps = new HashSet<T>();
+      final Collection<T> itemDependencies = dependencies.get(item);
+      if (itemDependencies != null) {
+        for (T dep : itemDependencies) {
+          if (!dep.equals(item) && itemSet.contains(dep)) {
+            deps.add(dep);
+          }
+        }
+      }
+      myPendingDependencies.put(item, deps);
+      for (T dep : deps) {
+        List<T> list = myDependents.get(dep);
+        if (list == null) {
+          list = new ArrayList<T>();
+          myDependents.put(dep, list);
+        }
+        list.add(item);
+      }
+    }
+  }
+
+  void run(int threadCount, final Processor<T> processor) throws ProjectBuildException {
+    final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threadCount, myItems.size())));
+    final CompletionService<T> completionService = new ExecutorCompletionService<T>(executor);
+    ProjectBuildException error = null;
+    boolean interrupted = false;
+    try {
+      int running = 0;
+      for (T item : myItems) {
+        if (myPendingDependencies.get(item).isEmpty()) {
+          submit(completionService, processor, item);
+          running++;
+        }
+      }
+      while (running > 0) {
+        final Future<T> future;
+        try {
+          future = completionService.take();
+        }
+        catch (InterruptedException e) {
+          interrupted = true;
+          if (error == null) {
+            error = new ProjectBuildException(e);
+          }
+          break;
+        }
+        running--;
+        try {
+          final T processed = future.get();
+          processor.processed(processed);
+          if (error == null) {
+            final List<T> waiting = myDependents.get(processed);
+            if (waiting != null) {
+              for (T item : waiting) {
+                final Set<T> deps = myPendingDependencies.get(item);
+                deps.remove(processed);
+                if (deps.isEmpty()) {
+                  submit(completionService, processor, item);
+                  running++;
+                }
+              }
+            }
+          }
+        }
+        catch (InterruptedException e) {
+          // the future is done, so this can't happen
+          interrupted = true;
+          if (error == null) {
+            error = new ProjectBuildException(e);
+          }
+        }
+        catch (ExecutionException e) {
+          if (error == null) {
+            final Throwable cause = e.getCause();
+            error = cause instanceof ProjectBuildException ? (ProjectBuildException)cause : new ProjectBuildException(cause);
+          }
+        }
+      }
+    }
+    finally {
+      if (interrupted) {
+        executor.shutdownNow();
+        awaitTermination(executor);
+        Thread.currentThread().interrupt();
+      }
+      else {
+        executor.shutdown();
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private static void awaitTermination(ExecutorService executor) {
+    while (true) {
+      try {
+        if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+          return;
+        }
+      }
+      catch (InterruptedException ignored) {
+        // the interrupt flag is restored by the caller, the running items must be waited for anyway
+      }
+    }
+  }
+
+  private static <T> void submit(CompletionService<T> completionService, final Processor<T> processor, final T item) {
+    completionService.submit(new Callable<T>() {
+      public T call() throws Exception {
+        processor.process(item);
+        return item;
+      }
+    });
+  }
+}
@@ -72,12 +72,20 @@ public class FSSnapshot {
     private final List<Node> children = new ArrayList<Node>();
 
     Node(File file) {
+      this(file, file.isDirectory());
+    }
+
+    Node(File file, boolean isDirectory) {
       this.file = file;
-      myIsDirectory = file.isDirectory();
+      myIsDirectory = isDirectory;
     }
 
     public Node addChild(File file) {
-      final Node node = new Node(file);
+      return addChild(file, file.isDirectory());
+    }
+
+    public Node addChild(File file, boolean isDirectory) {
+      final Node node = new Node(file, isDirectory);
       children.add(node);
       return node;
     }
@@ -1,26 +1,189 @@
 package org.jetbrains.jps.incremental;
 
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.Module;
+import org.jetbrains.jps.PathUtil;
+import org.jetbrains.jps.incremental.storage.DirectoryListingStorage;
 
 import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Builds {@link FSSnapshot} of module source roots. Every directory is listed by a separate task, so with an executor
+ * the walk proceeds in parallel; children of a directory are always added by a single task in listing order.
+ * The executor must not be shared with tasks that block on other tasks, the walk waits for all its tasks to complete.
+ * Directories whose timestamp did not change since the previous build are not listed again, their contents are taken
+ * from the listing storage.
+ *
  * @author Eugene Zhuravlev
  *         Date: 10/8/11
  */
-public class FSSnapshotBuilder implements FileProcessor{
+public class FSSnapshotBuilder {
+  // listing of a directory modified this recently is not saved: a change within the timestamp granularity would go unnoticed
+  private static final long TIMESTAMP_GRANULARITY = 2000L;
+
   private final FSSnapshot mySnapshot;
+  private final Set<File> myExcludes;
+  @Nullable private final Executor myExecutor;
+  @Nullable private final DirectoryListingStorage myListingStorage;
+  private final AtomicInteger myTasksInProgress = new AtomicInteger(0);
+  private final Object myCounterLock = new Object();
+  private volatile Throwable myError;
 
-  public FSSnapshotBuilder(Module module) {
+  public FSSnapshotBuilder(Module module, Set<File> excludes, @Nullable Executor executor, @Nullable DirectoryListingStorage listingStorage) {
     mySnapshot = new FSSnapshot(module);
+    myExcludes = excludes;
+    myExecutor = executor;
+    myListingStorage = listingStorage;
   }
 
-  public boolean apply(Module module, File file, String sourceRoot) throws Exception {
-
-    return true;
+  public void addRoot(File rootFile, String path) {
+    final FSSnapshot.Root root = mySnapshot.addRoot(rootFile, path);
+    processNode(root.getNode());
   }
 
   public FSSnapshot getResult() {
+    ensureTasksCompleted();
+    final Throwable error = myError;
+    if (error != null) {
+      if (error instanceof RuntimeException) {
+        throw (RuntimeException)error;
+      }
+      if (error instanceof Error) {
+        throw (Error)error;
+      }
+      throw new RuntimeException(error);
+    }
     return mySnapshot;
   }
+
+  private void processNode(final FSSnapshot.Node node) {
+    if (!node.isDirectory()) {
+      return;
+    }
+    if (myExecutor == null) {
+      listDirectory(node);
+      return;
+    }
+    myTasksInProgress.incrementAndGet();
+    myExecutor.execute(new Runnable() {
+      public void run() {
+        try {
+          if (myError == null) {
+            listDirectory(node);
+          }
+        }
+        catch (Throwable e) {
+          if (myError == null) {
+            myError = e;
+          }
+        }
+        finally {
+          if (myTasksInProgress.decrementAndGet() == 0) {
+            synchronized (myCounterLock) {
+              myCounterLock.notifyAll();
+            }
+          }
+        }
+      }
+    });
+  }
+
+  private void listDirectory(FSSnapshot.Node dirNode) {
+    final File dir = dirNode.getFile();
+    if (PathUtil.isUnder(myExcludes, dir)) {
+      return;
+    }
+    final DirectoryListingStorage.Listing listing = getListing(dir);
+    if (listing == null) {
+      return;
+    }
+    for (int i = 0; i < listing.names.length; i++) {
+      processNode(dirNode.addChild(new File(dir, listing.names[i]), listing.directories[i]));
+    }
+  }
+
+  @Nullable
+  private DirectoryListingStorage.Listing getListing(File dir) {
+    final long stamp = myListingStorage != null? dir.lastModified() : -1L;
+    final DirectoryListingStorage.Listing saved = myListingStorage != null? myListingStorage.getListing(dir) : null;
+    if (saved != null && saved.timestamp == stamp) {
+      return saved;
+    }
+
+    final File[] children = dir.listFiles();
+    if (children == null) {
+      if (saved != null) {
+        myListingStorage.removeListings(dir);
+      }
+      return null;
+    }
+    final String[] names = new String[children.length];
+    final boolean[] directories = new boolean[children.length];
+    for (int i = 0; i < children.length; i++) {
+      names[i] = children[i].getName();
+      directories[i] = children[i].isDirectory();
+    }
+    final DirectoryListingStorage.Listing listing = new DirectoryListingStorage.Listing(stamp, names, directories);
+
+    if (saved != null) {
+      removeListingsOfDeletedSubdirectories(dir, saved, listing);
+    }
+    if (myListingStorage != null && stamp > 0L && System.currentTimeMillis() - stamp > TIMESTAMP_GRANULARITY) {
+      myListingStorage.saveListing(dir, listing);
+    }
+    return listing;
+  }
+
+  private void removeListingsOfDeletedSubdirectories(File dir, DirectoryListingStorage.Listing saved, DirectoryListingStorage.Listing listing) {
+    final Set<String> subdirectories = new HashSet<String>();
+    for (int i = 0; i < listing.names.length; i++) {
+      if (listing.directories[i]) {
+        subdirectories.add(listing.names[i]);
+      }
+    }
+    for (int i = 0; i < saved.names.length; i++) {
+      if (saved.directories[i] && !subdirectories.contains(saved.names[i])) {
+        myListingStorage.removeListings(new File(dir, saved.names[i]));
+      }
+    }
+  }
+
+  /**
+   * Forgets saved listings under a root which no longer exists.
+   */
+  public void removeRoot(File rootFile) {
+    if (myListingStorage != null) {
+      myListingStorage.removeListings(rootFile);
+    }
+  }
+
+  /**
+   * On interrupt the queued tasks are skipped, but the running ones are still waited for: they add nodes to the snapshot.
+   * The interrupt flag is restored and the walk fails.
+   */
+  private void ensureTasksCompleted() {
+    boolean interrupted = false;
+    synchronized (myCounterLock) {
+      while (myTasksInProgress.get() > 0) {
+        try {
+          myCounterLock.wait();
+        }
+        catch (InterruptedException e) {
+          if (!interrupted) {
+            interrupted = true;
+            if (myError == null) {
+              myError = e;
+            }
+          }
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
 }
@@ -1,11 +1,13 @@
 package org.jetbrains.jps.incremental;
 
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.io.PersistentEnumerator;
 import org.jetbrains.ether.dependencyView.Mappings;
 import org.jetbrains.jps.*;
 import org.jetbrains.jps.incremental.messages.BuildMessage;
 import org.jetbrains.jps.incremental.messages.CompilerMessage;
+import org.jetbrains.jps.incremental.java.ClassContentCache;
 import org.jetbrains.jps.incremental.messages.ProgressMessage;
 import org.jetbrains.jps.incremental.storage.OutputToSourceMapping;
 
@@ -13,13 +15,20 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * @author Eugene Zhuravlev
  *         Date: 9/17/11
  */
 public class IncProjectBuilder {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.IncProjectBuilder");
   public static final String JPS_SERVER_NAME = "JPS BUILD";
+  // independent chunks are built concurrently when enabled
+  private static final boolean PARALLEL_BUILD = Boolean.parseBoolean(System.getProperty("compile.parallel", "false"));
+  private static final int PARALLEL_BUILD_THREADS = Integer.getInteger("compile.parallel.max.threads", Runtime.getRuntime().availableProcessors());
+  // when building in parallel, report messages chunk by chunk in the same order a sequential build would do
+  private static final boolean ORDERED_MESSAGES = Boolean.parseBoolean(System.getProperty("compile.parallel.ordered.messages", "false"));
 
   private final String myProjectName;
   private final BuilderRegistry myBuilderRegistry;
@@ -80,6 +89,9 @@ public class IncProjectBuilder {
     finally {
       context.getBuildDataManager().close();
       cleanupJavacNameTable();
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(ClassContentCache.getInstance().getStatistics());
+      }
     }
   }
 
@@ -214,6 +226,18 @@ public class IncProjectBuilder {
 
   private void buildChunks(CompileContext context, ProjectChunks chunks) throws ProjectBuildException {
     final CompileScope scope = context.getScope();
+    if (PARALLEL_BUILD && PARALLEL_BUILD_THREADS > 1) {
+      final List<ModuleChunk> affected = new ArrayList<ModuleChunk>();
+      for (ModuleChunk chunk : chunks.getChunkList()) {
+        if (scope.isAffected(chunk)) {
+          affected.add(chunk);
+        }
+      }
+      if (affected.size() > 1) {
+        buildChunksInParallel(context, chunks, affected);
+        return;
+      }
+    }
     for (ModuleChunk chunk : chunks.getChunkList()) {
       if (scope.isAffected(chunk)) {
         buildChunk(context, chunk);
@@ -221,6 +245,110 @@ public class IncProjectBuilder {
     }
   }
 
+  /**
+   * Chunk list is topologically sorted, so a chunk is started as soon as all the affected chunks it depends on are built.
+   */
+  private void buildChunksInParallel(final CompileContext context, ProjectChunks chunks, List<ModuleChunk> affected) throws ProjectBuildException {
+    final ClasspathKind classpathKind = ClasspathKind.compile(context.isCompilingTests());
+    final Map<ModuleChunk, Set<ModuleChunk>> dependencies = new HashMap<ModuleChunk, Set<ModuleChunk>>();
+    for (ModuleChunk chunk : affected) {
+      final Set<ModuleChunk> deps = new HashSet<ModuleChunk>();
+      for (Module module : chunk.getModules()) {
+        for (ClasspathItem item : module.getClasspath(classpathKind)) {
+          if (item instanceof Module) {
+            final ModuleChunk depChunk = chunks.findChunk((Module)item);
+            if (depChunk != null) {
+              deps.add(depChunk);
+            }
+          }
+        }
+      }
+      dependencies.put(chunk, deps);
+    }
+
+    final ChunkMessages messages = new ChunkMessages(context, affected);
+    try {
+      new DependentTasksRunner<ModuleChunk>(affected, dependencies).run(PARALLEL_BUILD_THREADS, new DependentTasksRunner.Processor<ModuleChunk>() {
+        public void process(ModuleChunk chunk) throws ProjectBuildException {
+          buildChunk(context.createChunkContext(messages.getHandler(chunk)), chunk);
+        }
+
+        public void processed(ModuleChunk chunk) {
+          messages.chunkCompleted(chunk);
+        }
+      });
+    }
+    finally {
+      // nothing runs anymore, even if the build was interrupted
+      messages.flushAll();
+    }
+  }
+
+  /**
+   * Routes messages of concurrently built chunks to the build context.
+   * In ordered mode messages are buffered per chunk and reported in chunk list order once the chunk and all its predecessors complete.
+   */
+  private static class ChunkMessages {
+    private final CompileContext myContext;
+    private final List<ModuleChunk> myOrder;
+    private final Map<ModuleChunk, List<BuildMessage>> myBuffers = new HashMap<ModuleChunk, List<BuildMessage>>();
+    private final Set<ModuleChunk> myCompleted = new HashSet<ModuleChunk>();
+    private int myNextToFlush = 0;
+
+    ChunkMessages(CompileContext context, List<ModuleChunk> order) {
+      myContext = context;
+      myOrder = order;
+    }
+
+    MessageHandler getHandler(final ModuleChunk chunk) {
+      if (!ORDERED_MESSAGES) {
+        return new MessageHandler() {
+          public void processMessage(BuildMessage msg) {
+            synchronized (ChunkMessages.this) {
+              myContext.processMessage(msg);
+            }
+          }
+        };
+      }
+      final List<BuildMessage> buffer = new ArrayList<BuildMessage>();
+      synchronized (this) {
+        myBuffers.put(chunk, buffer);
+      }
+      return new MessageHandler() {
+        public void processMessage(BuildMessage msg) {
+          synchronized (buffer) {
+            buffer.add(msg);
+          }
+        }
+      };
+    }
+
+    synchronized void chunkCompleted(ModuleChunk chunk) {
+      myCompleted.add(chunk);
+      while (myNextToFlush < myOrder.size() && myCompleted.contains(myOrder.get(myNextToFlush))) {
+        flush(myOrder.get(myNextToFlush++));
+      }
+    }
+
+    synchronized void flushAll() {
+      while (myNextToFlush < myOrder.size()) {
+        flush(myOrder.get(myNextToFlush++));
+      }
+    }
+
+    private void flush(ModuleChunk chunk) {
+      final List<BuildMessage> buffer = myBuffers.remove(chunk);
+      if (buffer != null) {
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (buffer) {
+          for (BuildMessage msg : buffer) {
+            myContext.processMessage(msg);
+          }
+        }
+      }
+    }
+  }
+
   private void buildChunk(CompileContext context, ModuleChunk chunk) throws ProjectBuildException{
     try {
          // TODO: check how the output-source storage is filled and!
@@ -0,0 +1,66 @@
+package org.jetbrains.jps.incremental.java;
+
+import com.intellij.openapi.util.io.FileUtil;
+
+import javax.tools.ForwardingJavaFileObject;
+import javax.tools.JavaFileObject;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Class file from a jar whose content is served from {@link ClassContentCache}
+ */
+class CachingClassFileObject extends ForwardingJavaFileObject<JavaFileObject> {
+  private final ClassContentCache myCache;
+  private final File myJar;
+  private final long myJarStamp;
+  private final String myEntryName;
+
+  CachingClassFileObject(JavaFileObject fileObject, ClassContentCache cache, File jar, long jarStamp, String entryName) {
+    super(fileObject);
+    myCache = cache;
+    myJar = jar;
+    myJarStamp = jarStamp;
+    myEntryName = entryName;
+  }
+
+  JavaFileObject getDelegate() {
+    return fileObject;
+  }
+
+  @Override
+  public InputStream openInputStream() throws IOException {
+    byte[] content = myCache.get(myJar, myJarStamp, myEntryName);
+    if (content == null) {
+      final InputStream stream = fileObject.openInputStream();
+      try {
+        content = FileUtil.loadBytes(stream);
+      }
+      finally {
+        stream.close();
+      }
+      myCache.put(myJar, myJarStamp, myEntryName, content);
+    }
+    return new ByteArrayInputStream(content);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (obj instanceof CachingClassFileObject) {
+      return fileObject.equals(((CachingClassFileObject)obj).fileObject);
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    return fileObject.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return fileObject.toString();
+  }
+}
@@ -0,0 +1,102 @@
+package org.jetbrains.jps.incremental.java;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Contents of class files javac reads from library and JDK jars, kept for the lifetime of the build process
+ * so that chunks and build sessions do not read the same classpath over and over again.
+ * Entries are keyed by jar path and entry name and are valid only for the jar timestamp they were read with.
+ * Total size of cached contents is limited, least recently used entries are evicted first.
+ */
+public class ClassContentCache {
+  // cache size in megabytes; 0 disables caching
+  private static final int CACHE_SIZE_MB = Integer.getInteger("compile.javac.class.cache.size", 64);
+  private static final ClassContentCache ourInstance = new ClassContentCache(
+    Math.min(CACHE_SIZE_MB * 1024L * 1024L, Runtime.getRuntime().maxMemory() / 8)
+  );
+
+  private final long myMaxSize;
+  private long mySize = 0L;
+  private int myHits = 0;
+  private int myMisses = 0;
+  private final LinkedHashMap<String, Entry> myEntries = new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+
+  private static class Entry {
+    final long jarStamp;
+    final byte[] content;
+
+    Entry(long jarStamp, byte[] content) {
+      this.jarStamp = jarStamp;
+      this.content = content;
+    }
+  }
+
+  public static ClassContentCache getInstance() {
+    return ourInstance;
+  }
+
+  ClassContentCache(long maxSize) {
+    myMaxSize = maxSize;
+  }
+
+  public boolean isEnabled() {
+    return myMaxSize > 0L;
+  }
+
+  /**
+   * @return cached content; callers must not modify the returned array
+   */
+  @Nullable
+  public synchronized byte[] get(File jar, long jarStamp, String entryName) {
+    final String key = createKey(jar, entryName);
+    final Entry entry = myEntries.get(key);
+    if (entry == null) {
+      myMisses++;
+      return null;
+    }
+    if (entry.jarStamp != jarStamp) {
+      myEntries.remove(key);
+      mySize -= entry.content.length;
+      myMisses++;
+      return null;
+    }
+    myHits++;
+    return entry.content;
+  }
+
+  public synchronized void put(File jar, long jarStamp, String entryName, byte[] content) {
+    if (content.length > myMaxSize / 16) {
+      return; // do not let a single entry flush the whole cache
+    }
+    final Entry previous = myEntries.put(createKey(jar, entryName), new Entry(jarStamp, content));
+    if (previous != null) {
+      mySize -= previous.content.length;
+    }
+    mySize += content.length;
+    if (mySize > myMaxSize) {
+      final Iterator<Map.Entry<String, Entry>> it = myEntries.entrySet().iterator();
+      while (mySize > myMaxSize && it.hasNext()) {
+        mySize -= it.next().getValue().content.length;
+        it.remove();
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    myEntries.clear();
+    mySize = 0L;
+  }
+
+  public synchronized String getStatistics() {
+    return "Class content cache: " + myEntries.size() + " entries, " + (mySize / 1024) + "K of " + (myMaxSize / 1024) + "K; hits: " + myHits + ", misses: " + myMisses;
+  }
+
+  private static String createKey(File jar, String entryName) {
+    return jar.getPath() + "!/" + entryName;
+  }
+}
@@ -7,10 +7,9 @@ import org.jetbrains.jps.incremental.Paths;
 import javax.tools.*;
 import java.io.File;
 import java.io.IOException;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Set;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.*;
 
 /**
  * @author Eugene Zhuravlev
@@ -20,6 +19,9 @@ class JavacFileManager extends ForwardingJavaFileManager<StandardJavaFileManager
 
   private final Context myContext;
   private Map<File, Set<File>> myOutputsMap = Collections.emptyMap();
+  private final ClassContentCache myClassCache = ClassContentCache.getInstance();
+  // jar timestamps are taken once per compilation
+  private final Map<File, Long> myJarStamps = new HashMap<File, Long>();
 
   interface Context {
     StandardJavaFileManager getStandardFileManager();
@@ -62,7 +64,70 @@ class JavacFileManager extends ForwardingJavaFileManager<StandardJavaFileManager
     if (a instanceof OutputFileObject && b instanceof OutputFileObject) {
       return a.equals(b);
     }
-    return super.isSameFile(a, b);
+    return super.isSameFile(unwrap(a), unwrap(b));
+  }
+
+  public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
+    final Iterable<JavaFileObject> files = super.list(location, packageName, kinds, recurse);
+    if (!isCacheableLocation(location) || !kinds.contains(JavaFileObject.Kind.CLASS)) {
+      return files;
+    }
+    final List<JavaFileObject> result = new ArrayList<JavaFileObject>();
+    for (JavaFileObject file : files) {
+      result.add(wrapJarClassFile(file));
+    }
+    return result;
+  }
+
+  public JavaFileObject getJavaFileForInput(Location location, String className, JavaFileObject.Kind kind) throws IOException {
+    final JavaFileObject file = super.getJavaFileForInput(location, className, kind);
+    return file != null && isCacheableLocation(location)? wrapJarClassFile(file) : file;
+  }
+
+  public String inferBinaryName(Location location, JavaFileObject file) {
+    return super.inferBinaryName(location, (JavaFileObject)unwrap(file));
+  }
+
+  private boolean isCacheableLocation(Location location) {
+    return myClassCache.isEnabled() && (location == StandardLocation.CLASS_PATH || location == StandardLocation.PLATFORM_CLASS_PATH);
+  }
+
+  private JavaFileObject wrapJarClassFile(JavaFileObject file) {
+    if (file.getKind() != JavaFileObject.Kind.CLASS) {
+      return file;
+    }
+    final URI uri = file.toUri();
+    if (!"jar".equals(uri.getScheme())) {
+      return file;
+    }
+    // jar:file:/path/to/lib.jar!/pkg/Name.class; the jar part is taken from the raw uri as it has to stay encoded
+    final String rawPath = uri.getRawSchemeSpecificPart();
+    final int rawSeparator = rawPath.indexOf("!/");
+    final String path = uri.getSchemeSpecificPart();
+    final int separator = path.indexOf("!/");
+    if (rawSeparator < 0 || separator < 0 || !rawPath.startsWith("file:")) {
+      return file;
+    }
+    final File jar;
+    try {
+      jar = new File(new URI(rawPath.substring(0, rawSeparator)));
+    }
+    catch (URISyntaxException e) {
+      return file;
+    }
+    catch (IllegalArgumentException e) {
+      return file;
+    }
+    Long stamp = myJarStamps.get(jar);
+    if (stamp == null) {
+      stamp = jar.lastModified();
+      myJarStamps.put(jar, stamp);
+    }
+    return new CachingClassFileObject(file, myClassCache, jar, stamp, path.substring(separator + 2));
+  }
+
+  private static FileObject unwrap(FileObject file) {
+    return file instanceof CachingClassFileObject? ((CachingClassFileObject)file).getDelegate() : file;
   }
 
   public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) throws IOException {
@@ -165,6 +230,7 @@ class JavacFileManager extends ForwardingJavaFileManager<StandardJavaFileManager
     }
     finally {
       myOutputsMap = Collections.emptyMap();
+      myJarStamps.clear();
     }
   }
 
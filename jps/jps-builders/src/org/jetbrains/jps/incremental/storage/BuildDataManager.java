@@ -2,6 +2,7 @@ package org.jetbrains.jps.incremental.storage;
 
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.incremental.Builder;
 import org.jetbrains.jps.incremental.BuilderCategory;
 import org.jetbrains.jps.incremental.BuilderRegistry;
@@ -20,10 +21,12 @@ public class BuildDataManager {
   private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.storage.BuildDataManager");
   private static final String TIMESTAMP_STORAGE = "stamps";
   private static final String OUTPUTS_STORAGE = "out-src";
+  private static final String DIRECTORY_LISTINGS_STORAGE = "dir-listings";
   private final String myProjectName;
 
   private final Map<String, TimestampStorage> myBuilderToStampStorageMap = new HashMap<String, TimestampStorage>();
   private final OutputToSourceMapping myOutputToSourceMap;
+  private DirectoryListingStorage myDirectoryListings;
 
   public BuildDataManager(String projectName)  {
     myProjectName = projectName;
@@ -62,6 +65,21 @@ public class BuildDataManager {
     return myOutputToSourceMap;
   }
 
+  @Nullable
+  public synchronized DirectoryListingStorage getDirectoryListingStorage() {
+    if (myDirectoryListings == null) {
+      final File root = getDirectoryListingsStorageRoot();
+      try {
+        myDirectoryListings = new DirectoryListingStorage(new File(root, "data"));
+      }
+      catch (Exception e) {
+        LOG.info(e);
+        FileUtil.delete(root);
+      }
+    }
+    return myDirectoryListings;
+  }
+
   public void clean() {
     synchronized (myBuilderToStampStorageMap) {
       try {
@@ -74,10 +92,20 @@ public class BuildDataManager {
       }
       finally {
         myOutputToSourceMap.wipe();
+        cleanDirectoryListings();
       }
     }
   }
 
+  private synchronized void cleanDirectoryListings() {
+    if (myDirectoryListings != null) {
+      myDirectoryListings.wipe();
+    }
+    else {
+      FileUtil.delete(getDirectoryListingsStorageRoot());
+    }
+  }
+
   private void cleanTimestampStorage(String builderName) {
     final TimestampStorage storage = myBuilderToStampStorageMap.remove(builderName);
     if (storage != null) {
@@ -94,6 +122,7 @@ public class BuildDataManager {
   public void close() {
     try {
       closeTimestampStorages();
+      closeDirectoryListings();
     }
     finally {
       synchronized (myOutputToSourceMap) {
@@ -108,6 +137,21 @@ public class BuildDataManager {
     }
   }
 
+  private synchronized void closeDirectoryListings() {
+    if (myDirectoryListings != null) {
+      try {
+        myDirectoryListings.close();
+      }
+      catch (IOException e) {
+        LOG.error(e);
+        FileUtil.delete(getDirectoryListingsStorageRoot());
+      }
+      finally {
+        myDirectoryListings = null;
+      }
+    }
+  }
+
   private void closeTimestampStorages() {
     synchronized (myBuilderToStampStorageMap) {
       try {
@@ -133,6 +177,10 @@ public class BuildDataManager {
     return new File(Paths.getDataStorageRoot(myProjectName), OUTPUTS_STORAGE);
   }
 
+  public File getDirectoryListingsStorageRoot() {
+    return new File(Paths.getDataStorageRoot(myProjectName), DIRECTORY_LISTINGS_STORAGE);
+  }
+
   public File getTimestampsStorageRoot(String builderName) {
     return new File(Paths.getBuilderDataRoot(myProjectName, builderName), TIMESTAMP_STORAGE);
   }
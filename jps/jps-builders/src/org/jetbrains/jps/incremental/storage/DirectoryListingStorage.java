@@ -0,0 +1,115 @@
+package org.jetbrains.jps.incremental.storage;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Remembers contents of source directories together with the directory timestamp they were listed at,
+ * so that unchanged directories need not be listed again in the next build session.
+ * A storage which fails to read or write is wiped: all directories are listed anew and the listings are saved again.
+ */
+public class DirectoryListingStorage extends AbstractStateStorage<String, DirectoryListingStorage.Listing> {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.storage.DirectoryListingStorage");
+
+  public DirectoryListingStorage(File storePath) throws Exception {
+    super(storePath, new EnumeratorStringDescriptor(), new ListingExternalizer());
+  }
+
+  /**
+   * @return the listing saved for the directory, whatever timestamp it was listed at
+   */
+  @Nullable
+  public Listing getListing(@NotNull File dir) {
+    try {
+      return getState(getKey(dir));
+    }
+    catch (Exception e) {
+      rebuild(e);
+      return null;
+    }
+  }
+
+  public void saveListing(@NotNull File dir, @NotNull Listing listing) {
+    try {
+      update(getKey(dir), listing);
+    }
+    catch (Exception e) {
+      rebuild(e);
+    }
+  }
+
+  /**
+   * Removes listings of the directory and of all its subdirectories known from the saved listings.
+   */
+  public void removeListings(@NotNull File dir) {
+    final Listing listing = getListing(dir);
+    if (listing == null) {
+      return;
+    }
+    try {
+      remove(getKey(dir));
+    }
+    catch (Exception e) {
+      rebuild(e);
+      return;
+    }
+    for (int i = 0; i < listing.names.length; i++) {
+      if (listing.directories[i]) {
+        removeListings(new File(dir, listing.names[i]));
+      }
+    }
+  }
+
+  private void rebuild(Exception e) {
+    LOG.info(e);
+    wipe();
+  }
+
+  private static String getKey(File dir) {
+    return FileUtil.toSystemIndependentName(dir.getPath());
+  }
+
+  public static class Listing {
+    public final long timestamp;
+    public final String[] names;
+    public final boolean[] directories;
+
+    public Listing(long timestamp, String[] names, boolean[] directories) {
+      this.timestamp = timestamp;
+      this.names = names;
+      this.directories = directories;
+    }
+  }
+
+  private static class ListingExternalizer implements DataExternalizer<Listing> {
+    public void save(DataOutput out, Listing value) throws IOException {
+      out.writeLong(value.timestamp);
+      out.writeInt(value.names.length);
+      for (int i = 0; i < value.names.length; i++) {
+        out.writeUTF(value.names[i]);
+        out.writeBoolean(value.directories[i]);
+      }
+    }
+
+    public Listing read(DataInput in) throws IOException {
+      final long timestamp = in.readLong();
+      final int size = in.readInt();
+      final String[] names = new String[size];
+      final boolean[] directories = new boolean[size];
+      for (int i = 0; i < size; i++) {
+        names[i] = in.readUTF();
+        directories[i] = in.readBoolean();
+      }
+      return new Listing(timestamp, names, directories);
+    }
+  }
+}
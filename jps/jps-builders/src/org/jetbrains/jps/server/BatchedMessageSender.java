@@ -0,0 +1,108 @@
+package org.jetbrains.jps.server;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.JpsRemoteProto;
+import org.jetbrains.jps.api.ProtoUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends build responses of a single session to the client with delayed writes. Pending responses are written, each as a separate
+ * message, when {@link #MAX_PENDING_COUNT} of them are collected or when the oldest of them has waited for {@link #FLUSH_DELAY_MS}.
+ * A progress response replaces the previous one if nothing else was reported in between, so a burst of progress reaches the client
+ * as a single message.
+ * When the channel cannot accept more data, the build thread waits until the previously written responses are sent, at most for
+ * {@link #BACK_PRESSURE_TIMEOUT_MS}, so a slow client cannot make the server accumulate an unbounded amount of messages.
+ */
+class BatchedMessageSender {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.server.BatchedMessageSender");
+  static final int MAX_PENDING_COUNT = 128;
+  static final long FLUSH_DELAY_MS = 50L;
+  private static final long BACK_PRESSURE_TIMEOUT_MS = 10000L;
+
+  private final Channel myChannel;
+  private final UUID mySessionId;
+  private final ScheduledExecutorService myFlushScheduler;
+  private final Object myLock = new Object();
+  private final List<JpsRemoteProto.Message> myPending = new ArrayList<JpsRemoteProto.Message>();
+  private boolean myLastPendingIsProgress = false;
+  private ScheduledFuture<?> myScheduledFlush = null;
+  private ChannelFuture myLastWrite = null;
+
+  private final Runnable myFlushTask = new Runnable() {
+    public void run() {
+      synchronized (myLock) {
+        myScheduledFlush = null;
+        flushPending();
+      }
+    }
+  };
+
+  BatchedMessageSender(Channel channel, UUID sessionId, ScheduledExecutorService flushScheduler) {
+    myChannel = channel;
+    mySessionId = sessionId;
+    myFlushScheduler = flushScheduler;
+  }
+
+  public void send(JpsRemoteProto.Message.Response response, boolean isProgress) {
+    final JpsRemoteProto.Message message = ProtoUtil.toMessage(mySessionId, response);
+    final ChannelFuture toAwait;
+    synchronized (myLock) {
+      if (isProgress && myLastPendingIsProgress) {
+        myPending.set(myPending.size() - 1, message);
+      }
+      else {
+        myPending.add(message);
+      }
+      myLastPendingIsProgress = isProgress;
+
+      if (myPending.size() >= MAX_PENDING_COUNT) {
+        flushPending();
+      }
+      else if (myScheduledFlush == null) {
+        myScheduledFlush = myFlushScheduler.schedule(myFlushTask, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+      }
+      toAwait = myChannel.isWritable()? null : myLastWrite;
+    }
+    // back-pressure: let the client catch up before producing more messages
+    if (toAwait != null && !toAwait.awaitUninterruptibly(BACK_PRESSURE_TIMEOUT_MS)) {
+      LOG.info("Client hasn't read build messages for " + BACK_PRESSURE_TIMEOUT_MS + "ms, going on");
+    }
+  }
+
+  /**
+   * Writes all pending responses followed by the given message
+   * @return future for the last write, null if nothing was written
+   */
+  @Nullable
+  public ChannelFuture flush(@Nullable JpsRemoteProto.Message lastMessage) {
+    synchronized (myLock) {
+      if (myScheduledFlush != null) {
+        myScheduledFlush.cancel(false);
+        myScheduledFlush = null;
+      }
+      flushPending();
+      if (lastMessage != null) {
+        myLastWrite = Channels.write(myChannel, lastMessage);
+      }
+      return myLastWrite;
+    }
+  }
+
+  private void flushPending() {
+    for (JpsRemoteProto.Message message : myPending) {
+      myLastWrite = Channels.write(myChannel, message);
+    }
+    myPending.clear();
+    myLastPendingIsProgress = false;
+  }
+}
@@ -12,6 +12,7 @@ import org.jboss.netty.handler.codec.protobuf.ProtobufVarint32FrameDecoder;
 import org.jboss.netty.handler.codec.protobuf.ProtobufVarint32LengthFieldPrepender;
 import org.jetbrains.jps.api.JpsRemoteProto;
 import org.jetbrains.jps.incremental.Paths;
+import org.jetbrains.jps.incremental.java.ClassContentCache;
 
 import java.io.File;
 import java.net.InetSocketAddress;
@@ -71,6 +72,7 @@ public class Server {
     }
     finally {
       myChannelFactory.releaseExternalResources();
+      ClassContentCache.getInstance().clear();
     }
   }
 
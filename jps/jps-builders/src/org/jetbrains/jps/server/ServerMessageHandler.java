@@ -1,18 +1,21 @@
 package org.jetbrains.jps.server;
 
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.ConcurrencyUtil;
 import org.jboss.netty.channel.*;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.api.*;
 import org.jetbrains.jps.incremental.MessageHandler;
 import org.jetbrains.jps.incremental.messages.BuildMessage;
 import org.jetbrains.jps.incremental.messages.CompilerMessage;
+import org.jetbrains.jps.incremental.messages.ProgressMessage;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  * @author Eugene Zhuravlev
@@ -23,6 +26,7 @@ class ServerMessageHandler extends SimpleChannelHandler {
 
   private final ConcurrentHashMap<String, CompilationTask> myBuildsInProgress = new ConcurrentHashMap<String, CompilationTask>();
   private final ExecutorService myBuildsExecutor;
+  private final ScheduledExecutorService myMessageFlushScheduler = ConcurrencyUtil.newSingleScheduledThreadExecutor("JPS build messages flusher");
   private final Server myServer;
 
   public ServerMessageHandler(ExecutorService buildsExecutor, Server server) {
@@ -143,10 +147,12 @@ class ServerMessageHandler extends SimpleChannelHandler {
     private final String myProjectPath;
     private final Set<String> myModules;
     private final BuildParameters myParams;
+    private final BatchedMessageSender myMessageSender;
 
     public CompilationTask(UUID sessionId, ChannelHandlerContext channelContext, String projectId, List<String> modules) {
       mySessionId = sessionId;
       myChannelContext = channelContext;
+      myMessageSender = new BatchedMessageSender(channelContext.getChannel(), sessionId, myMessageFlushScheduler);
       myProjectPath = projectId;
       myModules = new HashSet<String>(modules);
       myParams = new BuildParameters();
@@ -179,7 +185,7 @@ class ServerMessageHandler extends SimpleChannelHandler {
             else {
               response = ProtoUtil.createCompileProgressMessageResponse(buildMessage.getMessageText());
             }
-            Channels.write(myChannelContext.getChannel(), ProtoUtil.toMessage(mySessionId, response));
+            myMessageSender.send(response, buildMessage instanceof ProgressMessage);
           }
         });
       }
@@ -218,7 +224,9 @@ class ServerMessageHandler extends SimpleChannelHandler {
         lastMessage = ProtoUtil.toMessage(mySessionId, ProtoUtil.createFailure(e.getMessage(), e));
       }
       finally {
-        Channels.write(myChannelContext.getChannel(), lastMessage).addListener(new ChannelFutureListener() {
+        // pending build messages are sent before the final one
+        //noinspection ConstantConditions
+        myMessageSender.flush(lastMessage).addListener(new ChannelFutureListener() {
           public void operationComplete(ChannelFuture future) throws Exception {
             myBuildsInProgress.remove(myProjectPath);
           }
@@ -0,0 +1,141 @@
+package org.jetbrains.jps.incremental;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DependentTasksRunnerTest extends TestCase {
+  private static final long TIMEOUT_MS = 10000L;
+
+  private final Map<String, Collection<String>> myDependencies = new HashMap<String, Collection<String>>();
+  private final AtomicInteger myClock = new AtomicInteger();
+  private final Map<String, Integer> myStarted = new ConcurrentHashMap<String, Integer>();
+  private final Map<String, Integer> myFinished = new ConcurrentHashMap<String, Integer>();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    // util <- model <- (ui, server) <- app; tools depends on nothing affected
+    myDependencies.put("model", Arrays.asList("util"));
+    myDependencies.put("ui", Arrays.asList("model", "util"));
+    myDependencies.put("server", Arrays.asList("model", "external"));
+    myDependencies.put("app", Arrays.asList("ui", "server", "app"));
+  }
+
+  public void testDependentsStartAfterDependencies() throws Exception {
+    final List<String> items = Arrays.asList("util", "tools", "model", "ui", "server", "app");
+    final List<String> processed = new ArrayList<String>();
+    final Thread schedulingThread = Thread.currentThread();
+    new DependentTasksRunner<String>(items, myDependencies).run(4, new RecordingProcessor() {
+      @Override
+      public void processed(String item) {
+        assertSame(schedulingThread, Thread.currentThread());
+        processed.add(item);
+      }
+    });
+
+    assertEquals(new HashSet<String>(items), new HashSet<String>(processed));
+    assertEquals(new HashSet<String>(items), myFinished.keySet());
+    for (String item : items) {
+      final Collection<String> deps = myDependencies.get(item);
+      if (deps == null) continue;
+      for (String dep : deps) {
+        if (items.contains(dep) && !dep.equals(item)) {
+          assertTrue(item + " started before " + dep + " was built", myStarted.get(item) > myFinished.get(dep));
+        }
+      }
+    }
+  }
+
+  public void testNoDependentsStartedAfterFailure() throws Exception {
+    final List<String> items = Arrays.asList("util", "tools", "model", "ui", "server", "app");
+    try {
+      new DependentTasksRunner<String>(items, myDependencies).run(4, new RecordingProcessor() {
+        @Override
+        public void process(String item) throws ProjectBuildException {
+          if (item.equals("model")) {
+            throw new ProjectBuildException("model failed");
+          }
+          super.process(item);
+        }
+      });
+      fail("the failure must be rethrown");
+    }
+    catch (ProjectBuildException e) {
+      assertEquals("model failed", e.getMessage());
+    }
+    assertFalse(myStarted.containsKey("ui"));
+    assertFalse(myStarted.containsKey("server"));
+    assertFalse(myStarted.containsKey("app"));
+    assertTrue(myFinished.containsKey("util"));
+    assertTrue(myFinished.containsKey("tools"));
+  }
+
+  public void testInterruptedRunWaitsForRunningItems() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final AtomicBoolean running = new AtomicBoolean();
+    final Thread schedulingThread = Thread.currentThread();
+    final Thread interrupter = new Thread("interrupter") {
+      @Override
+      public void run() {
+        try {
+          if (started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            schedulingThread.interrupt();
+          }
+        }
+        catch (InterruptedException ignored) {
+        }
+      }
+    };
+    interrupter.start();
+
+    try {
+      new DependentTasksRunner<String>(Arrays.asList("util", "model"), myDependencies).run(2, new DependentTasksRunner.Processor<String>() {
+        public void process(String item) throws ProjectBuildException {
+          running.set(true);
+          started.countDown();
+          try {
+            Thread.sleep(TIMEOUT_MS);
+          }
+          catch (InterruptedException e) {
+            throw new ProjectBuildException(e);
+          }
+          finally {
+            running.set(false);
+          }
+        }
+
+        public void processed(String item) {
+        }
+      });
+      fail("the interrupted run must fail");
+    }
+    catch (ProjectBuildException e) {
+      assertTrue(e.getCause() instanceof InterruptedException);
+    }
+    assertTrue("the interrupt flag must be restored", Thread.interrupted());
+    assertFalse("running items must be completed", running.get());
+    interrupter.join();
+  }
+
+  private class RecordingProcessor implements DependentTasksRunner.Processor<String> {
+    public void process(String item) throws ProjectBuildException {
+      myStarted.put(item, myClock.incrementAndGet());
+      try {
+        Thread.sleep(20);
+      }
+      catch (InterruptedException e) {
+        throw new ProjectBuildException(e);
+      }
+      myFinished.put(item, myClock.incrementAndGet());
+    }
+
+    public void processed(String item) {
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package org.jetbrains.jps.incremental.java;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import javax.tools.*;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+public class JavacFileManagerTest extends TestCase {
+  private File myTempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myTempDir = FileUtil.createTempDirectory("javac file manager", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myTempDir);
+    super.tearDown();
+  }
+
+  public void testRebuiltJarUnderPathWithSpacesIsReread() throws Exception {
+    final File jar = new File(myTempDir, "lib dir/lib.jar");
+    writeJar(jar, new byte[]{1, 2, 3});
+    assertClassContent(jar, new byte[]{1, 2, 3});
+
+    final long stamp = jar.lastModified();
+    writeJar(jar, new byte[]{4, 5});
+    assertTrue(jar.setLastModified(stamp + 10000));
+    assertClassContent(jar, new byte[]{4, 5});
+  }
+
+  private static void assertClassContent(File jar, byte[] expected) throws IOException {
+    final JavacFileManager manager = new JavacFileManager(new TestContext());
+    try {
+      assertTrue(manager.setLocation(StandardLocation.CLASS_PATH, Collections.singleton(jar)));
+      final JavaFileObject file = manager.getJavaFileForInput(StandardLocation.CLASS_PATH, "pkg.Foo", JavaFileObject.Kind.CLASS);
+      assertTrue(String.valueOf(file), file instanceof CachingClassFileObject);
+      final InputStream stream = file.openInputStream();
+      try {
+        final byte[] content = FileUtil.loadBytes(stream);
+        assertTrue(Arrays.toString(content), Arrays.equals(expected, content));
+      }
+      finally {
+        stream.close();
+      }
+    }
+    finally {
+      manager.close();
+    }
+  }
+
+  private static void writeJar(File jar, byte[] classContent) throws IOException {
+    FileUtil.createParentDirs(jar);
+    final JarOutputStream stream = new JarOutputStream(new FileOutputStream(jar));
+    try {
+      stream.putNextEntry(new ZipEntry("pkg/Foo.class"));
+      stream.write(classContent);
+      stream.closeEntry();
+    }
+    finally {
+      stream.close();
+    }
+  }
+
+  private static class TestContext implements JavacFileManager.Context {
+    private final StandardJavaFileManager myStdManager = ToolProvider.getSystemJavaCompiler().getStandardFileManager(null, null, null);
+
+    public StandardJavaFileManager getStandardFileManager() {
+      return myStdManager;
+    }
+
+    public void consumeOutputFile(@NotNull OutputFileObject obj) {
+    }
+
+    public void reportMessage(Diagnostic.Kind kind, String message) {
+      fail(message);
+    }
+
+    public void ensurePendingTasksCompleted() {
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package org.jetbrains.jps.incremental.storage;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+
+public class DirectoryListingStorageTest extends TestCase {
+  private File myStorageRoot;
+  private DirectoryListingStorage myStorage;
+  private final File mySrc = new File("/project/src");
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myStorageRoot = FileUtil.createTempDirectory("listings", null);
+    myStorage = new DirectoryListingStorage(new File(myStorageRoot, "data"));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myStorage.close();
+      FileUtil.delete(myStorageRoot);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testListingsPersistedBetweenSessions() throws Exception {
+    myStorage.saveListing(mySrc, listing(10L, "a.java", "pkg/", "b.java"));
+    myStorage.saveListing(new File(mySrc, "pkg"), listing(20L));
+    reopen();
+
+    assertListing(myStorage.getListing(mySrc), 10L, "a.java", "pkg/", "b.java");
+    assertListing(myStorage.getListing(new File(mySrc, "pkg")), 20L);
+    assertNull(myStorage.getListing(new File(mySrc, "other")));
+  }
+
+  public void testSavedListingReplaced() throws Exception {
+    myStorage.saveListing(mySrc, listing(10L, "a.java", "pkg/"));
+    myStorage.saveListing(mySrc, listing(11L, "b.java"));
+    reopen();
+
+    assertListing(myStorage.getListing(mySrc), 11L, "b.java");
+  }
+
+  public void testRemoveListingsOfSubdirectories() throws Exception {
+    final File pkg = new File(mySrc, "pkg");
+    final File sub = new File(pkg, "sub");
+    final File other = new File(mySrc, "other");
+    myStorage.saveListing(mySrc, listing(10L, "pkg/", "other/"));
+    myStorage.saveListing(pkg, listing(20L, "sub/", "a.java"));
+    myStorage.saveListing(sub, listing(30L, "b.java"));
+    myStorage.saveListing(other, listing(40L, "c.java"));
+
+    myStorage.removeListings(pkg);
+    reopen();
+
+    assertNull(myStorage.getListing(pkg));
+    assertNull(myStorage.getListing(sub));
+    assertListing(myStorage.getListing(mySrc), 10L, "pkg/", "other/");
+    assertListing(myStorage.getListing(other), 40L, "c.java");
+  }
+
+  public void testWipe() throws Exception {
+    myStorage.saveListing(mySrc, listing(10L, "a.java"));
+    assertTrue(myStorage.wipe());
+    assertNull(myStorage.getListing(mySrc));
+
+    myStorage.saveListing(mySrc, listing(11L, "b.java"));
+    reopen();
+    assertListing(myStorage.getListing(mySrc), 11L, "b.java");
+  }
+
+  private void reopen() throws Exception {
+    myStorage.close();
+    myStorage = new DirectoryListingStorage(new File(myStorageRoot, "data"));
+  }
+
+  /**
+   * @param children names of child files, names of child directories end with '/'
+   */
+  private static DirectoryListingStorage.Listing listing(long timestamp, String... children) {
+    final String[] names = new String[children.length];
+    final boolean[] directories = new boolean[children.length];
+    for (int i = 0; i < children.length; i++) {
+      directories[i] = children[i].endsWith("/");
+      names[i] = directories[i] ? children[i].substring(0, children[i].length() - 1) : children[i];
+    }
+    return new DirectoryListingStorage.Listing(timestamp, names, directories);
+  }
+
+  private static void assertListing(DirectoryListingStorage.Listing actual, long timestamp, String... children) {
+    assertNotNull(actual);
+    final DirectoryListingStorage.Listing expected = listing(timestamp, children);
+    assertEquals(expected.timestamp, actual.timestamp);
+    assertEquals(Arrays.asList(expected.names), Arrays.asList(actual.names));
+    assertTrue(Arrays.equals(expected.directories, actual.directories));
+  }
+}
@@ -0,0 +1,180 @@
+package org.jetbrains.jps.server;
+
+import junit.framework.TestCase;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.jetbrains.jps.api.JpsRemoteProto;
+import org.jetbrains.jps.api.ProtoUtil;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class BatchedMessageSenderTest extends TestCase {
+  private static final long TIMEOUT_MS = 10000L;
+
+  private final List<String> myReceived = Collections.synchronizedList(new ArrayList<String>());
+  private ServerBootstrap myServerBootstrap;
+  private ClientBootstrap myClientBootstrap;
+  private Channel myServerChannel;
+  private Channel myClientChannel;
+  private Channel myChannel; // server side of the connection the responses are sent to
+  private ScheduledExecutorService myScheduler;
+  private BatchedMessageSender mySender;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    final LocalAddress address = new LocalAddress(getName());
+    final BlockingQueue<Channel> accepted = new LinkedBlockingQueue<Channel>();
+
+    myServerBootstrap = new ServerBootstrap(new DefaultLocalServerChannelFactory());
+    myServerBootstrap.getPipeline().addLast("acceptor", new SimpleChannelUpstreamHandler() {
+      @Override
+      public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        accepted.add(ctx.getChannel());
+      }
+    });
+    myServerChannel = myServerBootstrap.bind(address);
+
+    myClientBootstrap = new ClientBootstrap(new DefaultLocalClientChannelFactory());
+    myClientBootstrap.getPipeline().addLast("collector", new SimpleChannelUpstreamHandler() {
+      @Override
+      public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        myReceived.add(((JpsRemoteProto.Message)e.getMessage()).getResponse().getCompileMessage().getText());
+      }
+    });
+    final ChannelFuture connected = myClientBootstrap.connect(address);
+    assertTrue(connected.awaitUninterruptibly(TIMEOUT_MS));
+    myClientChannel = connected.getChannel();
+    myChannel = accepted.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    assertNotNull(myChannel);
+
+    myScheduler = Executors.newSingleThreadScheduledExecutor();
+    mySender = new BatchedMessageSender(myChannel, UUID.randomUUID(), myScheduler);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myScheduler.shutdownNow();
+      myClientChannel.close().awaitUninterruptibly();
+      myServerChannel.close().awaitUninterruptibly();
+      myClientBootstrap.releaseExternalResources();
+      myServerBootstrap.releaseExternalResources();
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testOrderAndProgressCoalescing() throws Exception {
+    final CountDownLatch schedulerBlocked = blockScheduler();
+    try {
+      send("info 1", false);
+      send("progress 1", true);
+      send("progress 2", true);
+      send("progress 3", true);
+      send("info 2", false);
+      send("progress 4", true);
+      send("info 3", false);
+      send("progress 5", true);
+      send("progress 6", true);
+      assertTrue("writes are delayed", myReceived.isEmpty());
+
+      flushWithLast("completed");
+      assertEquals(Arrays.asList("info 1", "progress 3", "info 2", "progress 4", "info 3", "progress 6", "completed"), received());
+    }
+    finally {
+      schedulerBlocked.countDown();
+    }
+  }
+
+  public void testSessionEndFlushesPendingWithoutWaitingForTimer() throws Exception {
+    final CountDownLatch schedulerBlocked = blockScheduler();
+    try {
+      for (int i = 0; i < 10; i++) {
+        send("message " + i, false);
+      }
+      flushWithLast("completed");
+      final List<String> expected = new ArrayList<String>();
+      for (int i = 0; i < 10; i++) {
+        expected.add("message " + i);
+      }
+      expected.add("completed");
+      assertEquals(expected, received());
+    }
+    finally {
+      schedulerBlocked.countDown();
+    }
+  }
+
+  public void testPendingWrittenWhenMaxCountCollected() throws Exception {
+    final CountDownLatch schedulerBlocked = blockScheduler();
+    try {
+      for (int i = 0; i < BatchedMessageSender.MAX_PENDING_COUNT - 1; i++) {
+        send("message " + i, false);
+      }
+      assertTrue(myReceived.isEmpty());
+      send("last", false);
+      assertEquals(BatchedMessageSender.MAX_PENDING_COUNT, received().size());
+      assertEquals("last", received().get(BatchedMessageSender.MAX_PENDING_COUNT - 1));
+    }
+    finally {
+      schedulerBlocked.countDown();
+    }
+  }
+
+  public void testPendingWrittenAfterDelay() throws Exception {
+    send("info", false);
+    send("progress", true);
+    final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (myReceived.size() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(BatchedMessageSender.FLUSH_DELAY_MS / 5);
+    }
+    assertEquals(Arrays.asList("info", "progress"), received());
+  }
+
+  /**
+   * Occupies the scheduler thread, so scheduled flushes don't run until the returned latch is released
+   */
+  private CountDownLatch blockScheduler() throws InterruptedException {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    myScheduler.execute(new Runnable() {
+      public void run() {
+        started.countDown();
+        try {
+          release.await();
+        }
+        catch (InterruptedException ignored) {
+        }
+      }
+    });
+    assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    return release;
+  }
+
+  private void send(String text, boolean isProgress) {
+    final JpsRemoteProto.Message.Response response = isProgress
+                                                     ? ProtoUtil.createCompileProgressMessageResponse(text)
+                                                     : ProtoUtil.createCompileInfoMessageResponse(text, null);
+    mySender.send(response, isProgress);
+  }
+
+  private void flushWithLast(String text) {
+    final ChannelFuture future =
+      mySender.flush(ProtoUtil.toMessage(UUID.randomUUID(), ProtoUtil.createCompileInfoMessageResponse(text, null)));
+    assertNotNull(future);
+    assertTrue(future.awaitUninterruptibly(TIMEOUT_MS));
+  }
+
+  private List<String> received() {
+    synchronized (myReceived) {
+      return new ArrayList<String>(myReceived);
+    }
+  }
+}
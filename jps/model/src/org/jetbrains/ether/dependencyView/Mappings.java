@@ -3,6 +3,7 @@ package org.jetbrains.ether.dependencyView;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.io.FileUtil;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Opcodes;
 
@@ -1290,11 +1291,24 @@ public class Mappings {
       }
     }
 
-    myClassToSubclasses.putAll(delta.myClassToSubclasses);
+    replaceChanged(myClassToSubclasses, delta.myClassToSubclasses);
     mySourceFileToClasses.putAll(delta.mySourceFileToClasses);
     mySourceFileToUsages.putAll(delta.mySourceFileToUsages);
     mySourceFileToAnnotationUsages.putAll(delta.mySourceFileToAnnotationUsages);
-    myClassToSourceFile.putAll(delta.myClassToSourceFile);
+
+    for (DependencyContext.S className : delta.myClassToSourceFile.keyCollection()) {
+      final DependencyContext.S now = delta.myClassToSourceFile.get(className);
+
+      if (!now.equals(myClassToSourceFile.get(className))) {
+        myClassToSourceFile.put(className, now);
+      }
+    }
+
+    final Set<DependencyContext.S> compiledSources = new HashSet<DependencyContext.S>();
+
+    for (File c : compiled) {
+      compiledSources.add(myContext.get(FileUtil.toSystemIndependentName(c.getAbsolutePath())));
+    }
 
     for (DependencyContext.S file : delta.myClassToClassDependency.keyCollection()) {
       final Collection<DependencyContext.S> now = delta.myClassToClassDependency.get(file);
@@ -1304,19 +1318,35 @@ public class Mappings {
         myClassToClassDependency.put(file, now);
       }
       else {
-        final Collection<DependencyContext.S> removeSet = new HashSet<DependencyContext.S>();
+        final Set<DependencyContext.S> merged = new HashSet<DependencyContext.S>(past);
 
-        for (File c : compiled) {
-          removeSet.add(myContext.get(FileUtil.toSystemIndependentName(c.getAbsolutePath())));
-        }
+        merged.addAll(now);
 
-        removeSet.removeAll(now);
+        for (DependencyContext.S s : compiledSources) {
+          if (!now.contains(s)) {
+            merged.remove(s);
+          }
+        }
 
-        past.addAll(now);
-        past.removeAll(removeSet);
+        // only changed dependencies are written back
+        if (!merged.equals(past)) {
+          myClassToClassDependency.replace(file, merged);
+        }
+      }
+    }
+  }
 
-        myClassToClassDependency.remove(file);
-        myClassToClassDependency.put(file, past);
+  /**
+   * Stores values from the delta replacing the existing ones, skipping keys whose values did not change.
+   */
+  private static void replaceChanged(final MultiMaplet<DependencyContext.S, DependencyContext.S> target,
+                                     final MultiMaplet<DependencyContext.S, DependencyContext.S> delta) {
+    for (DependencyContext.S key : delta.keyCollection()) {
+      final Collection<DependencyContext.S> now = delta.get(key);
+      final Collection<DependencyContext.S> past = target.get(key);
+
+      if (past == null || !past.equals(now)) {
+        target.replace(key, now);
       }
     }
   }
@@ -1392,6 +1422,26 @@ public class Mappings {
     return (Set<ClassRepr>)mySourceFileToClasses.get(myContext.get(sourceFileName));
   }
 
+  @TestOnly
+  DependencyContext getContext() {
+    return myContext;
+  }
+
+  @TestOnly
+  MultiMaplet<DependencyContext.S, DependencyContext.S> getClassToSubclasses() {
+    return myClassToSubclasses;
+  }
+
+  @TestOnly
+  MultiMaplet<DependencyContext.S, DependencyContext.S> getClassToClassDependency() {
+    return myClassToClassDependency;
+  }
+
+  @TestOnly
+  Maplet<DependencyContext.S, DependencyContext.S> getClassToSourceFile() {
+    return myClassToSourceFile;
+  }
+
   public void close() {
     if (myRootDir != null) {
       // only close if you own the context
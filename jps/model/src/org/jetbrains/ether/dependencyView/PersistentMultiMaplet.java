@@ -83,6 +83,16 @@ class PersistentMultiMaplet<K, V> implements MultiMaplet<K, V> {
     }
   }
 
+  @Override
+  public void replace(final K key, final Collection<V> value) {
+    try {
+      myMap.put(key, value);
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   @Override
   public void put(final K key, final V value) {
     put(key, Collections.singleton(value));
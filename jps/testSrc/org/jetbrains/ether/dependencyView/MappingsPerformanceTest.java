@@ -0,0 +1,191 @@
+package org.jetbrains.ether.dependencyView;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Measures differentiate/integrate of a small delta against mappings of a synthetic project with 10000 classes,
+ * and checks that integrate stores the same mappings as replacing every entry coming from the delta would.
+ */
+public class MappingsPerformanceTest extends TestCase {
+  private static final int CLASS_COUNT = 10000;
+  private static final int CHANGED_COUNT = 100;
+  private static final int ROUNDS = 10;
+
+  private File myRootDir;
+  private Mappings myMappings;
+  // transient mappings sharing the context, integrated the way it was done before only changed entries were written back
+  private Mappings myExpected;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myRootDir = FileUtil.createTempDirectory("mappings", "");
+    myMappings = new Mappings(myRootDir);
+    myExpected = myMappings.createDelta();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myMappings.close();
+      FileUtil.delete(myRootDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testDifferentiateSmallDelta() throws Exception {
+    final List<File> allSources = new ArrayList<File>();
+    for (int i = 0; i < CLASS_COUNT; i++) {
+      allSources.add(getSource(i));
+    }
+    final Mappings initial = myMappings.createDelta();
+    for (int i = 0; i < CLASS_COUNT; i++) {
+      associate(initial, i, false);
+    }
+    myMappings.integrate(initial, allSources, Collections.<String>emptySet());
+    integrateReplacingAll(myExpected, initial, allSources);
+    assertSameMappings();
+
+    final List<File> changedSources = new ArrayList<File>();
+    for (int i = 0; i < CHANGED_COUNT; i++) {
+      changedSources.add(getSource(i * (CLASS_COUNT / CHANGED_COUNT)));
+    }
+
+    long differentiateTime = 0;
+    long integrateTime = 0;
+    for (int round = 0; round < ROUNDS; round++) {
+      final Mappings delta = myMappings.createDelta();
+      for (int i = 0; i < CHANGED_COUNT; i++) {
+        associate(delta, i * (CLASS_COUNT / CHANGED_COUNT), round % 2 == 0);
+      }
+
+      final Set<File> affected = new HashSet<File>();
+      long start = System.currentTimeMillis();
+      final boolean incremental = myMappings.differentiate(
+        delta, Collections.<String>emptySet(), changedSources, new HashSet<File>(changedSources), affected
+      );
+      differentiateTime += System.currentTimeMillis() - start;
+      assertTrue(incremental);
+
+      start = System.currentTimeMillis();
+      myMappings.integrate(delta, changedSources, Collections.<String>emptySet());
+      integrateTime += System.currentTimeMillis() - start;
+
+      integrateReplacingAll(myExpected, delta, changedSources);
+      assertSameMappings();
+    }
+
+    System.out.println("Mappings of " + CLASS_COUNT + " classes, " + CHANGED_COUNT + " changed per round: " +
+                       "differentiate " + differentiateTime / ROUNDS + "ms, integrate " + integrateTime / ROUNDS + "ms per round");
+  }
+
+  /**
+   * Removes and puts back every class-level entry of the delta, as integrate did before it learned to skip unchanged ones.
+   */
+  private static void integrateReplacingAll(final Mappings target, final Mappings delta, final Collection<File> compiled) {
+    target.getClassToSubclasses().putAll(delta.getClassToSubclasses());
+    target.getClassToSourceFile().putAll(delta.getClassToSourceFile());
+
+    final MultiMaplet<DependencyContext.S, DependencyContext.S> dependencies = target.getClassToClassDependency();
+    for (DependencyContext.S file : delta.getClassToClassDependency().keyCollection()) {
+      final Collection<DependencyContext.S> now = delta.getClassToClassDependency().get(file);
+      final Collection<DependencyContext.S> past = dependencies.get(file);
+
+      if (past == null) {
+        dependencies.put(file, new HashSet<DependencyContext.S>(now));
+      }
+      else {
+        final Collection<DependencyContext.S> removeSet = new HashSet<DependencyContext.S>();
+
+        for (File c : compiled) {
+          removeSet.add(target.getContext().get(FileUtil.toSystemIndependentName(c.getAbsolutePath())));
+        }
+
+        removeSet.removeAll(now);
+
+        final Set<DependencyContext.S> merged = new HashSet<DependencyContext.S>(past);
+        merged.addAll(now);
+        merged.removeAll(removeSet);
+
+        dependencies.remove(file);
+        dependencies.put(file, merged);
+      }
+    }
+  }
+
+  private void assertSameMappings() {
+    assertSameMappings(myExpected.getClassToSubclasses(), myMappings.getClassToSubclasses());
+    assertSameMappings(myExpected.getClassToClassDependency(), myMappings.getClassToClassDependency());
+
+    final Maplet<DependencyContext.S, DependencyContext.S> expected = myExpected.getClassToSourceFile();
+    final Maplet<DependencyContext.S, DependencyContext.S> actual = myMappings.getClassToSourceFile();
+    assertEquals(new HashSet<DependencyContext.S>(expected.keyCollection()), new HashSet<DependencyContext.S>(actual.keyCollection()));
+    for (DependencyContext.S key : expected.keyCollection()) {
+      assertEquals(expected.get(key), actual.get(key));
+    }
+  }
+
+  private static void assertSameMappings(final MultiMaplet<DependencyContext.S, DependencyContext.S> expected,
+                                         final MultiMaplet<DependencyContext.S, DependencyContext.S> actual) {
+    // persistent key collections don't list keys with values still in the append cache, so only no extra keys are checked
+    assertTrue(expected.keyCollection().containsAll(actual.keyCollection()));
+    for (DependencyContext.S key : expected.keyCollection()) {
+      assertEquals(toSet(expected.get(key)), toSet(actual.get(key)));
+    }
+  }
+
+  private static Set<DependencyContext.S> toSet(final Collection<DependencyContext.S> collection) {
+    return collection == null ? Collections.<DependencyContext.S>emptySet() : new HashSet<DependencyContext.S>(collection);
+  }
+
+  private static void associate(Mappings mappings, int index, boolean changed) {
+    final String classFileName = FileUtil.toSystemIndependentName(new File("out", getClassName(index) + ".class").getAbsolutePath());
+    final String sourceFileName = FileUtil.toSystemIndependentName(getSource(index).getAbsolutePath());
+    mappings.getCallback().associate(classFileName, Callbacks.getDefaultLookup(sourceFileName), createClass(index, changed));
+  }
+
+  private static File getSource(int index) {
+    return new File("src", getClassName(index) + ".java");
+  }
+
+  private static String getClassName(int index) {
+    return "pkg" + index % 100 + "/C" + index;
+  }
+
+  // class C<i> extends C<i/2> and calls a static method of C<i+1>; the changed version also has an extra method calling C<i+2>
+  private static ClassReader createClass(int index, boolean changed) {
+    final ClassWriter writer = new ClassWriter(0);
+    final String superName = index == 0 ? "java/lang/Object" : getClassName(index / 2);
+    writer.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC, getClassName(index), null, superName, null);
+    writer.visitSource("C" + index + ".java", null);
+
+    MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "s", "()V", null, null);
+    method.visitCode();
+    method.visitMethodInsn(Opcodes.INVOKESTATIC, getClassName((index + 1) % CLASS_COUNT), "s", "()V");
+    method.visitInsn(Opcodes.RETURN);
+    method.visitMaxs(0, 0);
+    method.visitEnd();
+
+    if (changed) {
+      method = writer.visitMethod(Opcodes.ACC_PUBLIC, "extra", "()V", null, null);
+      method.visitCode();
+      method.visitMethodInsn(Opcodes.INVOKESTATIC, getClassName((index + 2) % CLASS_COUNT), "s", "()V");
+      method.visitInsn(Opcodes.RETURN);
+      method.visitMaxs(0, 1);
+      method.visitEnd();
+    }
+
+    writer.visitEnd();
+    return new ClassReader(writer.toByteArray());
+  }
+}
@@ -22,6 +22,7 @@ import com.intellij.util.LocalTimeCounter;
 import com.intellij.util.text.CharArrayCharSequence;
 import com.intellij.util.text.CharArrayUtil;
 import com.intellij.util.text.CharSequenceBackedByArray;
+import com.intellij.util.text.ImmutableText;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -51,6 +52,12 @@ abstract class CharArray implements CharSequenceBackedByArray {
    */
   private static final int MAX_DEFERRED_CHANGES_NUMBER = 10000;
 
+  /**
+   * Texts of at least this number of chars are kept in an {@link ImmutableText} instead of a single array, negative value disables that.
+   * Editing such text doesn't move its tail and {@link #getCharArray()} returns an immutable snapshot of it.
+   */
+  private static final int IMMUTABLE_TEXT_THRESHOLD = Integer.getInteger("idea.document.immutable.text.threshold", -1);
+
   private final AtomicReference<TextChangesStorage> myDeferredChangesStorage = new AtomicReference<TextChangesStorage>();
 
   private int myStart;
@@ -63,6 +70,7 @@ abstract class CharArray implements CharSequenceBackedByArray {
 
   private CharSequence          myOriginalSequence;
   private char[]                myArray;
+  private ImmutableText         myImmutableText;
   private SoftReference<String> myStringRef; // buffers String value - for not to generate it every time
   private int                   myBufferSize;
   private int                   myDeferredShift;
@@ -151,7 +159,14 @@ abstract class CharArray implements CharSequenceBackedByArray {
   protected abstract void afterChangedUpdate(@NotNull DocumentEvent event, long newModificationStamp);
 
   public void setText(@Nullable final DocumentImpl subj, final CharSequence chars) {
-    myOriginalSequence = chars;
+    if (IMMUTABLE_TEXT_THRESHOLD >= 0 && chars.length() >= IMMUTABLE_TEXT_THRESHOLD && !isSubSequence()) {
+      myImmutableText = ImmutableText.valueOf(chars);
+      myOriginalSequence = null;
+    }
+    else {
+      myImmutableText = null;
+      myOriginalSequence = chars;
+    }
     myArray = null;
     myCount = chars.length();
     myStringRef = null;
@@ -194,6 +209,12 @@ abstract class CharArray implements CharSequenceBackedByArray {
   private void doReplace(int startOffset, int endOffset, CharSequence newString) {
     prepareForModification();
 
+    if (myImmutableText != null) {
+      myImmutableText = myImmutableText.replace(startOffset, endOffset, newString);
+      myCount = myImmutableText.length();
+      return;
+    }
+
     if (isDeferredChangeMode()) {
       storeChange(new TextChangeImpl(newString, startOffset, endOffset));
       if (myDebugDeferredProcessing) {
@@ -229,6 +250,12 @@ abstract class CharArray implements CharSequenceBackedByArray {
     }
     prepareForModification();
 
+    if (myImmutableText != null) {
+      myImmutableText = myImmutableText.delete(startIndex, endIndex);
+      myCount = myImmutableText.length();
+      return;
+    }
+
     if (isDeferredChangeMode()) {
       storeChange(new TextChangeImpl("", startIndex, endIndex));
       if (myDebugDeferredProcessing) {
@@ -255,6 +282,12 @@ abstract class CharArray implements CharSequenceBackedByArray {
   private void doInsert(final CharSequence s, final int startIndex) {
     prepareForModification();
 
+    if (myImmutableText != null) {
+      myImmutableText = myImmutableText.insert(startIndex, s);
+      myCount = myImmutableText.length();
+      return;
+    }
+
     if (isDeferredChangeMode()) {
       storeChange(new TextChangeImpl(s, startIndex));
       if (myDebugDeferredProcessing) {
@@ -321,6 +354,7 @@ abstract class CharArray implements CharSequenceBackedByArray {
 
   public CharSequence getCharArray() {
     if (myOriginalSequence != null) return myOriginalSequence;
+    if (myImmutableText != null) return myImmutableText;
     return this;
   }
 
@@ -330,6 +364,9 @@ abstract class CharArray implements CharSequenceBackedByArray {
       if (myOriginalSequence != null) {
         str = myOriginalSequence.toString();
       }
+      else if (myImmutableText != null) {
+        str = myImmutableText.toString();
+      }
       else if (!hasDeferredChanges()) {
         str = new String(myArray, myStart, myCount);
       }
@@ -364,6 +401,7 @@ abstract class CharArray implements CharSequenceBackedByArray {
     }
     i += myStart;
     if (myOriginalSequence != null) return myOriginalSequence.charAt(i);
+    if (myImmutableText != null) return myImmutableText.charAt(i);
     final char result;
     if (hasDeferredChanges()) {
       TextChangesStorage storage = myDeferredChangesStorage.get();
@@ -396,6 +434,9 @@ abstract class CharArray implements CharSequenceBackedByArray {
     if (myOriginalSequence != null) {
       return myOriginalSequence.subSequence(start, end);
     }
+    if (myImmutableText != null) {
+      return myImmutableText.subSequence(start, end);
+    }
     if (hasDeferredChanges()) {
       return new CharArray(myBufferSize, myDeferredChangesStorage.get(), myArray, myStart + start, myStart + end) {
         @NotNull
@@ -434,6 +475,9 @@ abstract class CharArray implements CharSequenceBackedByArray {
   
   @Override
   public char[] getChars() {
+    if (myImmutableText != null) {
+      return myImmutableText.getChars();
+    }
     if (myOriginalSequence != null) {
       if (myArray == null) {
         myArray = CharArrayUtil.fromSequence(myOriginalSequence);
@@ -455,7 +499,10 @@ abstract class CharArray implements CharSequenceBackedByArray {
   @Override
   public void getChars(final char[] dst, final int dstOffset) {
     flushDeferredChanged(myDeferredChangesStorage.get());
-    if (myOriginalSequence != null) {
+    if (myImmutableText != null) {
+      myImmutableText.getChars(dst, dstOffset);
+    }
+    else if (myOriginalSequence != null) {
       CharArrayUtil.getChars(myOriginalSequence,dst, dstOffset);
     }
     else {
@@ -478,7 +525,10 @@ abstract class CharArray implements CharSequenceBackedByArray {
   public CharSequence substring(final int start, final int end) {
     if (start == end) return "";
     final CharSequence result;
-    if (myOriginalSequence == null) {
+    if (myImmutableText != null) {
+      result = myImmutableText.subSequence(start, end);
+    }
+    else if (myOriginalSequence == null) {
       TextChangesStorage storage = myDeferredChangesStorage.get();
       storage.getLock().lock();
       try {
@@ -529,7 +579,8 @@ abstract class CharArray implements CharSequenceBackedByArray {
    *            <code>false</code> otherwise
    */
   public boolean isDeferredChangeMode() {
-    return !DISABLE_DEFERRED_PROCESSING && myDeferredChangeMode;
+    // changes of immutable text don't move the tail, there is nothing to optimize
+    return !DISABLE_DEFERRED_PROCESSING && myDeferredChangeMode && myImmutableText == null;
   }
 
   public boolean hasDeferredChanges() {
@@ -18,6 +18,7 @@ package com.intellij.openapi.editor.impl;
 import com.intellij.openapi.editor.ex.DisposableIterator;
 import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.Trinity;
+import com.intellij.util.ArrayUtil;
 import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.Processor;
 import com.intellij.util.SmartList;
@@ -26,11 +27,13 @@ import com.intellij.util.concurrency.AtomicFieldUpdater;
 import gnu.trove.TLongHashSet;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.lang.ref.ReferenceQueue;
 import java.util.ConcurrentModificationException;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -46,6 +49,16 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
   private final ReferenceQueue<T> myReferenceQueue = new ReferenceQueue<T>();
   private int deadReferenceCount;
 
+  /**
+   * Whether range queries may be served from an immutable snapshot of the tree without taking the read lock.
+   */
+  public static boolean USE_SNAPSHOTS = !"false".equals(System.getProperty("idea.interval.tree.snapshots"));
+  // the snapshot is built after this number of range queries without modifications at least
+  private static final int MIN_READS_BEFORE_SNAPSHOT = 16;
+  private volatile Snapshot<T> mySnapshot;
+  private volatile int myReadsModCount;
+  private final AtomicInteger myReadsSinceModification = new AtomicInteger();
+
   protected static class IntervalNode<E extends MutableInterval> extends RedBlackTree.Node<E> implements MutableInterval {
     private volatile int myStart;
     private volatile int myEnd;
@@ -369,6 +382,10 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
 
   @Override
   public boolean processOverlappingWith(int start, int end, @NotNull Processor<? super T> processor) {
+    Snapshot<T> snapshot = getSnapshot();
+    if (snapshot != null) {
+      return snapshot.processOverlappingWith(0, snapshot.size(), start, end, processor);
+    }
     try {
       l.readLock().lock();
       checkMax(true);
@@ -412,6 +429,10 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
   }
 
   public boolean processOverlappingWithOutside(int start, int end, @NotNull Processor<? super T> processor) {
+    Snapshot<T> snapshot = getSnapshot();
+    if (snapshot != null) {
+      return snapshot.processOverlappingWithOutside(0, snapshot.size(), start, end, processor);
+    }
     try {
       l.readLock().lock();
       checkMax(true);
@@ -453,6 +474,10 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
 
   @Override
   public boolean processContaining(int offset, @NotNull Processor<? super T> processor) {
+    Snapshot<T> snapshot = getSnapshot();
+    if (snapshot != null) {
+      return snapshot.processContaining(0, snapshot.size(), offset, processor);
+    }
     try {
       l.readLock().lock();
       checkMax(true);
@@ -493,6 +518,162 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     return processContaining(root.getRight(), offset, processor, modCountBefore, delta);
   }
 
+  @Override
+  protected void incModCount() {
+    super.incModCount();
+    mySnapshot = null; // don't keep the copied nodes and key references while the snapshot can't be used anyway
+  }
+
+  /**
+   * @return snapshot of the current tree state, or null if the tree is modified too often for building one to pay off
+   */
+  @Nullable
+  private Snapshot<T> getSnapshot() {
+    // the tree may be inconsistent in the middle of a modification, and the modification count is already incremented
+    if (!USE_SNAPSHOTS || ((ReentrantReadWriteLock)l).isWriteLockedByCurrentThread()) return null;
+    int currentModCount = modCount;
+    Snapshot<T> snapshot = mySnapshot;
+    if (snapshot != null && snapshot.myModCount == currentModCount) return snapshot;
+
+    // racy, but it's only a heuristic
+    if (myReadsModCount != currentModCount) {
+      myReadsModCount = currentModCount;
+      myReadsSinceModification.set(0);
+    }
+    // building takes time linear in the tree size, it's to be paid for by the queries running without the lock
+    if (myReadsSinceModification.incrementAndGet() < Math.max(MIN_READS_BEFORE_SNAPSHOT, keySize >> 8)) return null;
+
+    try {
+      l.readLock().lock();
+      snapshot = mySnapshot;
+      if (snapshot == null || snapshot.myModCount != modCount) {
+        snapshot = new Snapshot<T>(modCount);
+        snapshot.collect(getRoot(), 0);
+        snapshot.computeMaxEnds(0, snapshot.size());
+        mySnapshot = snapshot;
+      }
+      return snapshot;
+    }
+    finally {
+      l.readLock().unlock();
+    }
+  }
+
+  /**
+   * Immutable copy of the tree: its nodes in order with their offsets as of some modification count,
+   * kept as an implicit balanced tree over the arrays (the root of a range is in the middle of it).
+   * Interval keys are referenced the same way the tree does, the snapshot doesn't prevent them from being collected.
+   */
+  private static class Snapshot<T extends MutableInterval> {
+    private final int myModCount;
+    private int mySize;
+    private int[] myStarts = new int[16];
+    private int[] myEnds = new int[16];
+    private int[] myMaxEnds; // max of ends in the subtree rooted at the index
+    private Object[] myKeys = new Object[16]; // Getable<T>[]
+
+    private Snapshot(int modCount) {
+      myModCount = modCount;
+    }
+
+    private int size() {
+      return mySize;
+    }
+
+    // collects nodes in order, under the read lock
+    private void collect(IntervalNode<T> root, int deltaUpToRootExclusive) {
+      if (root == null) return;
+      assert root.isValid();
+      int delta = deltaUpToRootExclusive + root.delta;
+      collect(root.getLeft(), delta);
+      if (mySize == myStarts.length) {
+        int newLength = mySize * 2;
+        myStarts = ArrayUtil.realloc(myStarts, newLength);
+        myEnds = ArrayUtil.realloc(myEnds, newLength);
+        Object[] keys = new Object[newLength];
+        System.arraycopy(myKeys, 0, keys, 0, mySize);
+        myKeys = keys;
+      }
+      myStarts[mySize] = root.intervalStart() + delta;
+      myEnds[mySize] = root.intervalEnd() + delta;
+      myKeys[mySize] = root.intervals.toArray(new Getable[root.intervals.size()]);
+      mySize++;
+      collect(root.getRight(), delta);
+    }
+
+    private int computeMaxEnds(int from, int to) {
+      if (myMaxEnds == null) {
+        myMaxEnds = new int[mySize];
+      }
+      if (from >= to) return Integer.MIN_VALUE;
+      int middle = (from + to) >>> 1;
+      int maxEnd = Math.max(myEnds[middle], Math.max(computeMaxEnds(from, middle), computeMaxEnds(middle + 1, to)));
+      myMaxEnds[middle] = maxEnd;
+      return maxEnd;
+    }
+
+    private boolean processAliveKeys(int index, Processor<? super T> processor) {
+      //noinspection unchecked
+      Getable<T>[] keys = (Getable<T>[])myKeys[index];
+      for (Getable<T> getable : keys) {
+        T key = getable.get();
+        if (key != null && !processor.process(key)) return false;
+      }
+      return true;
+    }
+
+    // the same walks as the ones of the tree, but over the implicit tree of the range
+
+    private boolean processOverlappingWith(int from, int to, int start, int end, Processor<? super T> processor) {
+      if (from >= to) return true;
+      int middle = (from + to) >>> 1;
+      if (start > myMaxEnds[middle]) {
+        return true; // right of the rightmost interval in the subtree
+      }
+
+      if (!processOverlappingWith(from, middle, start, end, processor)) return false;
+      int myStartOffset = myStarts[middle];
+      if (Math.max(myStartOffset, start) <= Math.min(myEnds[middle], end) && !processAliveKeys(middle, processor)) return false;
+
+      if (end < myStartOffset) {
+        return true; // left of the root, cant be in the right subtree
+      }
+
+      return processOverlappingWith(middle + 1, to, start, end, processor);
+    }
+
+    private boolean processOverlappingWithOutside(int from, int to, int start, int end, Processor<? super T> processor) {
+      if (from >= to) return true;
+      int middle = (from + to) >>> 1;
+      if (!processOverlappingWithOutside(from, middle, start, end, processor)) return false;
+
+      int rootStartOffset = myStarts[middle];
+      if ((rootStartOffset < start || myEnds[middle] > end) && !processAliveKeys(middle, processor)) return false;
+
+      if (rootStartOffset >= start && myMaxEnds[middle] <= end) return true; // cant intersect outside
+
+      return processOverlappingWithOutside(middle + 1, to, start, end, processor);
+    }
+
+    private boolean processContaining(int from, int to, int offset, Processor<? super T> processor) {
+      if (from >= to) return true;
+      int middle = (from + to) >>> 1;
+      if (offset > myMaxEnds[middle]) {
+        return true; // right of the rightmost interval in the subtree
+      }
+
+      if (!processContaining(from, middle, offset, processor)) return false;
+      int myStartOffset = myStarts[middle];
+      if (myStartOffset <= offset && offset < myEnds[middle] && !processAliveKeys(middle, processor)) return false;
+
+      if (offset < myStartOffset) {
+        return true; // left of the root, cant be in the right subtree
+      }
+
+      return processContaining(middle + 1, to, offset, processor);
+    }
+  }
+
   @NotNull
   DisposableIterator<T> overlappingIterator(final int startOffset, final int endOffset) {
     final IntervalNode<T> firstOverlap = findMinOverlappingWith(getRoot(), new TextRangeInterval(startOffset, endOffset), modCount, 0);
@@ -697,7 +878,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
       l.writeLock().lock();
       checkMax(true);
       processReferenceQueue();
-      modCount++;
+      incModCount();
       IntervalNode<T> newNode = createNewNode(interval, start, end, greedyToLeft, greedyToRight, layer);
       IntervalNode<T> insertedNode = findOrInsert(newNode);
       if (insertedNode == newNode) {
@@ -847,7 +1028,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     if (!interval.isValid()) return false;
     try {
       l.writeLock().lock();
-      modCount++;
+      incModCount();
       if (!interval.isValid()) return false;
       checkBelongsToTheTree(interval, true);
       checkMax(true);
@@ -184,7 +184,7 @@ public class RangeMarkerTree<T extends RangeMarkerEx> extends IntervalTreeImpl<T
       if (size() == 0) return;
       checkMax(true);
 
-      modCount++;
+      incModCount();
       List<IntervalNode<T>> affected = new SmartList<IntervalNode<T>>();
       collectAffectedMarkersAndShiftSubtrees(getRoot(), e, affected, new NodeCachedOffsets());
       checkMax(false);
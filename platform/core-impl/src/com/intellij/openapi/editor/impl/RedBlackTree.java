@@ -26,7 +26,7 @@ public abstract class RedBlackTree<K> {
   public static boolean VERIFY = false;
   private static final int INDENT_STEP = 4;
   private int nodeSize; // number of nodes
-  protected int modCount;
+  protected volatile int modCount; // volatile since lock-free readers of IntervalTreeImpl check their snapshot against it
   protected Node<K> root;
 
   public RedBlackTree() {
@@ -139,7 +139,7 @@ public abstract class RedBlackTree<K> {
   }
 
   protected void deleteNode(@NotNull Node<K> n) {
-    modCount++;
+    incModCount();
 
     Node<K> e = n;
     while (e.getParent() != null) e = e.getParent();
@@ -424,8 +424,12 @@ public abstract class RedBlackTree<K> {
     return pathBlackCount;
   }
 
-  public void clear() {
+  protected void incModCount() {
     modCount++;
+  }
+
+  public void clear() {
+    incModCount();
     root = null;
     nodeSize = 0;
   }
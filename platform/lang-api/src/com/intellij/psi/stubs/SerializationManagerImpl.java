@@ -25,6 +25,7 @@ import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.tree.IStubFileElementType;
 import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.IOStatistics;
 import com.intellij.util.io.PersistentStringEnumerator;
 import org.jetbrains.annotations.NotNull;
 
@@ -255,6 +256,7 @@ public class SerializationManagerImpl extends SerializationManager implements Ap
       return; // already shut down
     }
     LOG.info("START StubSerializationManager SHUTDOWN");
+    LOG.info(IOStatistics.getSharedStringStatistics());
     try {
       myNameStorage.close();
       LOG.info("END StubSerializationManager SHUTDOWN");
@@ -463,7 +463,9 @@ public class FindInProjectUtil {
     boolean fast = false;
 
     if (TrigramIndex.ENABLED) {
-      TIntHashSet trigrams = TrigramBuilder.buildTrigram(findModel.getStringToFind());
+      TIntHashSet trigrams = findModel.isRegularExpressions()
+                             ? TrigramBuilder.buildTrigramForRegExp(findModel.getStringToFind())
+                             : TrigramBuilder.buildTrigram(findModel.getStringToFind());
       TIntIterator it = trigrams.iterator();
       while (it.hasNext()) {
         keys.add(it.next());
@@ -484,6 +486,11 @@ public class FindInProjectUtil {
       }
     }
 
+    if (findModel.isRegularExpressions()) {
+      // words of the pattern source say nothing about the matched text
+      return new Pair<Boolean, Collection<PsiFile>>(fast, resultFiles);
+    }
+
 
     // $ is used to separate words when indexing plain-text files but not when indexing
     // Java identifiers, so we can't consistently break a string containing $ characters into words
@@ -561,8 +568,8 @@ public class FindInProjectUtil {
   }
 
   private static boolean canOptimizeForFastWordSearch(final FindModel findModel) {
-    return !findModel.isRegularExpressions()
-           && (findModel.getCustomScope() == null || findModel.getCustomScope() instanceof GlobalSearchScope);
+    // for regular expressions the search is fast only if it could be narrowed by required trigrams
+    return findModel.getCustomScope() == null || findModel.getCustomScope() instanceof GlobalSearchScope;
   }
 
   private static int addToUsages(@NotNull Document document, @NotNull Processor<UsageInfo> consumer, @NotNull FindModel findModel,
@@ -151,6 +151,12 @@ public class LayeredLexerEditorHighlighter extends LexerEditorHighlighter {
 
   protected boolean updateLayers() { return false; }
 
+  @Override
+  protected boolean isBackgroundRelexAllowed() {
+    // the layers are updated along with the segments by the token processor
+    return false;
+  }
+
   public void documentChanged(DocumentEvent e) {
     // do NOT synchronize before updateLayers due to deadlock with PsiLock
     final boolean b = updateLayers();
@@ -24,6 +24,8 @@ import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.application.ReadActionProcessor;
 import com.intellij.openapi.application.Result;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
@@ -33,6 +35,7 @@ import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.persistent.PersistentFSConstants;
 import com.intellij.psi.*;
 import com.intellij.psi.impl.PsiManagerEx;
 import com.intellij.psi.impl.cache.CacheManager;
@@ -43,6 +46,7 @@ import com.intellij.psi.search.*;
 import com.intellij.psi.search.searches.IndexPatternSearch;
 import com.intellij.psi.util.PsiUtilBase;
 import com.intellij.util.CommonProcessors;
+import com.intellij.util.NotNullFunction;
 import com.intellij.util.Processor;
 import com.intellij.util.SmartList;
 import com.intellij.util.containers.CollectionFactory;
@@ -59,6 +63,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 public class PsiSearchHelperImpl implements PsiSearchHelper {
   private static final Logger LOG = Logger.getInstance("#com.intellij.psi.impl.search.PsiSearchHelperImpl");
+  private static final boolean CONTENT_PREFILTER = !"false".equals(System.getProperty("idea.search.content.prefilter"));
 
   private final PsiManagerEx myManager;
   private static final TodoItem[] EMPTY_TODO_ITEMS = new TodoItem[0];
@@ -254,13 +259,20 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
 
     String text = searcher.getPattern();
     List<VirtualFile> fileSet = getFilesWithText(scope, searchContext, caseSensitively, text, progress);
+    final List<StringSearcher> searchers = Collections.singletonList(searcher);
 
     if (progress != null) {
       progress.setText(PsiBundle.message("psi.search.for.word.progress", text));
     }
 
     try {
-      return processPsiFileRoots(fileSet, new Processor<PsiElement>() {
+      return processPsiFileRoots(fileSet, new NotNullFunction<VirtualFile, Collection<StringSearcher>>() {
+        @NotNull
+        @Override
+        public Collection<StringSearcher> fun(VirtualFile file) {
+          return searchers;
+        }
+      }, new Processor<PsiElement>() {
         @Override
         public boolean process(PsiElement psiRoot) {
           return LowLevelSearchUtil.processElementsContainingWordInElement(processor, psiRoot, searcher, true, progress);
@@ -274,7 +286,33 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
     }
   }
 
+  /**
+   * Checks the file text for occurrences of the searched words without building PSI or a document for it. Binary and too large
+   * files as well as files having a document, which may differ from the disk contents, may always contain occurrences.
+   */
+  private static boolean mayContainOccurrence(@NotNull VirtualFile file,
+                                              @NotNull Collection<StringSearcher> searchers,
+                                              @Nullable ProgressIndicator progress) {
+    if (!file.isValid() || file.getFileType().isBinary() || file.getLength() > PersistentFSConstants.MAX_INTELLISENSE_FILESIZE) {
+      return true;
+    }
+    if (FileDocumentManager.getInstance().getCachedDocument(file) != null) {
+      return true;
+    }
+    final CharSequence text = LoadTextUtil.loadText(file);
+    for (StringSearcher searcher : searchers) {
+      if (LowLevelSearchUtil.searchWord(text, 0, text.length(), searcher, progress) >= 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param searchers words searched in a file, files whose text has none of them are skipped before their PSI is built
+   */
   private boolean processPsiFileRoots(@NotNull List<VirtualFile> files,
+                                      @NotNull final NotNullFunction<VirtualFile, Collection<StringSearcher>> searchers,
                                       @NotNull final Processor<PsiElement> psiRootProcessor,
                                       final ProgressIndicator progress) {
     myManager.startBatchFilesProcessingMode();
@@ -287,7 +325,8 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
       boolean completed = JobUtil.invokeConcurrentlyUnderProgress(files, progress, false, new Processor<VirtualFile>() {
         @Override
         public boolean process(final VirtualFile vfile) {
-          final PsiFile file = ApplicationManager.getApplication().runReadAction(new Computable<PsiFile>() {
+          final boolean mayContain = !CONTENT_PREFILTER || mayContainOccurrence(vfile, searchers.fun(vfile), progress);
+          final PsiFile file = !mayContain ? null : ApplicationManager.getApplication().runReadAction(new Computable<PsiFile>() {
             @Override
             public PsiFile compute() {
               return myManager.findFile(vfile);
@@ -684,7 +723,18 @@ public class PsiSearchHelperImpl implements PsiSearchHelper {
         progress.setText(PsiBundle.message("psi.search.for.word.progress", result.toString()));
       }
 
-      return processPsiFileRoots(new ArrayList<VirtualFile>(candidateFiles.keySet()), new Processor<PsiElement>() {
+      final NotNullFunction<VirtualFile, Collection<StringSearcher>> fileSearchers = new NotNullFunction<VirtualFile, Collection<StringSearcher>>() {
+        @NotNull
+        @Override
+        public Collection<StringSearcher> fun(VirtualFile file) {
+          final List<StringSearcher> result = new ArrayList<StringSearcher>();
+          for (RequestWithProcessor request : candidateFiles.get(file)) {
+            result.add(searchers.get(request));
+          }
+          return result;
+        }
+      };
+      return processPsiFileRoots(new ArrayList<VirtualFile>(candidateFiles.keySet()), fileSearchers, new Processor<PsiElement>() {
                                    @Override
                                    public boolean process(PsiElement psiRoot) {
                                      final VirtualFile vfile = psiRoot.getContainingFile().getVirtualFile();
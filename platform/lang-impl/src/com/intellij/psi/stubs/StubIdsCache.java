@@ -0,0 +1,131 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU of decoded stub index values shared by all stub indices and limited by the memory the cached arrays occupy.
+ * A value of a key is a flat array of [fileId, stubCount, stubId...] groups, callers must not modify it.
+ */
+class StubIdsCache {
+  private static final int ENTRY_OVERHEAD = 64; // map entry, key object and array header
+
+  private final long myBudget;
+  private final LinkedHashMap<CacheKey, int[]> myMap = new LinkedHashMap<CacheKey, int[]>(256, 0.75f, true);
+  private long mySize;
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+
+  StubIdsCache(long budget) {
+    myBudget = budget;
+  }
+
+  @Nullable
+  public int[] get(Object index, Object key) {
+    final int[] value;
+    synchronized (myMap) {
+      value = myMap.get(new CacheKey(index, key));
+    }
+    (value != null ? myHits : myMisses).incrementAndGet();
+    return value;
+  }
+
+  public void put(Object index, Object key, int[] value) {
+    final long size = sizeOf(value);
+    if (size > myBudget / 4) {
+      return;
+    }
+    synchronized (myMap) {
+      final int[] old = myMap.put(new CacheKey(index, key), value);
+      if (old != null) {
+        mySize -= sizeOf(old);
+      }
+      mySize += size;
+      for (Iterator<int[]> it = myMap.values().iterator(); mySize > myBudget && it.hasNext();) {
+        mySize -= sizeOf(it.next());
+        it.remove();
+      }
+    }
+  }
+
+  public void remove(Object index, Object key) {
+    synchronized (myMap) {
+      final int[] old = myMap.remove(new CacheKey(index, key));
+      if (old != null) {
+        mySize -= sizeOf(old);
+      }
+    }
+  }
+
+  public void removeAll(Object index) {
+    synchronized (myMap) {
+      for (Iterator<Map.Entry<CacheKey, int[]>> it = myMap.entrySet().iterator(); it.hasNext();) {
+        final Map.Entry<CacheKey, int[]> entry = it.next();
+        if (entry.getKey().myIndex == index) {
+          mySize -= sizeOf(entry.getValue());
+          it.remove();
+        }
+      }
+    }
+  }
+
+  public long getHits() {
+    return myHits.get();
+  }
+
+  public long getMisses() {
+    return myMisses.get();
+  }
+
+  public long getSize() {
+    synchronized (myMap) {
+      return mySize;
+    }
+  }
+
+  private static long sizeOf(int[] value) {
+    return ENTRY_OVERHEAD + 4L * value.length;
+  }
+
+  private static final class CacheKey {
+    private final Object myIndex;
+    private final Object myKey;
+
+    private CacheKey(Object index, Object key) {
+      myIndex = index;
+      myKey = key;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof CacheKey)) return false;
+      final CacheKey cacheKey = (CacheKey)o;
+      return myIndex == cacheKey.myIndex && myKey.equals(cacheKey.myKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(myIndex) + myKey.hashCode();
+    }
+  }
+}
@@ -68,6 +68,7 @@ import java.util.concurrent.locks.Lock;
 public class StubIndexImpl extends StubIndex implements ApplicationComponent, PersistentStateComponent<StubIndexState> {
   private static final AtomicReference<Boolean> ourForcedClean = new AtomicReference<Boolean>(null);
   private static final Logger LOG = Logger.getInstance("#com.intellij.psi.stubs.StubIndexImpl");
+  private static final StubIdsCache ourStubIdsCache = new StubIdsCache(getStubIdsCacheBudget());
   private final Map<StubIndexKey<?,?>, MyIndex<?>> myIndices = new HashMap<StubIndexKey<?,?>, MyIndex<?>>();
   private final TObjectIntHashMap<ID<?, ?>> myIndexIdToVersionMap = new TObjectIntHashMap<ID<?, ?>>();
 
@@ -93,6 +94,18 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     dropUnregisteredIndices();
   }
   
+  private static long getStubIdsCacheBudget() {
+    final String kb = System.getProperty("idea.stub.index.cache.size.kb");
+    if (kb != null) {
+      try {
+        return Long.parseLong(kb) * 1024;
+      }
+      catch (NumberFormatException ignored) {
+      }
+    }
+    return Math.min(Runtime.getRuntime().maxMemory() / 64, 16 * 1024 * 1024);
+  }
+
   @Nullable
   public static StubIndexImpl getInstanceOrInvalidate() {
     if (ourForcedClean.compareAndSet(null, Boolean.TRUE)) {
@@ -124,7 +137,7 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
       try {
         final MapIndexStorage<K, TIntArrayList> storage = new MapIndexStorage<K, TIntArrayList>(IndexInfrastructure.getStorageFile(indexKey), extension.getKeyDescriptor(), new StubIdExternalizer(), 2 * 1024);
         final MemoryIndexStorage<K, TIntArrayList> memStorage = new MemoryIndexStorage<K, TIntArrayList>(storage);
-        myIndices.put(indexKey, new MyIndex<K>(memStorage));
+        myIndices.put(indexKey, new MyIndex<K>(memStorage, ourStubIdsCache));
         break;
       }
       catch (IOException e) {
@@ -192,82 +205,83 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
         // disable up-to-date check to avoid locks on attempt to acquire index write lock while holding at the same time the readLock for this index
         FileBasedIndex.disableUpToDateCheckForCurrentThread();
         index.getReadLock().lock();
-        final ValueContainer<TIntArrayList> container = index.getData(key);
-
-        container.forEach(new ValueContainer.ContainerAction<TIntArrayList>() {
-          @Override
-          public void perform(final int id, final TIntArrayList value) {
-            final VirtualFile file = IndexInfrastructure.findFileByIdIfCached(fs, id);
-            if (file != null && (scope == null || scope.contains(file))) {
-              StubTree stubTree = null;
-
-              final PsiFile _psifile = psiManager.findFile(file);
-              PsiFileWithStubSupport psiFile = null;
-
-              if (_psifile != null && !(_psifile instanceof PsiPlainTextFile)) {
-                if (_psifile instanceof PsiFileWithStubSupport) {
-                  psiFile = (PsiFileWithStubSupport)_psifile;
-                  stubTree = psiFile.getStubTree();
-                  if (stubTree == null && psiFile instanceof PsiFileImpl) {
-                    stubTree = ((PsiFileImpl)psiFile).calcStubTree();
-                  }
+        final int[] stubIds = index.getStubIds(key);
+
+        for (int offset = 0; offset < stubIds.length;) {
+          final int id = stubIds[offset];
+          final int count = stubIds[offset + 1];
+          final int from = offset + 2;
+          offset = from + count;
+          final VirtualFile file = IndexInfrastructure.findFileByIdIfCached(fs, id);
+          if (file != null && (scope == null || scope.contains(file))) {
+            StubTree stubTree = null;
+
+            final PsiFile _psifile = psiManager.findFile(file);
+            PsiFileWithStubSupport psiFile = null;
+
+            if (_psifile != null && !(_psifile instanceof PsiPlainTextFile)) {
+              if (_psifile instanceof PsiFileWithStubSupport) {
+                psiFile = (PsiFileWithStubSupport)_psifile;
+                stubTree = psiFile.getStubTree();
+                if (stubTree == null && psiFile instanceof PsiFileImpl) {
+                  stubTree = ((PsiFileImpl)psiFile).calcStubTree();
                 }
               }
+            }
 
-              if (stubTree != null || psiFile != null) {
-                if (stubTree == null) {
-                  stubTree = StubTreeLoader.getInstance().readFromVFile(project, file);
-                  if (stubTree != null) {
-                    final List<StubElement<?>> plained = stubTree.getPlainList();
-                    for (int i = 0; i < value.size(); i++) {
-                      final StubElement<?> stub = plained.get(value.get(i));
-                      final ASTNode tree = psiFile.findTreeForStub(stubTree, stub);
-
-                      if (tree != null) {
-                        if (tree.getElementType() == stubType(stub)) {
-                          result.add((Psi)tree.getPsi());
-                        }
-                        else {
-                          String persistedStubTree = ((PsiFileStubImpl)stubTree.getRoot()).printTree();
-
-                          String stubTreeJustBuilt =
-                              ((PsiFileStubImpl)((IStubFileElementType)((PsiFileImpl)psiFile).getContentElementType()).getBuilder()
-                                  .buildStubTree(psiFile)).printTree();
-
-                          StringBuilder builder = new StringBuilder();
-                          builder.append("Oops\n");
-
-
-                          builder.append("Recorded stub:-----------------------------------\n");
-                          builder.append(persistedStubTree);
-                          builder.append("\nAST built stub: ------------------------------------\n");
-                          builder.append(stubTreeJustBuilt);
-                          builder.append("\n");
-                          LOG.info(builder.toString());
-
-                          // requestReindex() may want to acquire write lock (for indices not requiring content loading)
-                          // thus, because here we are under read lock, need to use invoke later
-                          ApplicationManager.getApplication().invokeLater(new Runnable() {
-                            @Override
-                            public void run() {
-                              FileBasedIndex.getInstance().requestReindex(file);
-                            }
-                          }, ModalityState.NON_MODAL);
-                        }
+            if (stubTree != null || psiFile != null) {
+              if (stubTree == null) {
+                stubTree = StubTreeLoader.getInstance().readFromVFile(project, file);
+                if (stubTree != null) {
+                  final List<StubElement<?>> plained = stubTree.getPlainList();
+                  for (int i = from; i < from + count; i++) {
+                    final StubElement<?> stub = plained.get(stubIds[i]);
+                    final ASTNode tree = psiFile.findTreeForStub(stubTree, stub);
+
+                    if (tree != null) {
+                      if (tree.getElementType() == stubType(stub)) {
+                        result.add((Psi)tree.getPsi());
+                      }
+                      else {
+                        String persistedStubTree = ((PsiFileStubImpl)stubTree.getRoot()).printTree();
+
+                        String stubTreeJustBuilt =
+                            ((PsiFileStubImpl)((IStubFileElementType)((PsiFileImpl)psiFile).getContentElementType()).getBuilder()
+                                .buildStubTree(psiFile)).printTree();
+
+                        StringBuilder builder = new StringBuilder();
+                        builder.append("Oops\n");
+
+
+                        builder.append("Recorded stub:-----------------------------------\n");
+                        builder.append(persistedStubTree);
+                        builder.append("\nAST built stub: ------------------------------------\n");
+                        builder.append(stubTreeJustBuilt);
+                        builder.append("\n");
+                        LOG.info(builder.toString());
+
+                        // requestReindex() may want to acquire write lock (for indices not requiring content loading)
+                        // thus, because here we are under read lock, need to use invoke later
+                        ApplicationManager.getApplication().invokeLater(new Runnable() {
+                          @Override
+                          public void run() {
+                            FileBasedIndex.getInstance().requestReindex(file);
+                          }
+                        }, ModalityState.NON_MODAL);
                       }
                     }
                   }
                 }
-                else {
-                  final List<StubElement<?>> plained = stubTree.getPlainList();
-                  for (int i = 0; i < value.size(); i++) {
-                    result.add((Psi)plained.get(value.get(i)).getPsi());
-                  }
+              }
+              else {
+                final List<StubElement<?>> plained = stubTree.getPlainList();
+                for (int i = from; i < from + count; i++) {
+                  result.add((Psi)plained.get(stubIds[i]).getPsi());
                 }
               }
             }
           }
-        });
+        }
       }
       finally {
         index.getReadLock().unlock();
@@ -360,15 +374,8 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
   }
 
   public void cleanupMemoryStorage() {
-    for (UpdatableIndex index : myIndices.values()) {
-      final IndexStorage indexStorage = ((MapReduceIndex)index).getStorage();
-      index.getWriteLock().lock();
-      try {
-        ((MemoryIndexStorage)indexStorage).clearMemoryMap();
-      }
-      finally {
-        index.getWriteLock().unlock();
-      }
+    for (MyIndex<?> index : myIndices.values()) {
+      index.clearMemoryStorage();
     }
   }
 
@@ -435,14 +442,112 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     }
   }
 
-  private static class MyIndex<K> extends MapReduceIndex<K, TIntArrayList, Void> {
-    public MyIndex(final IndexStorage<K, TIntArrayList> storage) {
+  /**
+   * @return number of stub index lookups answered from the decoded values cache
+   */
+  public static long getCacheHits() {
+    return ourStubIdsCache.getHits();
+  }
+
+  public static long getCacheMisses() {
+    return ourStubIdsCache.getMisses();
+  }
+
+  /**
+   * @return approximate number of bytes occupied by the decoded values cache
+   */
+  public static long getCacheSize() {
+    return ourStubIdsCache.getSize();
+  }
+
+  static class MyIndex<K> extends MapReduceIndex<K, TIntArrayList, Void> {
+    private final StubIdsCache myCache;
+
+    public MyIndex(final IndexStorage<K, TIntArrayList> storage, final StubIdsCache cache) {
       super(null, null, storage);
+      myCache = cache;
+    }
+
+    /**
+     * Should be called under read lock.
+     * @return [fileId, stubCount, stubId...] groups for every file containing the key, must not be modified
+     */
+    @NotNull
+    public int[] getStubIds(final K key) throws StorageException {
+      final int[] cached = myCache.get(this, key);
+      if (cached != null) {
+        return cached;
+      }
+
+      final TIntArrayList result = new TIntArrayList();
+      getData(key).forEach(new ValueContainer.ContainerAction<TIntArrayList>() {
+        @Override
+        public void perform(final int id, final TIntArrayList value) {
+          result.add(id);
+          result.add(value.size());
+          result.add(value.toNativeArray());
+        }
+      });
+      final int[] stubIds = result.toNativeArray();
+      myCache.put(this, key, stubIds);
+      return stubIds;
+    }
+
+    @Override
+    public void updateWithMap(final int inputId, final Map<K, TIntArrayList> newData, final Callable<Collection<K>> oldKeysGetter) throws StorageException {
+      getWriteLock().lock();
+      try {
+        final List<K> changedKeys = new ArrayList<K>(newData.keySet());
+        try {
+          super.updateWithMap(inputId, newData, new Callable<Collection<K>>() {
+            @Override
+            public Collection<K> call() throws Exception {
+              final Collection<K> oldKeys = oldKeysGetter.call();
+              changedKeys.addAll(oldKeys);
+              return oldKeys;
+            }
+          });
+        }
+        finally {
+          for (K key : changedKeys) {
+            myCache.remove(this, key);
+          }
+        }
+      }
+      finally {
+        getWriteLock().unlock();
+      }
     }
 
     @Override
-    public void updateWithMap(final int inputId, final Map<K, TIntArrayList> newData, Callable<Collection<K>> oldKeysGetter) throws StorageException {
-      super.updateWithMap(inputId, newData, oldKeysGetter);
+    public void clear() throws StorageException {
+      try {
+        super.clear();
+      }
+      finally {
+        myCache.removeAll(this);
+      }
+    }
+
+    public void clearMemoryStorage() {
+      getWriteLock().lock();
+      try {
+        ((MemoryIndexStorage)getStorage()).clearMemoryMap();
+        myCache.removeAll(this);
+      }
+      finally {
+        getWriteLock().unlock();
+      }
+    }
+
+    @Override
+    public void dispose() {
+      try {
+        super.dispose();
+      }
+      finally {
+        myCache.removeAll(this);
+      }
     }
   }
 
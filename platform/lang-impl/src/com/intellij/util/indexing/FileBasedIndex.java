@@ -71,8 +71,6 @@ import com.intellij.util.io.*;
 import com.intellij.util.io.storage.HeavyProcessLatch;
 import com.intellij.util.messages.MessageBus;
 import com.intellij.util.messages.MessageBusConnection;
-import gnu.trove.TIntHashSet;
-import gnu.trove.TIntIterator;
 import gnu.trove.TObjectIntHashMap;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
@@ -956,34 +954,18 @@ public class FileBasedIndex implements ApplicationComponent {
       final Lock readLock = index.getReadLock();
       try {
         readLock.lock();
-        List<TIntHashSet> locals = new ArrayList<TIntHashSet>();
+        List<int[]> locals = new ArrayList<int[]>(dataKeys.size());
         for (K dataKey : dataKeys) {
-          TIntHashSet local = new TIntHashSet();
+          final int[] local = index.getData(dataKey).getSortedInputIds();
+          if (local.length == 0) return true;
           locals.add(local);
-          final ValueContainer<V> container = index.getData(dataKey);
-
-          for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext();) {
-            final V value = valueIt.next();
-            for (final ValueContainer.IntIterator inputIdsIterator = container.getInputIdsIterator(value); inputIdsIterator.hasNext();) {
-              final int id = inputIdsIterator.next();
-              local.add(id);
-            }
-          }
         }
 
         if (locals.isEmpty()) return true;
 
-        Collections.sort(locals, new Comparator<TIntHashSet>() {
-          @Override
-          public int compare(TIntHashSet o1, TIntHashSet o2) {
-            return o1.size() - o2.size();
-          }
-        });
-
         final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
-        TIntIterator ids = join(locals).iterator();
-        while (ids.hasNext()) {
-          int id = ids.next();
+        final int[] ids = intersect(locals);
+        for (int id : ids) {
           //VirtualFile file = IndexInfrastructure.findFileById(fs, id);
           VirtualFile file = IndexInfrastructure.findFileByIdIfCached(fs, id);
           if (file != null && filter.accept(file)) {
@@ -1010,22 +992,69 @@ public class FileBasedIndex implements ApplicationComponent {
     return true;
   }
 
-  private static TIntHashSet join(List<TIntHashSet> locals) {
-    TIntHashSet result = locals.get(0);
-    if (locals.size() > 1) {
-      TIntIterator it = result.iterator();
+  /**
+   * Intersects sorted id lists. The shortest list drives the intersection, and positions in the longer ones are found by
+   * galloping search, so the time is proportional to the length of the shortest list rather than to the total size.
+   */
+  private static int[] intersect(List<int[]> sortedLists) {
+    Collections.sort(sortedLists, new Comparator<int[]>() {
+      @Override
+      public int compare(int[] o1, int[] o2) {
+        return o1.length - o2.length;
+      }
+    });
 
-      while (it.hasNext()) {
-        int id = it.next();
-        for (int i = 1; i < locals.size(); i++) {
-          if (!locals.get(i).contains(id)) {
-            it.remove();
-            break;
-          }
+    int[] result = sortedLists.get(0);
+    int resultSize = result.length;
+    for (int listIdx = 1; listIdx < sortedLists.size() && resultSize > 0; listIdx++) {
+      final int[] list = sortedLists.get(listIdx);
+      if (result == sortedLists.get(0)) {
+        result = result.clone();
+      }
+      int newSize = 0;
+      int position = 0;
+      for (int i = 0; i < resultSize && position < list.length; i++) {
+        final int id = result[i];
+        position = gallop(list, position, id);
+        if (position < list.length && list[position] == id) {
+          result[newSize++] = id;
+          position++;
         }
       }
+      resultSize = newSize;
     }
-    return result;
+    return resultSize == result.length ? result : ArrayUtil.realloc(result, resultSize);
+  }
+
+  /**
+   * @return the smallest index not less than <code>from</code> such that <code>list[index] >= id</code>, or list length if there is none
+   */
+  private static int gallop(int[] list, int from, int id) {
+    if (from >= list.length || list[from] >= id) {
+      return from;
+    }
+    // list[low] < id is maintained, the step doubles until an element not less than id is passed
+    int low = from;
+    int step = 1;
+    int high = low + step;
+    while (high < list.length && list[high] < id) {
+      low = high;
+      step <<= 1;
+      high = low + step;
+    }
+    high = Math.min(high, list.length);
+
+    int lo = low + 1;
+    while (lo < high) {
+      final int mid = (lo + high) >>> 1;
+      if (list[mid] < id) {
+        lo = mid + 1;
+      }
+      else {
+        high = mid;
+      }
+    }
+    return lo;
   }
 
   public <K> void scheduleRebuild(final ID<K, ?> indexId, final Throwable e) {
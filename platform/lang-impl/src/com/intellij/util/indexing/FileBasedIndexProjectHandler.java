@@ -45,6 +45,7 @@ public class FileBasedIndexProjectHandler extends AbstractProjectComponent imple
   private final ProjectRootManagerEx myRootManager;
   private final FileTypeManager myFileTypeManager;
   private final ProjectFileExclusionManagerImpl myExclusionManager;
+  private final IndexingPriorities myPriorities;
 
   public FileBasedIndexProjectHandler(final FileBasedIndex index, final Project project, final ProjectRootManagerEx rootManager, FileTypeManager ftManager, final ProjectManager projectManager) {
     super(project);
@@ -52,6 +53,7 @@ public class FileBasedIndexProjectHandler extends AbstractProjectComponent imple
     myRootManager = rootManager;
     myFileTypeManager = ftManager;
     myExclusionManager = ProjectFileExclusionManagerImpl.getInstance(project);
+    myPriorities = new IndexingPriorities(project);
 
     final StartupManagerEx startupManager = (StartupManagerEx)StartupManager.getInstance(project);
     if (startupManager != null) {
@@ -78,6 +80,14 @@ public class FileBasedIndexProjectHandler extends AbstractProjectComponent imple
     }
   }
 
+  /**
+   * @return files in the order they should be indexed, the files the user works with come first
+   */
+  static VirtualFile[] sortByIndexingPriority(final Project project, final Collection<VirtualFile> files) {
+    final FileBasedIndexProjectHandler handler = project.getComponent(FileBasedIndexProjectHandler.class);
+    return handler != null ? handler.myPriorities.sort(files) : VfsUtil.toVirtualFileArray(files);
+  }
+
   @Override
   public boolean isInSet(final VirtualFile file) {
     final ProjectFileIndex index = myRootManager.getFileIndex();
@@ -118,7 +128,7 @@ public class FileBasedIndexProjectHandler extends AbstractProjectComponent imple
     @Override
     public VirtualFile[] queryNeededFiles(ProgressIndicator indicator) {
       Collection<VirtualFile> files = myIndex.getFilesToUpdate(myProject);
-      return VfsUtil.toVirtualFileArray(files);
+      return myPriorities.sort(files);
     }
 
     @Override
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerAdapter;
+import com.intellij.openapi.fileEditor.FileEditorManagerEvent;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.containers.ConcurrentHashSet;
+
+import java.util.*;
+
+/**
+ * Orders files queued for indexing so that the files the user works with are indexed first:
+ * files open in editors, then recently selected files, then files of the module of the selected file, then the rest.
+ * The editor state is tracked from the editor events since indexing queries the order from a background thread.
+ */
+class IndexingPriorities extends FileEditorManagerAdapter {
+  private static final int RECENT_FILES_LIMIT = 50;
+
+  private final Project myProject;
+  private final Set<VirtualFile> myOpenFiles = new ConcurrentHashSet<VirtualFile>();
+  private final LinkedHashSet<VirtualFile> myRecentFiles = new LinkedHashSet<VirtualFile>(); // guarded by itself
+  private volatile VirtualFile mySelectedFile;
+
+  IndexingPriorities(final Project project) {
+    myProject = project;
+    project.getMessageBus().connect(project).subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER, this);
+  }
+
+  @Override
+  public void fileOpened(FileEditorManager source, VirtualFile file) {
+    myOpenFiles.add(file);
+  }
+
+  @Override
+  public void fileClosed(FileEditorManager source, VirtualFile file) {
+    myOpenFiles.remove(file);
+    addRecentFile(file);
+  }
+
+  @Override
+  public void selectionChanged(FileEditorManagerEvent event) {
+    final VirtualFile file = event.getNewFile();
+    mySelectedFile = file;
+    if (file != null) {
+      addRecentFile(file);
+    }
+  }
+
+  private void addRecentFile(final VirtualFile file) {
+    synchronized (myRecentFiles) {
+      myRecentFiles.remove(file);
+      myRecentFiles.add(file);
+      if (myRecentFiles.size() > RECENT_FILES_LIMIT) {
+        final Iterator<VirtualFile> eldest = myRecentFiles.iterator();
+        eldest.next();
+        eldest.remove();
+      }
+    }
+  }
+
+  public VirtualFile[] sort(final Collection<VirtualFile> files) {
+    final Set<VirtualFile> recentFiles;
+    synchronized (myRecentFiles) {
+      if (myOpenFiles.isEmpty() && myRecentFiles.isEmpty()) {
+        return VfsUtil.toVirtualFileArray(files);
+      }
+      recentFiles = new HashSet<VirtualFile>(myRecentFiles);
+    }
+
+    final ProjectFileIndex fileIndex = ProjectRootManager.getInstance(myProject).getFileIndex();
+    final VirtualFile selectedFile = mySelectedFile;
+    final Module selectedModule = selectedFile != null && selectedFile.isValid() ? fileIndex.getModuleForFile(selectedFile) : null;
+
+    final List<VirtualFile> openFiles = new ArrayList<VirtualFile>();
+    final List<VirtualFile> recent = new ArrayList<VirtualFile>();
+    final List<VirtualFile> moduleFiles = new ArrayList<VirtualFile>();
+    final List<VirtualFile> otherFiles = new ArrayList<VirtualFile>(files.size());
+    for (VirtualFile file : files) {
+      if (myOpenFiles.contains(file)) {
+        openFiles.add(file);
+      }
+      else if (recentFiles.contains(file)) {
+        recent.add(file);
+      }
+      else if (selectedModule != null && file.isValid() && selectedModule.equals(fileIndex.getModuleForFile(file))) {
+        moduleFiles.add(file);
+      }
+      else {
+        otherFiles.add(file);
+      }
+    }
+
+    final List<VirtualFile> result = new ArrayList<VirtualFile>(files.size());
+    result.addAll(openFiles);
+    result.addAll(recent);
+    result.addAll(moduleFiles);
+    result.addAll(otherFiles);
+    return result.toArray(new VirtualFile[result.size()]);
+  }
+}
@@ -22,7 +22,6 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.CollectingContentIterator;
-import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 
 import java.util.List;
@@ -56,7 +55,7 @@ public class UnindexedFilesUpdater implements CacheUpdater {
     List<VirtualFile> files = finder.getFiles();
     LOG.info("Unindexed files update started: " + files.size() + " files to update");
     myStarted = System.currentTimeMillis();
-    return VfsUtil.toVirtualFileArray(files);
+    return FileBasedIndexProjectHandler.sortByIndexingPriority(myProject, files);
   }
 
   @Override
@@ -16,6 +16,9 @@
 
 package com.intellij.util.indexing;
 
+import com.intellij.util.ArrayUtil;
+
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
@@ -44,6 +47,35 @@ public abstract class ValueContainer<Value> {
 
   public abstract int size();
 
+  /**
+   * @return ids of all inputs associated with any value of this container, in ascending order without duplicates
+   */
+  public int[] getSortedInputIds() {
+    final Iterator<Value> valueIterator = getValueIterator();
+    if (!valueIterator.hasNext()) {
+      return ArrayUtil.EMPTY_INT_ARRAY;
+    }
+    int[] ids = getInputIds(valueIterator.next()).clone();
+    int count = ids.length;
+    while (valueIterator.hasNext()) {
+      final int[] valueIds = getInputIds(valueIterator.next());
+      if (count + valueIds.length > ids.length) {
+        ids = ArrayUtil.realloc(ids, Math.max(count + valueIds.length, ids.length * 2));
+      }
+      System.arraycopy(valueIds, 0, ids, count, valueIds.length);
+      count += valueIds.length;
+    }
+    Arrays.sort(ids, 0, count);
+
+    int distinct = 0;
+    for (int i = 0; i < count; i++) {
+      if (distinct == 0 || ids[distinct - 1] != ids[i]) {
+        ids[distinct++] = ids[i];
+      }
+    }
+    return distinct == ids.length ? ids : ArrayUtil.realloc(ids, distinct);
+  }
+
 
   public interface ContainerAction<T> {
     void perform(int id, T value);
@@ -16,9 +16,9 @@
 
 package com.intellij.util.indexing;
 
+import com.intellij.openapi.util.Comparing;
 import com.intellij.util.ArrayUtil;
-import gnu.trove.TIntHashSet;
-import gnu.trove.TIntIterator;
+import gnu.trove.TIntObjectHashMap;
 
 import java.util.*;
 
@@ -27,111 +27,239 @@ import java.util.*;
  *         Date: Dec 20, 2007
  */
 class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implements Cloneable{
+  private static final Object NULL_VALUE = new Object();
+
+  // most containers, e.g. all containers of scalar indices, hold a single value: it is kept without a map
+  private Value myValue;
+  private Object myInputIds; // Integer or IdList, null if the container is empty
+  // created when the second value is added
   private HashMap<Value, Object> myInputIdMapping;
+  // input id -> value or ValueList, built on first removeAllValues() so that it doesn't have to scan all values
+  private TIntObjectHashMap<Object> myInputIdToValues;
 
   public ValueContainerImpl() {
-    myInputIdMapping = new HashMap<Value, Object>(16, 0.98f);
   }
   
   @Override
   public void addValue(int inputId, Value value) {
+    if (myInputIdMapping == null) {
+      if (myInputIds == null) {
+        myValue = value;
+        myInputIds = inputId;
+        return;
+      }
+      if (Comparing.equal(myValue, value)) {
+        myInputIds = addId(myInputIds, inputId);
+        return;
+      }
+      myInputIdMapping = new HashMap<Value, Object>(16, 0.98f);
+      myInputIdMapping.put(myValue, myInputIds);
+      myValue = null;
+      myInputIds = null;
+    }
+
     final Object input = myInputIdMapping.get(value);
-    if (input == null) {
-      //idSet = new TIntHashSet(3, 0.98f);
-      myInputIdMapping.put(value, inputId);
+    myInputIdMapping.put(value, input == null ? inputId : addId(input, inputId));
+    if (myInputIdToValues != null) {
+      addInverted(inputId, value);
     }
-    else {
-      final TIntHashSet idSet;
-      if (input instanceof Integer) {
-        idSet = new IdSet(3, 0.98f);
-        idSet.add(((Integer)input).intValue());
-        myInputIdMapping.put(value, idSet);
-      }
-      else {
-        idSet = (TIntHashSet)input;
+  }
+
+  private static Object addId(Object input, int inputId) {
+    if (input instanceof Integer) {
+      final int id = ((Integer)input).intValue();
+      if (id == inputId) {
+        return input;
       }
-      idSet.add(inputId);
+      final IdList idList = new IdList();
+      idList.add(id);
+      idList.add(inputId);
+      return idList;
     }
+    ((IdList)input).add(inputId);
+    return input;
   }
 
   @Override
   public int size() {
-    return myInputIdMapping.size();
+    if (myInputIdMapping != null) {
+      return myInputIdMapping.size();
+    }
+    return myInputIds == null ? 0 : 1;
   }
 
   @Override
   public void removeAllValues(int inputId) {
-    final List<Value> toRemove= new ArrayList<Value>();
-    for (final Iterator<Value> valueIterator = getValueIterator(); valueIterator.hasNext();) {
-      final Value value = valueIterator.next();
-      if (isAssociated(value, inputId)) {
-        toRemove.add(value);
+    if (myInputIdMapping == null) {
+      if (myInputIds != null) {
+        removeValue(inputId, myValue);
+      }
+      return;
+    }
+
+    if (myInputIdToValues == null) {
+      buildInverted();
+    }
+    final Object values = myInputIdToValues.get(inputId);
+    if (values instanceof ValueList) {
+      for (Object value : ((ValueList)values).toArray()) {
+        removeValue(inputId, unwrap(value));
       }
     }
-    for (Value value : toRemove) {
-      removeValue(inputId, value);
+    else if (values != null) {
+      removeValue(inputId, unwrap(values));
     }
   }
 
   @Override
   public boolean removeValue(int inputId, Value value) {
-    final Object input = myInputIdMapping.get(value);
+    final Object input = getInput(value);
     if (input == null) {
       return false;
     }
-    if (input instanceof TIntHashSet) {
-      final TIntHashSet idSet = (TIntHashSet)input;
-      final boolean reallyRemoved = idSet.remove(inputId);
-      if (reallyRemoved) {
-        idSet.compact();
+    Object remaining = null;
+    if (input instanceof IdList) {
+      final IdList idList = (IdList)input;
+      if (!idList.remove(inputId)) {
+        return false;
       }
-      if (!idSet.isEmpty()) {
-        return reallyRemoved;
+      if (!idList.isEmpty()) {
+        remaining = idList;
       }
     }
-    else if (input instanceof Integer) {
-      if (((Integer)input).intValue() != inputId) {
-        return false;
+    else if (((Integer)input).intValue() != inputId) {
+      return false;
+    }
+
+    if (myInputIdMapping != null) {
+      if (remaining == null) {
+        myInputIdMapping.remove(value);
+      }
+      if (myInputIdToValues != null) {
+        removeInverted(inputId, value);
       }
     }
-    myInputIdMapping.remove(value);
+    else if (remaining == null) {
+      myValue = null;
+      myInputIds = null;
+    }
     return true;
   }
 
+  private Object getInput(Value value) {
+    if (myInputIdMapping != null) {
+      return myInputIdMapping.get(value);
+    }
+    return myInputIds != null && Comparing.equal(myValue, value) ? myInputIds : null;
+  }
+
+  private void buildInverted() {
+    myInputIdToValues = new TIntObjectHashMap<Object>();
+    for (Map.Entry<Value, Object> entry : myInputIdMapping.entrySet()) {
+      final Value value = entry.getKey();
+      final Object input = entry.getValue();
+      if (input instanceof IdList) {
+        for (IntIterator it = ((IdList)input).iterator(); it.hasNext();) {
+          addInverted(it.next(), value);
+        }
+      }
+      else {
+        addInverted(((Integer)input).intValue(), value);
+      }
+    }
+  }
+
+  private void addInverted(int inputId, Value value) {
+    final Object wrapped = value == null ? NULL_VALUE : value;
+    final Object values = myInputIdToValues.get(inputId);
+    if (values == null) {
+      myInputIdToValues.put(inputId, wrapped);
+    }
+    else if (values instanceof ValueList) {
+      if (!((ValueList)values).contains(wrapped)) {
+        ((ValueList)values).add(wrapped);
+      }
+    }
+    else if (!values.equals(wrapped)) {
+      final ValueList list = new ValueList();
+      list.add(values);
+      list.add(wrapped);
+      myInputIdToValues.put(inputId, list);
+    }
+  }
+
+  private void removeInverted(int inputId, Value value) {
+    final Object wrapped = value == null ? NULL_VALUE : value;
+    final Object values = myInputIdToValues.get(inputId);
+    if (values instanceof ValueList) {
+      final ValueList list = (ValueList)values;
+      list.remove(wrapped);
+      if (list.size() == 1) {
+        myInputIdToValues.put(inputId, list.get(0));
+      }
+    }
+    else if (values != null && values.equals(wrapped)) {
+      myInputIdToValues.remove(inputId);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private Value unwrap(Object value) {
+    return value == NULL_VALUE ? null : (Value)value;
+  }
+
   @Override
   public Iterator<Value> getValueIterator() {
-    return Collections.unmodifiableSet(myInputIdMapping.keySet()).iterator();
+    if (myInputIdMapping != null) {
+      return Collections.unmodifiableSet(myInputIdMapping.keySet()).iterator();
+    }
+    if (myInputIds == null) {
+      return Collections.<Value>emptyList().iterator();
+    }
+    return Collections.singleton(myValue).iterator();
   }
 
   @Override
   public List<Value> toValueList() {
-    if (myInputIdMapping.isEmpty()) {
+    if (myInputIdMapping != null) {
+      return new ArrayList<Value>(myInputIdMapping.keySet());
+    }
+    if (myInputIds == null) {
       return Collections.emptyList();
     }
-    return new ArrayList<Value>(myInputIdMapping.keySet());
+    final List<Value> list = new ArrayList<Value>(1);
+    list.add(myValue);
+    return list;
   }
 
   @Override
   public int[] getInputIds(final Value value) {
-    final Object input = myInputIdMapping.get(value);
-    final int[] idSet;
-    if (input instanceof TIntHashSet) {
-      idSet = ((TIntHashSet)input).toArray();
+    return toArray(getInput(value));
+  }
+
+  @Override
+  public int[] getSortedInputIds() {
+    if (myInputIdMapping != null) {
+      return super.getSortedInputIds();
     }
-    else if (input instanceof Integer ){
-      idSet = new int[] {((Integer)input).intValue()};
+    return toArray(myInputIds);
+  }
+
+  private static int[] toArray(Object input) {
+    if (input instanceof IdList) {
+      return ((IdList)input).toArray();
     }
-    else {
-      idSet = ArrayUtil.EMPTY_INT_ARRAY;
+    if (input instanceof Integer) {
+      return new int[] {((Integer)input).intValue()};
     }
-    return idSet;
+    return ArrayUtil.EMPTY_INT_ARRAY;
   }
 
   @Override
   public boolean isAssociated(final Value value, final int inputId) {
-    final Object input = myInputIdMapping.get(value);
-    if (input instanceof TIntHashSet) {
-      return ((TIntHashSet)input).contains(inputId);
+    final Object input = getInput(value);
+    if (input instanceof IdList) {
+      return ((IdList)input).contains(inputId);
     }
     if (input instanceof Integer ){
       return inputId == ((Integer)input).intValue();
@@ -141,10 +269,10 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
 
   @Override
   public IntIterator getInputIdsIterator(final Value value) {
-    final Object input = myInputIdMapping.get(value);
+    final Object input = getInput(value);
     final IntIterator it;
-    if (input instanceof TIntHashSet) {
-      it = new IntSetIterator((TIntHashSet)input);
+    if (input instanceof IdList) {
+      it = ((IdList)input).iterator();
     }
     else if (input instanceof Integer ){
       it = new SingleValueIterator(((Integer)input).intValue());
@@ -159,7 +287,9 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
   public ValueContainerImpl<Value> clone() {
     try {
       final ValueContainerImpl clone = (ValueContainerImpl)super.clone();
+      clone.myInputIds = myInputIds instanceof IdList ? ((IdList)myInputIds).clone() : myInputIds;
       clone.myInputIdMapping = mapCopy(myInputIdMapping);
+      clone.myInputIdToValues = null;
       return clone;
     }
     catch (CloneNotSupportedException e) {
@@ -213,57 +343,147 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     }
   }
 
-  private static class IntSetIterator implements IntIterator {
-    private final TIntIterator mySetIterator;
-    private final int mySize;
+  private HashMap<Value, Object> mapCopy(final HashMap<Value, Object> map) {
+    if (map == null) {
+      return null;
+    }
+    final HashMap<Value, Object> cloned = (HashMap<Value, Object>)map.clone();
+    for (Map.Entry<Value, Object> entry : cloned.entrySet()) {
+      final Object val = entry.getValue();
+      if (val instanceof IdList) {
+        entry.setValue(((IdList)val).clone());
+      }
+    }
+    return cloned;
+  }
 
-    public IntSetIterator(final TIntHashSet set) {
-      mySetIterator = set.iterator();
-      mySize = set.size();
+  private static class ValueList extends ArrayList<Object> {
+    private ValueList() {
+      super(2);
     }
+  }
 
-    @Override
-    public boolean hasNext() {
-      return mySetIterator.hasNext();
+  /**
+   * Input ids in ascending order. Ids added out of order are appended to the unsorted tail which is sorted on the next read.
+   * Data read from disk comes in ascending order, so it is appended without sorting.
+   * Methods are synchronized because several threads holding the index read lock may sort the tail simultaneously.
+   */
+  private static class IdList implements Cloneable {
+    private int[] myIds = new int[4];
+    private int mySize;
+    private int mySortedSize; // ids at [0, mySortedSize) are sorted and distinct
+
+    public synchronized void add(int id) {
+      if (mySize == mySortedSize && mySize > 0) {
+        final int last = myIds[mySize - 1];
+        if (last == id) {
+          return;
+        }
+        if (last < id) {
+          append(id);
+          mySortedSize = mySize;
+          return;
+        }
+      }
+      append(id);
+      if (mySize == 1) {
+        mySortedSize = 1;
+      }
     }
 
-    @Override
-    public int next() {
-      return mySetIterator.next();
+    private void append(int id) {
+      if (mySize == myIds.length) {
+        myIds = ArrayUtil.realloc(myIds, mySize * 3 / 2 + 1);
+      }
+      myIds[mySize++] = id;
     }
 
-    @Override
-    public int size() {
-      return mySize;
+    public synchronized boolean remove(int id) {
+      ensureSorted();
+      final int index = Arrays.binarySearch(myIds, 0, mySize, id);
+      if (index < 0) {
+        return false;
+      }
+      System.arraycopy(myIds, index + 1, myIds, index, mySize - index - 1);
+      mySortedSize = --mySize;
+      if (myIds.length > 16 && mySize < myIds.length / 4) {
+        myIds = ArrayUtil.realloc(myIds, mySize * 2);
+      }
+      return true;
     }
-  }
-  
-  private HashMap<Value, Object> mapCopy(final HashMap<Value, Object> map) {
-    if (map == null) {
-      return null;
+
+    public synchronized boolean contains(int id) {
+      ensureSorted();
+      return Arrays.binarySearch(myIds, 0, mySize, id) >= 0;
     }
-    final HashMap<Value, Object> cloned = (HashMap<Value, Object>)map.clone();
-    for (Value key : cloned.keySet()) {
-      final Object val = cloned.get(key);
-      if (val instanceof TIntHashSet) {
-        cloned.put(key, ((TIntHashSet)val).clone());
-      }
+
+    public synchronized boolean isEmpty() {
+      return mySize == 0;
     }
-    return cloned;
-  }
 
-  private static class IdSet extends TIntHashSet {
+    // always a copy: the array is handed out to callers which may modify it
+    public synchronized int[] toArray() {
+      ensureSorted();
+      final int[] result = new int[mySize];
+      System.arraycopy(myIds, 0, result, 0, mySize);
+      return result;
+    }
 
-    private IdSet(final int initialCapacity, final float loadFactor) {
-      super(initialCapacity, loadFactor);
+    public synchronized IntIterator iterator() {
+      ensureSorted();
+      return new IdArrayIterator(myIds, mySize);
+    }
+
+    private void ensureSorted() {
+      if (mySortedSize == mySize) {
+        return;
+      }
+      Arrays.sort(myIds, 0, mySize);
+      int distinct = 1;
+      for (int i = 1; i < mySize; i++) {
+        if (myIds[i] != myIds[distinct - 1]) {
+          myIds[distinct++] = myIds[i];
+        }
+      }
+      mySize = mySortedSize = distinct;
     }
 
     @Override
-    public void compact() {
-      if (((int)(capacity() * _loadFactor)/ Math.max(1, size())) >= 3) {
-        super.compact();
+    public synchronized IdList clone() {
+      try {
+        final IdList clone = (IdList)super.clone();
+        clone.myIds = myIds.clone();
+        return clone;
+      }
+      catch (CloneNotSupportedException e) {
+        throw new RuntimeException(e);
       }
     }
   }
 
+  private static class IdArrayIterator implements IntIterator {
+    private final int[] myIds;
+    private final int mySize;
+    private int myPosition;
+
+    private IdArrayIterator(int[] ids, int size) {
+      myIds = ids;
+      mySize = size;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return myPosition < mySize;
+    }
+
+    @Override
+    public int next() {
+      return myIds[myPosition++];
+    }
+
+    @Override
+    public int size() {
+      return mySize;
+    }
+  }
 }
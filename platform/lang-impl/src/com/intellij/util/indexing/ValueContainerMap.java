@@ -8,6 +8,7 @@ import com.intellij.util.io.PersistentHashMap;
 import gnu.trove.TIntHashSet;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -95,7 +96,10 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
         myExternalizer.save(out, value);
 
         final ValueContainer.IntIterator ids = container.getInputIdsIterator(value);
-        if (ids != null) {
+        if (ids == null) {
+          DataInputOutputUtil.writeSINT(out, 0);
+        }
+        else if (asRemovedData || ids.size() < 2) {
           DataInputOutputUtil.writeSINT(out, ids.size());
           while (ids.hasNext()) {
             final int id = ids.next();
@@ -103,11 +107,38 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
           }
         }
         else {
-          DataInputOutputUtil.writeSINT(out, 0);
+          saveSortedIds(out, ids);
         }
       }
     }
 
+    /**
+     * Ids of added values are written in ascending order as deltas, negated count marks this format
+     */
+    private static void saveSortedIds(final DataOutput out, final ValueContainer.IntIterator ids) throws IOException {
+      final int[] sorted = new int[ids.size()];
+      int count = 0;
+      while (ids.hasNext()) {
+        sorted[count++] = ids.next();
+      }
+      Arrays.sort(sorted, 0, count);
+      DataInputOutputUtil.writeSINT(out, -count);
+      int prev = 0;
+      for (int i = 0; i < count; i++) {
+        DataInputOutputUtil.writeINT(out, sorted[i] - prev);
+        prev = sorted[i];
+      }
+    }
+
+    private static <T> void readSortedIds(final DataInput in, final int count, final T value, final ValueContainerImpl<T> valueContainer)
+      throws IOException {
+      int id = 0;
+      for (int i = 0; i < count; i++) {
+        id += DataInputOutputUtil.readINT(in);
+        valueContainer.addValue(id, value);
+      }
+    }
+
     @Override
     public ValueContainerImpl<T> read(final DataInput in) throws IOException {
       DataInputStream stream = (DataInputStream)in;
@@ -123,6 +154,10 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
           for (int valueIdx = 0; valueIdx < valueCount; valueIdx++) {
             final T value = myExternalizer.read(in);
             final int idCount = DataInputOutputUtil.readSINT(in);
+            if (idCount < 0) {
+              readSortedIds(in, -idCount, value, valueContainer);
+              continue;
+            }
             for (int i = 0; i < idCount; i++) {
               final int id = DataInputOutputUtil.readSINT(in);
               if (id < 0) {
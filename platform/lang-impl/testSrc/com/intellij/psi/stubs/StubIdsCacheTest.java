@@ -0,0 +1,244 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.stubs;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.indexing.MapIndexStorage;
+import com.intellij.util.indexing.MemoryIndexStorage;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import gnu.trove.TIntArrayList;
+import junit.framework.TestCase;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+public class StubIdsCacheTest extends TestCase {
+  private static final int ENTRY_SIZE = 64 + 4 * 10; // overhead and 10 ints
+
+  private File myRoot;
+  private StubIdsCache myCache;
+  private MemoryIndexStorage<String, TIntArrayList> myStorage;
+  private StubIndexImpl.MyIndex<String> myIndex;
+  // input id -> keys, what the inputs index would return
+  private final Map<Integer, Collection<String>> myKeys = new HashMap<Integer, Collection<String>>();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myRoot = FileUtil.createTempDirectory("stubIds", null);
+    myCache = new StubIdsCache(1024 * 1024);
+    myStorage = new MemoryIndexStorage<String, TIntArrayList>(
+      new MapIndexStorage<String, TIntArrayList>(new File(myRoot, "index"), new EnumeratorStringDescriptor(), new IdsExternalizer(), 16)
+    );
+    myIndex = new StubIndexImpl.MyIndex<String>(myStorage, myCache);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      myIndex.dispose();
+      FileUtil.delete(myRoot);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testUpdateReflectedInNextGet() throws Exception {
+    update(1, "a", 0, 2);
+    assertStubIds("a", 1, new int[]{0, 2});
+    assertSame(myIndex.getStubIds("a"), myIndex.getStubIds("a"));
+
+    update(1, "a", 5);
+    assertStubIds("a", 1, new int[]{5});
+
+    update(2, "a", 3, 4);
+    assertStubIds("a", 1, new int[]{5}, 2, new int[]{3, 4});
+  }
+
+  public void testOldKeysInvalidated() throws Exception {
+    update(1, "a", 1);
+    update(2, "a", 2);
+    update(3, "b", 3);
+    assertStubIds("a", 1, new int[]{1}, 2, new int[]{2});
+    assertStubIds("b", 3, new int[]{3});
+
+    // "a" is not in the new data of input 1, it is known only from the old keys
+    update(1, "c", 4);
+    assertNull(myCache.get(myIndex, "a"));
+    assertNotNull(myCache.get(myIndex, "b"));
+    assertStubIds("a", 2, new int[]{2});
+    assertStubIds("b", 3, new int[]{3});
+    assertStubIds("c", 1, new int[]{4});
+  }
+
+  public void testClear() throws Exception {
+    update(1, "a", 1);
+    assertStubIds("a", 1, new int[]{1});
+
+    myIndex.clear();
+    assertNull(myCache.get(myIndex, "a"));
+    assertStubIds("a");
+  }
+
+  public void testCleanupMemoryStorage() throws Exception {
+    update(1, "a", 1);
+    myStorage.setBufferingEnabled(true);
+    update(2, "a", 2);
+    assertStubIds("a", 1, new int[]{1}, 2, new int[]{2});
+
+    myIndex.clearMemoryStorage();
+    assertNull(myCache.get(myIndex, "a"));
+    assertStubIds("a", 1, new int[]{1});
+  }
+
+  public void testDispose() throws Exception {
+    final StubIndexImpl.MyIndex<String> other = new StubIndexImpl.MyIndex<String>(
+      new MemoryIndexStorage<String, TIntArrayList>(
+        new MapIndexStorage<String, TIntArrayList>(new File(myRoot, "other"), new EnumeratorStringDescriptor(), new IdsExternalizer(), 16)
+      ), myCache
+    );
+    try {
+      update(1, "a", 1);
+      other.updateWithMap(1, Collections.singletonMap("a", new TIntArrayList(new int[]{7})), oldKeys(1));
+      myIndex.getStubIds("a");
+      other.getStubIds("a");
+      assertEquals(2 * (64 + 4 * 3), myCache.getSize());
+    }
+    finally {
+      other.dispose();
+    }
+    assertNull(myCache.get(other, "a"));
+    assertNotNull(myCache.get(myIndex, "a"));
+    assertEquals(64 + 4 * 3, myCache.getSize());
+  }
+
+  public void testBudgetAndEviction() {
+    final StubIdsCache cache = new StubIdsCache(8 * ENTRY_SIZE);
+    final Object index = new Object();
+    for (int i = 0; i < 8; i++) {
+      cache.put(index, "key" + i, new int[10]);
+    }
+    assertEquals(8 * ENTRY_SIZE, cache.getSize());
+
+    // the least recently used entry is evicted, which is key1 after key0 is read
+    assertNotNull(cache.get(index, "key0"));
+    cache.put(index, "key8", new int[10]);
+    assertEquals(8 * ENTRY_SIZE, cache.getSize());
+    assertNull(cache.get(index, "key1"));
+    assertNotNull(cache.get(index, "key0"));
+    assertNotNull(cache.get(index, "key8"));
+
+    // a larger value evicts several entries
+    cache.put(index, "large", new int[30]);
+    assertEquals(6 * ENTRY_SIZE + 64 + 4 * 30, cache.getSize());
+    assertNull(cache.get(index, "key2"));
+    assertNull(cache.get(index, "key3"));
+    assertNotNull(cache.get(index, "key4"));
+    assertNotNull(cache.get(index, "large"));
+
+    // a value larger than a quarter of the budget is not cached
+    cache.put(index, "huge", new int[40]);
+    assertNull(cache.get(index, "huge"));
+    assertNotNull(cache.get(index, "key5"));
+
+    // replacing a value accounts the size of the new one only
+    final long size = cache.getSize();
+    cache.put(index, "key0", new int[5]);
+    assertEquals(size - 4 * 5, cache.getSize());
+
+    cache.remove(index, "key0");
+    assertEquals(size - ENTRY_SIZE, cache.getSize());
+    cache.removeAll(index);
+    assertEquals(0, cache.getSize());
+    assertEquals(6, cache.getHits());
+    assertEquals(4, cache.getMisses());
+  }
+
+  private void update(int inputId, String key, int... stubIds) throws Exception {
+    myIndex.updateWithMap(inputId, Collections.singletonMap(key, new TIntArrayList(stubIds)), oldKeys(inputId));
+    myKeys.put(inputId, Collections.singletonList(key));
+  }
+
+  private Callable<Collection<String>> oldKeys(final int inputId) {
+    return new Callable<Collection<String>>() {
+      @Override
+      public Collection<String> call() throws Exception {
+        final Collection<String> keys = myKeys.get(inputId);
+        return keys == null ? Collections.<String>emptyList() : keys;
+      }
+    };
+  }
+
+  /**
+   * @param expected file id and stub ids pairs
+   */
+  private void assertStubIds(String key, Object... expected) throws Exception {
+    final Map<Integer, List<Integer>> expectedMap = new HashMap<Integer, List<Integer>>();
+    for (int i = 0; i < expected.length; i += 2) {
+      expectedMap.put((Integer)expected[i], toList((int[])expected[i + 1]));
+    }
+    final Map<Integer, List<Integer>> actual = new HashMap<Integer, List<Integer>>();
+    myIndex.getReadLock().lock();
+    try {
+      final int[] stubIds = myIndex.getStubIds(key);
+      for (int offset = 0; offset < stubIds.length;) {
+        final int count = stubIds[offset + 1];
+        final int[] ids = new int[count];
+        System.arraycopy(stubIds, offset + 2, ids, 0, count);
+        actual.put(stubIds[offset], toList(ids));
+        offset += 2 + count;
+      }
+    }
+    finally {
+      myIndex.getReadLock().unlock();
+    }
+    assertEquals(expectedMap, actual);
+  }
+
+  private static List<Integer> toList(int[] ids) {
+    final List<Integer> list = new ArrayList<Integer>();
+    for (int id : ids) {
+      list.add(id);
+    }
+    return list;
+  }
+
+  private static class IdsExternalizer implements DataExternalizer<TIntArrayList> {
+    @Override
+    public void save(DataOutput out, TIntArrayList value) throws IOException {
+      out.writeInt(value.size());
+      for (int i = 0; i < value.size(); i++) {
+        out.writeInt(value.get(i));
+      }
+    }
+
+    @Override
+    public TIntArrayList read(DataInput in) throws IOException {
+      final int size = in.readInt();
+      final TIntArrayList list = new TIntArrayList(size);
+      for (int i = 0; i < size; i++) {
+        list.add(in.readInt());
+      }
+      return list;
+    }
+  }
+}
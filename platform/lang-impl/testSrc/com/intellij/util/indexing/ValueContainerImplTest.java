@@ -0,0 +1,168 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class ValueContainerImplTest extends TestCase {
+  public void testSingleValueToMapTransition() {
+    final ValueContainerImpl<String> container = new ValueContainerImpl<String>();
+    assertEquals(0, container.size());
+    assertIds(container.getSortedInputIds());
+
+    container.addValue(3, "a");
+    container.addValue(1, "a");
+    container.addValue(3, "a");
+    assertEquals(1, container.size());
+    assertIds(container.getInputIds("a"), 1, 3);
+    assertIds(container.getSortedInputIds(), 1, 3);
+    assertIds(container.getInputIds("b"));
+
+    container.addValue(2, "b");
+    container.addValue(3, "b");
+    assertEquals(2, container.size());
+    assertEquals(new HashSet<String>(Arrays.asList("a", "b")), new HashSet<String>(container.toValueList()));
+    assertIds(container.getInputIds("a"), 1, 3);
+    assertIds(container.getInputIds("b"), 2, 3);
+    assertIds(container.getSortedInputIds(), 1, 2, 3);
+    assertTrue(container.isAssociated("b", 2));
+    assertFalse(container.isAssociated("a", 2));
+  }
+
+  public void testLastIdRemovedFromSingleValue() {
+    final ValueContainerImpl<String> container = new ValueContainerImpl<String>();
+    container.addValue(1, "a");
+    assertFalse(container.removeValue(2, "a"));
+    assertFalse(container.removeValue(1, "b"));
+    container.removeAllValues(1);
+    assertEquals(0, container.size());
+    assertFalse(container.getValueIterator().hasNext());
+
+    container.addValue(5, "b");
+    assertIds(container.getInputIds("b"), 5);
+  }
+
+  public void testReturnedArraysAreCopies() {
+    final ValueContainerImpl<String> container = new ValueContainerImpl<String>();
+    container.addValue(1, "a");
+    container.getInputIds("a")[0] = 100;
+    container.getSortedInputIds()[0] = 100;
+    assertIds(container.getInputIds("a"), 1);
+
+    container.addValue(2, "a");
+    container.addValue(3, "a");
+    container.addValue(4, "a");
+    final int[] ids = container.getInputIds("a");
+    assertEquals(4, ids.length);
+    ids[0] = 100;
+    container.getSortedInputIds()[1] = 100;
+    assertIds(container.getInputIds("a"), 1, 2, 3, 4);
+
+    container.addValue(5, "b");
+    container.getInputIds("a")[2] = 100;
+    container.getSortedInputIds()[3] = 100;
+    assertIds(container.getInputIds("a"), 1, 2, 3, 4);
+    assertIds(container.getSortedInputIds(), 1, 2, 3, 4, 5);
+  }
+
+  public void testUnsortedTail() {
+    final ValueContainerImpl<String> container = new ValueContainerImpl<String>();
+    for (int id : new int[]{10, 20, 30, 5, 25, 20, 5, 40, 1}) {
+      container.addValue(id, "a");
+    }
+    assertIds(container.getInputIds("a"), 1, 5, 10, 20, 25, 30, 40);
+    assertIdsIterated(container.getInputIdsIterator("a"), 1, 5, 10, 20, 25, 30, 40);
+
+    container.addValue(50, "a");
+    container.addValue(2, "a");
+    assertTrue(container.isAssociated("a", 2));
+    assertFalse(container.isAssociated("a", 3));
+    assertTrue(container.removeValue(25, "a"));
+    assertFalse(container.removeValue(25, "a"));
+    container.addValue(25, "a");
+    container.addValue(7, "a");
+    assertTrue(container.removeValue(7, "a"));
+    assertIds(container.getInputIds("a"), 1, 2, 5, 10, 20, 25, 30, 40, 50);
+  }
+
+  public void testRemoveAllValuesUsesInvertedMap() {
+    final ValueContainerImpl<String> container = new ValueContainerImpl<String>();
+    container.addValue(1, "a");
+    container.addValue(2, "a");
+    container.addValue(2, "b");
+    container.addValue(3, "b");
+    container.addValue(2, null);
+    container.addValue(4, "c");
+
+    container.removeAllValues(2); // builds the inverted map
+    assertEquals(3, container.size());
+    assertIds(container.getInputIds("a"), 1);
+    assertIds(container.getInputIds("b"), 3);
+    assertIds(container.getInputIds("c"), 4);
+    assertIds(container.getInputIds(null));
+
+    // the inverted map is kept up to date by further additions and removals
+    container.addValue(3, "a");
+    container.addValue(3, null);
+    assertTrue(container.removeValue(3, "b"));
+    container.removeAllValues(3);
+    assertIds(container.getInputIds("a"), 1);
+    assertIds(container.getInputIds(null));
+    assertEquals(2, container.size());
+
+    container.removeAllValues(4);
+    container.removeAllValues(1);
+    assertEquals(0, container.size());
+    assertIds(container.getSortedInputIds());
+  }
+
+  public void testCloneIsIndependent() {
+    final ValueContainerImpl<String> container = new ValueContainerImpl<String>();
+    container.addValue(1, "a");
+    container.addValue(2, "a");
+    container.addValue(3, "b");
+    container.removeAllValues(3);
+    container.addValue(3, "b");
+
+    final ValueContainerImpl<String> clone = container.clone();
+    clone.addValue(4, "a");
+    clone.removeAllValues(3);
+    container.removeValue(1, "a");
+
+    assertIds(container.getInputIds("a"), 2);
+    assertIds(container.getInputIds("b"), 3);
+    assertIds(clone.getInputIds("a"), 1, 2, 4);
+    assertIds(clone.getInputIds("b"));
+  }
+
+  private static void assertIds(int[] actual, int... expected) {
+    assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+  }
+
+  private static void assertIdsIterated(ValueContainer.IntIterator iterator, int... expected) {
+    assertEquals(expected.length, iterator.size());
+    final int[] actual = new int[expected.length];
+    for (int i = 0; i < actual.length; i++) {
+      assertTrue(iterator.hasNext());
+      actual[i] = iterator.next();
+    }
+    assertFalse(iterator.hasNext());
+    assertIds(actual, expected);
+  }
+}
@@ -40,6 +40,9 @@ public class JobImpl<T> implements Job<T> {
   private final AtomicInteger runningTasks = new AtomicInteger();
   private volatile boolean scheduled;
   private final boolean myFailFastOnAcquireReadAction;
+  // tasks are claimed from here by scheduler workers and by the thread waiting for the job
+  private volatile PrioritizedFutureTask[] myTasksToRun;
+  private final AtomicInteger myNextTaskToRun = new AtomicInteger();
 
   public static final Job NULL_JOB = new JobImpl(0,false) {
     @Override
@@ -118,7 +121,7 @@ public class JobImpl<T> implements Job<T> {
       return null;
     }
 
-    submitTasks(tasks, callerHasReadAccess, false);
+    JobSchedulerImpl.submitTasks(this, tasks, callerHasReadAccess, false);
 
     // in case of imbalanced tasks one huge task can stuck running and we would fall to waitForTermination instead of doing useful work
     //// http://gafter.blogspot.com/2006/11/thread-pool-puzzler.html
@@ -127,7 +130,7 @@ public class JobImpl<T> implements Job<T> {
     //}
     //
     while (!isDone()) {
-      Runnable task = JobSchedulerImpl.stealTask();
+      Runnable task = JobSchedulerImpl.isSubmittingEachTask() ? JobSchedulerImpl.stealTask() : pollTask();
       if (task == null) break;
 
       boolean wasMarked = ApplicationImpl.setExceptionalThreadWithReadAccessFlag(false);
@@ -204,7 +207,7 @@ public class JobImpl<T> implements Job<T> {
 
     PrioritizedFutureTask[] tasks = getTasks();
 
-    submitTasks(tasks, false, true);
+    JobSchedulerImpl.submitTasks(this, tasks, false, true);
   }
 
   public PrioritizedFutureTask[] getTasks() {
@@ -242,10 +245,17 @@ public class JobImpl<T> implements Job<T> {
     }
   }
 
-  private static void submitTasks(PrioritizedFutureTask[] tasks, boolean callerHasReadAccess, boolean reportExceptions) {
-    for (final PrioritizedFutureTask future : tasks) {
-      JobSchedulerImpl.submitTask(future, callerHasReadAccess, reportExceptions);
+  void setTasksToRun(PrioritizedFutureTask[] tasks) {
+    myTasksToRun = tasks;
+  }
+
+  PrioritizedFutureTask pollTask() {
+    final PrioritizedFutureTask[] tasks = myTasksToRun;
+    if (tasks == null || myNextTaskToRun.get() >= tasks.length) {
+      return null;
     }
+    final int index = myNextTaskToRun.getAndIncrement();
+    return index < tasks.length ? tasks[index] : null;
   }
 
   void taskDone() {
@@ -22,10 +22,12 @@ package com.intellij.concurrency;
 import com.intellij.openapi.Disposable;
 import org.jetbrains.annotations.NonNls;
 
+import java.util.Comparator;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @NonNls
 public class JobSchedulerImpl extends JobScheduler implements Disposable {
@@ -43,8 +45,20 @@ public class JobSchedulerImpl extends JobScheduler implements Disposable {
     }
   };
 
-  private static final PriorityBlockingQueue<Runnable> ourQueue = new PriorityBlockingQueue<Runnable>();
+  // job workers and single tasks may both be queued (e.g. after setSubmittingEachTask()), so they are ordered by the same key
+  private static final Comparator<Runnable> TASK_ORDER = new Comparator<Runnable>() {
+    public int compare(Runnable o1, Runnable o2) {
+      return getPriorityTask(o1).compareTo(getPriorityTask(o2));
+    }
+
+    private PrioritizedFutureTask getPriorityTask(Runnable r) {
+      return r instanceof JobWorker ? ((JobWorker)r).myFirstTask : (PrioritizedFutureTask)r;
+    }
+  };
+  private static final PriorityBlockingQueue<Runnable> ourQueue = new PriorityBlockingQueue<Runnable>(11, TASK_ORDER);
   private static final MyExecutor ourExecutor = new MyExecutor();
+  private static final AtomicInteger ourQueuedWorkers = new AtomicInteger();
+  private static volatile boolean ourSubmitEachTask = Boolean.getBoolean("idea.job.scheduler.submit.each.task");
 
   static int currentTaskIndex() {
     return ourQueue.size();
@@ -54,13 +68,78 @@ public class JobSchedulerImpl extends JobScheduler implements Disposable {
     ((ThreadPoolExecutor)getScheduler()).getQueue().clear();
   }
 
+  /**
+   * @return a single queued task, or null if there is none at the head of the queue. Job workers are never stolen:
+   * running one would make the caller process a whole foreign job.
+   */
   static Runnable stealTask() {
-    return ourQueue.poll();
+    while (true) {
+      final Runnable head = ourQueue.peek();
+      if (!(head instanceof PrioritizedFutureTask)) return null;
+      if (ourQueue.remove(head)) return head;
+    }
+  }
+
+  /**
+   * Submits tasks of a job. By default the global queue receives at most {@link #CORES_COUNT} workers per job rather than
+   * every task; the workers, as well as the thread waiting for the job, claim tasks from the job itself, so threads
+   * contend on the shared queue only when they switch jobs.
+   */
+  static void submitTasks(JobImpl job, PrioritizedFutureTask[] tasks, boolean callerHasReadAccess, boolean reportExceptions) {
+    for (PrioritizedFutureTask task : tasks) {
+      task.beforeRun(callerHasReadAccess, reportExceptions);
+    }
+    if (ourSubmitEachTask) {
+      for (PrioritizedFutureTask task : tasks) {
+        ourExecutor.executeTask(task);
+      }
+      return;
+    }
+    job.setTasksToRun(tasks);
+    final int workersCount = Math.min(tasks.length, CORES_COUNT);
+    for (int i = 0; i < workersCount; i++) {
+      ourExecutor.executeTask(new JobWorker(job, tasks[0]));
+    }
+  }
+
+  static boolean isSubmittingEachTask() {
+    return ourSubmitEachTask;
   }
 
-  static void submitTask(PrioritizedFutureTask future, boolean callerHasReadAccess, boolean reportExceptions) {
-    future.beforeRun(callerHasReadAccess, reportExceptions);
-    ourExecutor.executeTask(future);
+  // for performance comparison in tests
+  static void setSubmittingEachTask(boolean submitEachTask) {
+    ourSubmitEachTask = submitEachTask;
+  }
+
+  private static class JobWorker implements Runnable {
+    private final JobImpl myJob;
+    private final PrioritizedFutureTask myFirstTask; // determines the priority
+
+    private JobWorker(JobImpl job, PrioritizedFutureTask firstTask) {
+      myJob = job;
+      myFirstTask = firstTask;
+    }
+
+    public void run() {
+      ourQueuedWorkers.decrementAndGet();
+      PrioritizedFutureTask task;
+      while ((task = myJob.pollTask()) != null) {
+        task.run();
+        if (hasMoreUrgentWork()) {
+          // let the more important job run, continue with this one afterwards
+          ourExecutor.executeTask(this);
+          return;
+        }
+      }
+    }
+
+    private boolean hasMoreUrgentWork() {
+      if (ourQueuedWorkers.get() <= 0) {
+        return false;
+      }
+      final Runnable head = ourQueue.peek();
+      return head != null && TASK_ORDER.compare(head, this) < 0;
+    }
   }
 
   private static class MyExecutor extends ThreadPoolExecutor {
@@ -72,6 +151,11 @@ public class JobSchedulerImpl extends JobScheduler implements Disposable {
       super.execute(task);
     }
 
+    private void executeTask(final JobWorker worker) {
+      ourQueuedWorkers.incrementAndGet();
+      super.execute(worker);
+    }
+
     @Override
     public void execute(Runnable command) {
       throw new IllegalStateException("Use executeTask() to submit PrioritizedFutureTasks only");
@@ -16,6 +16,7 @@
 package com.intellij.openapi.application.ex;
 
 import com.intellij.openapi.application.Application;
+import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.InvalidDataException;
@@ -91,4 +92,16 @@ public interface ApplicationEx extends Application {
    * @return true if action was run while holding the lock, false if was unable to get the lock and action was not run
    */
   boolean tryRunReadAction(@NotNull Runnable action);
+
+  /**
+   * Runs the action in a read action which gives way to write actions: when a write action is requested, the indicator
+   * is canceled, so the action should call {@link com.intellij.openapi.progress.ProgressManager#checkCanceled()} regularly.
+   * The action is not started at all if a write action is pending or running. A {@link com.intellij.openapi.progress.ProcessCanceledException}
+   * thrown while the indicator itself isn't canceled is rethrown.
+   * Must not be called when read access is already allowed, e.g. from the event dispatch thread.
+   *
+   * @return true if the action has completed, false if it was not started or was canceled
+   * @see com.intellij.openapi.progress.util.ProgressIndicatorUtils#runWithWriteActionPriority(Runnable)
+   */
+  boolean runReadActionWithWriteActionPriority(@NotNull Runnable action, @NotNull ProgressIndicator indicator);
 }
@@ -42,6 +42,7 @@ import com.intellij.openapi.progress.EmptyProgressIndicator;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.impl.ProgressManagerImpl;
 import com.intellij.openapi.progress.util.ProgressWindow;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.project.ProjectManager;
@@ -58,9 +59,11 @@ import com.intellij.psi.PsiLock;
 import com.intellij.ui.Splash;
 import com.intellij.util.*;
 import com.intellij.util.concurrency.ReentrantWriterPreferenceReadWriteLock;
+import com.intellij.util.containers.ConcurrentHashSet;
 import com.intellij.util.containers.Stack;
 import com.intellij.util.io.storage.HeavyProcessLatch;
 import com.intellij.util.ui.UIUtil;
+import gnu.trove.TObjectIntHashMap;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -95,6 +98,10 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
 
   private final ReentrantWriterPreferenceReadWriteLock myActionsLock = new ReentrantWriterPreferenceReadWriteLock();
   private final Stack<Class> myWriteActionsStack = new Stack<Class>(); // accessed from EDT only, no need to sync
+  // indicators of read actions which are canceled when a write action is requested, with the number of such read actions
+  // running under each of them, as several threads may share one indicator
+  private final TObjectIntHashMap<ProgressIndicator> myWriteActionPriorityIndicators = new TObjectIntHashMap<ProgressIndicator>();
+  private volatile int myPendingWriteActions; // modified from EDT only
 
   private volatile Runnable myExceptionalThreadWithReadAccessRunnable;
 
@@ -1032,6 +1039,59 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
     return true;
   }
 
+  public boolean runReadActionWithWriteActionPriority(@NotNull final Runnable action, @NotNull final ProgressIndicator indicator) {
+    LOG.assertTrue(!isReadAccessAllowed(), "Read action with write action priority must not be nested in another read action");
+    addWriteActionPriorityIndicator(indicator);
+    try {
+      // the indicator is registered before the check, so a write action requested later will cancel it
+      if (myPendingWriteActions > 0) return false;
+
+      final boolean started = tryRunReadAction(new Runnable() {
+        public void run() {
+          try {
+            // not runProcess(): starting the indicator would reset a cancellation made by a write action requested meanwhile
+            ((ProgressManagerImpl)ProgressManager.getInstance()).executeProcessUnderProgress(action, indicator);
+          }
+          catch (ProcessCanceledException e) {
+            if (!indicator.isCanceled()) throw e; // canceled by some other indicator, not by a write action
+          }
+        }
+      });
+      return started && !indicator.isCanceled();
+    }
+    finally {
+      removeWriteActionPriorityIndicator(indicator);
+    }
+  }
+
+  private void addWriteActionPriorityIndicator(ProgressIndicator indicator) {
+    synchronized (myWriteActionPriorityIndicators) {
+      myWriteActionPriorityIndicators.put(indicator, myWriteActionPriorityIndicators.get(indicator) + 1);
+    }
+  }
+
+  private void removeWriteActionPriorityIndicator(ProgressIndicator indicator) {
+    synchronized (myWriteActionPriorityIndicators) {
+      final int count = myWriteActionPriorityIndicators.get(indicator);
+      if (count > 1) {
+        myWriteActionPriorityIndicators.put(indicator, count - 1);
+      }
+      else {
+        myWriteActionPriorityIndicators.remove(indicator);
+      }
+    }
+  }
+
+  private void cancelWriteActionPriorityReadActions() {
+    final Object[] indicators;
+    synchronized (myWriteActionPriorityIndicators) {
+      indicators = myWriteActionPriorityIndicators.keys();
+    }
+    for (Object indicator : indicators) {
+      ((ProgressIndicator)indicator).cancel();
+    }
+  }
+
   public boolean tryToApplyActivationState(boolean active, Window window) {
     final Component frame = UIUtil.findUltimateParent(window);
 
@@ -1092,6 +1152,8 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
 
       ActivityTracker.getInstance().inc();
       fireBeforeWriteActionStart(_clazz);
+      myPendingWriteActions++;
+      cancelWriteActionPriorityReadActions();
       final AtomicBoolean stopped = new AtomicBoolean(false);
 
       if (ourDumpThreadsOnLongWriteActionWaiting > 0) {
@@ -1119,6 +1181,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
         acquired();
       }
       catch (InterruptedException e) {
+        myPendingWriteActions--;
         throw new RuntimeInterruptedException(e);
       }
       stopped.set(true);
@@ -1137,6 +1200,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
       }
       finally {
         myActionsLock.writeLock().release();
+        myPendingWriteActions--;
         released();
       }
     }
@@ -16,6 +16,9 @@
 package com.intellij.openapi.editor.ex.util;
 
 import com.intellij.lexer.Lexer;
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.HighlighterColors;
@@ -33,14 +36,19 @@ import com.intellij.openapi.fileTypes.PlainSyntaxHighlighter;
 import com.intellij.openapi.fileTypes.SyntaxHighlighter;
 import com.intellij.openapi.project.DumbAwareRunnable;
 import com.intellij.openapi.project.Project;
+import com.intellij.psi.TokenType;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.text.ImmutableText;
 import com.intellij.util.ui.UIUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDocumentListener {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.editor.ex.util.LexerEditorHighlighter");
@@ -52,6 +60,24 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   private EditorColorsScheme myScheme;
   private final int myInitialState;
 
+  private static final int DEFAULT_BACKGROUND_RELEX_THRESHOLD =
+    Integer.getInteger("idea.highlighter.background.relex.threshold", 256 * 1024);
+  /**
+   * Changes of at least this number of chars are relexed in background, negative value disables that.
+   */
+  private static volatile int ourBackgroundRelexThreshold = DEFAULT_BACKGROUND_RELEX_THRESHOLD;
+  // runs background relexing instead of pooled threads; in unit test mode background relexing is done only if it's set
+  private static volatile Executor ourBackgroundRelexExecutor;
+
+  private static final AtomicLong ourRelexCount = new AtomicLong();
+  private static final AtomicLong ourRelexTime = new AtomicLong(); // nanos
+  private static final AtomicLong ourMaxRelexTime = new AtomicLong(); // nanos
+
+  // changes the segments haven't been updated for yet, the segments keep the offsets of the text before them
+  private PendingChange myPendingChange;
+  // incremented on every change, a background relex of an older text is discarded
+  private volatile int myRelexGeneration;
+
   public LexerEditorHighlighter(@NotNull SyntaxHighlighter highlighter, @NotNull EditorColorsScheme scheme) {
     myScheme = scheme;
     myLexer = highlighter.getHighlightingLexer();
@@ -108,6 +134,14 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
         ((DocumentEx)document).setInBulkUpdate(false); // bulk mode failed
       }
 
+      if (myPendingChange != null && !myPendingChange.myRelexing && document != null) {
+        applyPendingChange(document);
+      }
+      if (myPendingChange != null) {
+        // relexing is in progress, paint the old tokens around the changed text
+        return new StaleHighlighterIterator(myPendingChange, startOffset);
+      }
+
       if (mySegments.getSegmentCount() == 0 && document != null && document.getTextLength() > 0) {
         // bulk mode was reset
         doSetText(document.getCharsSequence());
@@ -139,8 +173,18 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   @Override
   public synchronized void documentChanged(DocumentEvent e) {
     final Document document = e.getDocument();
+    final boolean inBulkUpdate = document instanceof DocumentEx && ((DocumentEx)document).isInBulkUpdate();
+
+    if (myPendingChange != null || inBulkUpdate && mySegments.getSegmentCount() > 0 && isBackgroundRelexAllowed()) {
+      // the segments are kept as they were before the first of the changes and are updated for all of them at once
+      addPendingChange(e);
+      if (!inBulkUpdate && !myPendingChange.myRelexing) {
+        applyPendingChange(document);
+      }
+      return;
+    }
 
-    if (document instanceof DocumentEx && ((DocumentEx)document).isInBulkUpdate()) {
+    if (inBulkUpdate) {
       mySegments.removeAll();
       return;
     }
@@ -150,15 +194,141 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
       return;
     }
 
-    CharSequence text = document.getCharsSequence();
-    int oldStartOffset = e.getOffset();
+    final long started = System.nanoTime();
+    final SegmentsUpdate update = relex(myLexer, document.getCharsSequence(), e.getOffset(), e.getOldLength(), e.getNewLength(), myRelexGeneration);
+    assert update != null;
+    applyUpdate(update, false);
+    recordRelex(started, e.getNewLength(), false);
+  }
+
+  private void addPendingChange(DocumentEvent e) {
+    final int textLength = e.getDocument().getTextLength();
+    if (myPendingChange == null) {
+      myPendingChange = new PendingChange(textLength - e.getNewLength() + e.getOldLength(), e.getOffset());
+    }
+    myPendingChange.add(e.getOffset(), e.getNewLength(), textLength);
+    myRelexGeneration++;
+  }
+
+  /**
+   * Relexes the text changed since the segments were last updated, on a pooled thread if there is much of it.
+   */
+  private void applyPendingChange(@NotNull Document document) {
+    final PendingChange change = myPendingChange;
+    final int offset = change.myStart;
+    final int oldLength = change.getOldEnd() - offset;
+    final int newLength = change.getNewEnd() - offset;
+
+    final Application application = ApplicationManager.getApplication();
+    final int threshold = ourBackgroundRelexThreshold;
+    final Executor executor = ourBackgroundRelexExecutor;
+    if (threshold >= 0 && newLength >= threshold && application != null && (executor != null || !application.isUnitTestMode())) {
+      // the background thread needs a lexer of its own
+      final Lexer lexer = myHighlighter.getHighlightingLexer();
+      if (lexer != myLexer) {
+        startBackgroundRelex(document, change, lexer, offset, oldLength, newLength, executor);
+        return;
+      }
+    }
+
+    myPendingChange = null;
+    final long started = System.nanoTime();
+    final SegmentsUpdate update = relex(myLexer, document.getCharsSequence(), offset, oldLength, newLength, myRelexGeneration);
+    assert update != null;
+    applyUpdate(update, true);
+    recordRelex(started, newLength, false);
+  }
+
+  private void startBackgroundRelex(final Document document,
+                                    final PendingChange change,
+                                    final Lexer lexer,
+                                    final int offset,
+                                    final int oldLength,
+                                    final int newLength,
+                                    @Nullable Executor executor) {
+    change.myRelexing = true;
+    final int generation = myRelexGeneration;
+    final CharSequence chars = document.getCharsSequence();
+    // the lexer has to see the text as of this change, while the document can be modified meanwhile
+    final CharSequence text = chars instanceof ImmutableText ? chars : document.getText();
+
+    final Application application = ApplicationManager.getApplication();
+    final Runnable relexTask = new Runnable() {
+      @Override
+      public void run() {
+        final long started = System.nanoTime();
+        SegmentsUpdate update = null;
+        boolean failed = true;
+        try {
+          update = relex(lexer, text, offset, oldLength, newLength, generation);
+          failed = false;
+        }
+        catch (Throwable e) {
+          if (generation == myRelexGeneration) {
+            LOG.error(e);
+          }
+        }
+        finally {
+          // the pending change has to be finished in any case, otherwise the highlighter would stay stale forever
+          final SegmentsUpdate result = update;
+          final boolean relexFailed = failed;
+          application.invokeLater(new DumbAwareRunnable() {
+            @Override
+            public void run() {
+              synchronized (LexerEditorHighlighter.this) {
+                if (myPendingChange != change) return; // the text was set anew
+                change.myRelexing = false;
+                if (generation == myRelexGeneration && result != null) {
+                  myPendingChange = null;
+                  applyUpdate(result, true);
+                  recordRelex(started, newLength, true);
+                }
+                else if (generation == myRelexGeneration && relexFailed) {
+                  myPendingChange = null;
+                  doSetText(document.getCharsSequence());
+                }
+                else if (!(document instanceof DocumentEx && ((DocumentEx)document).isInBulkUpdate())) {
+                  // the document has been changed meanwhile, start over for all the changes
+                  applyPendingChange(document);
+                }
+              }
+            }
+          }, ModalityState.any());
+        }
+      }
+    };
+    if (executor != null) {
+      executor.execute(relexTask);
+    }
+    else {
+      application.executeOnPooledThread(relexTask);
+    }
+  }
 
+  /**
+   * Makes changes of at least the given number of chars relexed by the executor, which enables background relexing in unit tests.
+   * Pass a null executor to restore the defaults.
+   */
+  @TestOnly
+  public static void setBackgroundRelexForTests(int threshold, @Nullable Executor executor) {
+    ourBackgroundRelexThreshold = executor != null ? threshold : DEFAULT_BACKGROUND_RELEX_THRESHOLD;
+    ourBackgroundRelexExecutor = executor;
+  }
+
+  /**
+   * Computes the segments replacing those touched by the change, without modifying {@link #mySegments},
+   * so that it can be run on a pooled thread while the segments are not changed.
+   *
+   * @return the update, or null if the highlighter got another change meanwhile
+   */
+  @Nullable
+  private SegmentsUpdate relex(Lexer lexer, CharSequence text, int changeOffset, int oldLength, int newLength, int generation) {
     final int segmentIndex;
     try {
-      segmentIndex = mySegments.findSegmentIndex(oldStartOffset) - 2;
+      segmentIndex = mySegments.findSegmentIndex(changeOffset) - 2;
     }
     catch (IndexOutOfBoundsException ex) {
-      throw new IndexOutOfBoundsException(ex.getMessage() + " Lexer: " + myLexer);
+      throw new IndexOutOfBoundsException(ex.getMessage() + " Lexer: " + lexer);
     }
     final int oldStartIndex = Math.max(0, segmentIndex);
     int startIndex = oldStartIndex;
@@ -172,32 +342,32 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     while (true);
 
     int startOffset = mySegments.getSegmentStart(startIndex);
-    int newEndOffset = e.getOffset() + e.getNewLength();
+    int newEndOffset = changeOffset + newLength;
 
-    myLexer.start(text, startOffset, text.length(), myInitialState);
+    lexer.start(text, startOffset, text.length(), myInitialState);
 
     int lastTokenStart = -1;
     int lastLexerState = -1;
 
-    while (myLexer.getTokenType() != null) {
+    while (lexer.getTokenType() != null) {
       if (startIndex >= oldStartIndex) break;
 
-      int tokenStart = myLexer.getTokenStart();
-      int lexerState = myLexer.getState();
+      int tokenStart = lexer.getTokenStart();
+      int lexerState = lexer.getState();
 
       if (tokenStart == lastTokenStart && lexerState == lastLexerState) {
-        throw new IllegalStateException("Error while updating lexer: " + e + " document text: " + document.getText());
+        throw new IllegalStateException(relexError(changeOffset, oldLength, newLength, text));
       }
 
-      int tokenEnd = myLexer.getTokenEnd();
-      data = packData(myLexer.getTokenType(), lexerState);
+      int tokenEnd = lexer.getTokenEnd();
+      data = packData(lexer.getTokenType(), lexerState);
       if (mySegments.getSegmentStart(startIndex) != tokenStart ||
           mySegments.getSegmentEnd(startIndex) != tokenEnd ||
           mySegments.getSegmentData(startIndex) != data) {
         break;
       }
       startIndex++;
-      myLexer.advance();
+      lexer.advance();
       lastTokenStart = tokenStart;
       lastLexerState = lexerState;
     }
@@ -208,21 +378,25 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     int oldEndIndex = -1;
     SegmentArrayWithData insertSegments = new SegmentArrayWithData();
 
-    while(myLexer.getTokenType() != null) {
-      int tokenStart = myLexer.getTokenStart();
-      int lexerState = myLexer.getState();
+    while(lexer.getTokenType() != null) {
+      if ((insertSegmentCount & 0x3ff) == 0 && generation != myRelexGeneration) {
+        return null;
+      }
+
+      int tokenStart = lexer.getTokenStart();
+      int lexerState = lexer.getState();
 
       if (tokenStart == lastTokenStart && lexerState == lastLexerState) {
-        throw new IllegalStateException("Error while updating lexer: " + e + " document text: " + document.getText());
+        throw new IllegalStateException(relexError(changeOffset, oldLength, newLength, text));
       }
 
       lastTokenStart = tokenStart;
       lastLexerState = lexerState;
 
-      int tokenEnd = myLexer.getTokenEnd();
-      data = packData(myLexer.getTokenType(), lexerState);
+      int tokenEnd = lexer.getTokenEnd();
+      data = packData(lexer.getTokenType(), lexerState);
       if(tokenStart >= newEndOffset && lexerState == myInitialState) {
-        int shiftedTokenStart = tokenStart - e.getNewLength() + e.getOldLength();
+        int shiftedTokenStart = tokenStart - newLength + oldLength;
         int index = mySegments.findSegmentIndex(shiftedTokenStart);
         if (mySegments.getSegmentStart(index) == shiftedTokenStart && mySegments.getSegmentData(index) == data) {
           repaintEnd = tokenStart;
@@ -232,10 +406,10 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
       }
       insertSegments.setElementAt(insertSegmentCount, tokenStart, tokenEnd, data);
       insertSegmentCount++;
-      myLexer.advance();
+      lexer.advance();
     }
 
-    final int shift = e.getNewLength() - e.getOldLength();
+    final int shift = newLength - oldLength;
     if (repaintEnd > 0) {
       while (insertSegmentCount > 0 && oldEndIndex > startIndex) {
         if (!segmentsEqual(mySegments, oldEndIndex - 1, insertSegments, insertSegmentCount - 1, shift)) {
@@ -255,15 +429,64 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     if (oldEndIndex < 0){
       oldEndIndex = mySegments.getSegmentCount();
     }
-    mySegments.shiftSegments(oldEndIndex, shift);
-    mySegments.replace(startIndex, oldEndIndex, insertSegments);
+    return new SegmentsUpdate(startIndex, oldEndIndex, insertSegments, insertSegmentCount, shift, startOffset, repaintEnd, data);
+  }
+
+  private static String relexError(int offset, int oldLength, int newLength, CharSequence text) {
+    return "Error while updating lexer: offset=" + offset + ", old length=" + oldLength + ", new length=" + newLength +
+           " document text: " + text;
+  }
 
-    if (insertSegmentCount == 0 ||
-        oldEndIndex == startIndex + 1 && insertSegmentCount == 1 && data == mySegments.getSegmentData(startIndex)) {
+  /**
+   * @param repaintAlways whether the changed range is to be repainted even if its tokens are the same,
+   *                      it was painted with a placeholder token while the segments were not updated
+   */
+  private void applyUpdate(SegmentsUpdate update, boolean repaintAlways) {
+    final int startIndex = update.myStartIndex;
+    final int oldEndIndex = update.myOldEndIndex;
+    mySegments.shiftSegments(oldEndIndex, update.myShift);
+    mySegments.replace(startIndex, oldEndIndex, update.myInsertSegments);
+
+    if (!repaintAlways &&
+        (update.myInsertSegmentCount == 0 ||
+         oldEndIndex == startIndex + 1 && update.myInsertSegmentCount == 1 && update.myLastData == mySegments.getSegmentData(startIndex))) {
       return;
     }
 
-    myEditor.repaint(startOffset, repaintEnd);
+    myEditor.repaint(update.myStartOffset, update.myRepaintEnd);
+  }
+
+  /**
+   * Background relexing needs the highlighting lexer to be the only state the relexing depends on,
+   * so it's disabled for the highlighters maintaining more structures along with the segments.
+   */
+  protected boolean isBackgroundRelexAllowed() {
+    return true;
+  }
+
+  private static void recordRelex(long startedNanos, int relexedLength, boolean background) {
+    final long time = System.nanoTime() - startedNanos;
+    ourRelexCount.incrementAndGet();
+    ourRelexTime.addAndGet(time);
+    long max;
+    while (time > (max = ourMaxRelexTime.get()) && !ourMaxRelexTime.compareAndSet(max, time)) {
+      // retry
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug((background ? "background " : "") + "relex of " + relexedLength + " changed chars: " + time / 1000000 + "ms");
+    }
+  }
+
+  public static long getRelexCount() {
+    return ourRelexCount.get();
+  }
+
+  public static long getTotalRelexTimeMs() {
+    return ourRelexTime.get() / 1000000;
+  }
+
+  public static long getMaxRelexTimeMs() {
+    return ourMaxRelexTime.get() / 1000000;
   }
 
   @Override
@@ -288,6 +511,8 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   @Override
   public void setText(CharSequence text) {
     synchronized (this) {
+      myPendingChange = null;
+      myRelexGeneration++;
       doSetText(text);
     }
   }
@@ -404,6 +629,158 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     }
   }
 
+  /**
+   * Iterates the segments as they were before the pending change with the segments after it shifted to their current offsets,
+   * the changed text in between is a single whitespace token.
+   */
+  private class StaleHighlighterIterator implements HighlighterIterator {
+    private final int myPrefixCount; // segments before the change
+    private final int mySuffixIndex; // first segment after the change
+    private final int myShift;
+    private final int myPlaceholderStart;
+    private final int myPlaceholderEnd;
+    private final int myPlaceholderCount;
+    private final int myCount;
+    private int myIndex;
+
+    private StaleHighlighterIterator(PendingChange change, int startOffset) {
+      final int segmentCount = mySegments.getSegmentCount();
+      final int lastValidOffset = mySegments.getLastValidOffset();
+      myShift = change.myNewLength - change.myOldLength;
+
+      myPrefixCount = change.myStart < lastValidOffset ? mySegments.findSegmentIndex(change.myStart) : segmentCount;
+      myPlaceholderStart = myPrefixCount > 0 ? mySegments.getSegmentEnd(myPrefixCount - 1) : 0;
+
+      final int oldEnd = change.getOldEnd();
+      int suffixIndex = oldEnd < lastValidOffset ? mySegments.findSegmentIndex(oldEnd) : segmentCount;
+      if (suffixIndex < segmentCount && mySegments.getSegmentStart(suffixIndex) < oldEnd) suffixIndex++;
+      mySuffixIndex = Math.max(suffixIndex, myPrefixCount);
+      myPlaceholderEnd = mySuffixIndex < segmentCount ? mySegments.getSegmentStart(mySuffixIndex) + myShift : change.myNewLength;
+      myPlaceholderCount = myPlaceholderEnd > myPlaceholderStart ? 1 : 0;
+      myCount = myPrefixCount + myPlaceholderCount + segmentCount - mySuffixIndex;
+
+      if (startOffset < myPlaceholderStart) {
+        myIndex = mySegments.findSegmentIndex(startOffset);
+      }
+      else if (startOffset < myPlaceholderEnd || myCount == myPrefixCount + myPlaceholderCount) {
+        myIndex = myPrefixCount + myPlaceholderCount - 1;
+      }
+      else {
+        final int oldOffset = Math.min(startOffset - myShift, lastValidOffset);
+        myIndex = myPrefixCount + myPlaceholderCount + Math.max(mySegments.findSegmentIndex(oldOffset), mySuffixIndex) - mySuffixIndex;
+      }
+    }
+
+    private boolean isPlaceholder() {
+      return myIndex >= myPrefixCount && myIndex < myPrefixCount + myPlaceholderCount;
+    }
+
+    private int segmentIndex() {
+      return myIndex < myPrefixCount ? myIndex : myIndex - myPrefixCount - myPlaceholderCount + mySuffixIndex;
+    }
+
+    private int shift() {
+      return myIndex < myPrefixCount ? 0 : myShift;
+    }
+
+    @Override
+    public TextAttributes getTextAttributes() {
+      return getAttributes(getTokenType());
+    }
+
+    @Override
+    public int getStart() {
+      return isPlaceholder() ? myPlaceholderStart : mySegments.getSegmentStart(segmentIndex()) + shift();
+    }
+
+    @Override
+    public int getEnd() {
+      return isPlaceholder() ? myPlaceholderEnd : mySegments.getSegmentEnd(segmentIndex()) + shift();
+    }
+
+    @Override
+    public IElementType getTokenType() {
+      return isPlaceholder() ? TokenType.WHITE_SPACE : unpackToken(mySegments.getSegmentData(segmentIndex()));
+    }
+
+    @Override
+    public void advance() {
+      myIndex++;
+    }
+
+    @Override
+    public void retreat() {
+      myIndex--;
+    }
+
+    @Override
+    public boolean atEnd() {
+      return myIndex >= myCount || myIndex < 0;
+    }
+
+    @Override
+    public Document getDocument() {
+      return LexerEditorHighlighter.this.getDocument();
+    }
+  }
+
+  private static class PendingChange {
+    private final int myOldLength; // length of the text the segments are for
+    private int myStart;            // the text is not changed before this offset
+    private int mySuffixLength;     // nor in this number of last chars
+    private int myNewLength;
+    private boolean myRelexing;
+
+    private PendingChange(int oldLength, int start) {
+      myOldLength = oldLength;
+      myStart = start;
+      mySuffixLength = oldLength - start;
+    }
+
+    private void add(int offset, int newLength, int textLength) {
+      myStart = Math.min(myStart, offset);
+      mySuffixLength = Math.min(mySuffixLength, textLength - offset - newLength);
+      myNewLength = textLength;
+    }
+
+    private int getOldEnd() {
+      return myOldLength - mySuffixLength;
+    }
+
+    private int getNewEnd() {
+      return myNewLength - mySuffixLength;
+    }
+  }
+
+  private static class SegmentsUpdate {
+    private final int myStartIndex;
+    private final int myOldEndIndex;
+    private final SegmentArrayWithData myInsertSegments;
+    private final int myInsertSegmentCount;
+    private final int myShift;
+    private final int myStartOffset;
+    private final int myRepaintEnd;
+    private final int myLastData;
+
+    private SegmentsUpdate(int startIndex,
+                           int oldEndIndex,
+                           SegmentArrayWithData insertSegments,
+                           int insertSegmentCount,
+                           int shift,
+                           int startOffset,
+                           int repaintEnd,
+                           int lastData) {
+      myStartIndex = startIndex;
+      myOldEndIndex = oldEndIndex;
+      myInsertSegments = insertSegments;
+      myInsertSegmentCount = insertSegmentCount;
+      myShift = shift;
+      myStartOffset = startOffset;
+      myRepaintEnd = repaintEnd;
+      myLastData = lastData;
+    }
+  }
+
   public SegmentArrayWithData getSegments() {
     return mySegments;
   }
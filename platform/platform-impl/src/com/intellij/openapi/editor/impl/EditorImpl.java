@@ -117,6 +117,7 @@ import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class EditorImpl extends UserDataHolderBase implements EditorEx, HighlighterClient, Queryable {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.editor.impl.EditorImpl");
@@ -208,6 +209,14 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
 
   private final EditorSizeContainer mySizeContainer = new EditorSizeContainer();
 
+  /** Number of columns to lay out at least when a visual line is not cached yet, the line may be asked for further columns soon. */
+  private static final int MIN_LAYOUT_COLUMNS = 256;
+  private final LineLayoutCache myLineLayoutCache;
+
+  private static final AtomicLong ourPaintCount = new AtomicLong();
+  private static final AtomicLong ourPaintTime = new AtomicLong(); // nanos
+  private static final AtomicLong ourMaxPaintTime = new AtomicLong(); // nanos
+
   private boolean myUpdateCursor;
   private int myCaretUpdateVShift;
   
@@ -283,6 +292,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
   EditorImpl(@NotNull Document document, boolean viewer, @Nullable Project project) {
     myProject = project;
     myDocument = (DocumentImpl)document;
+    myLineLayoutCache = new LineLayoutCache();
     myScheme = createBoundColorSchemeDelegate(null);
     initTabPainter();
     myIsViewer = viewer;
@@ -323,6 +333,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
 
         int startLine = start == -1 ? 0 : myDocument.getLineNumber(start);
         int endLine = end == -1 ? myDocument.getLineCount() : myDocument.getLineNumber(end);
+        myLineLayoutCache.invalidate(start, end);
         repaintLines(Math.max(0, startLine - 1), Math.min(endLine + 1, getDocument().getLineCount()));
         GutterIconRenderer renderer = highlighter.getGutterIconRenderer();
 
@@ -349,6 +360,17 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     myDocument.addDocumentListener(mySoftWrapModel,myCaretModel);
 
     myFoldingModel.addListener(mySoftWrapModel);
+    myFoldingModel.addListener(new FoldingListener() {
+      @Override
+      public void onFoldRegionStateChange(@NotNull FoldRegion region) {
+        myLineLayoutCache.reset();
+      }
+
+      @Override
+      public void onFoldProcessingEnd() {
+        myLineLayoutCache.reset();
+      }
+    });
 
     myIndentsModel = new IndentsModelImpl(this);
     myCaretModel.addCaretListener(new CaretListener() {
@@ -395,11 +417,13 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       @Override
       public void softWrapAdded(@NotNull SoftWrap softWrap) {
         mySoftWrapsChanged = true;
+        myLineLayoutCache.reset();
       }
 
       @Override
       public void softWrapsRemoved() {
         mySoftWrapsChanged = true;
+        myLineLayoutCache.reset();
       }
     });
     
@@ -490,6 +514,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     myPrefixText = prefixText == null ? null: prefixText.toCharArray();
     myPrefixAttributes = attributes;
     myPrefixWidthInPixels = 0;
+    myLineLayoutCache.reset();
     if (myPrefixText != null) {
       for (char c : myPrefixText) {
         myPrefixWidthInPixels += EditorUtil.charWidth(c, myPrefixAttributes.getFontType(), this);
@@ -585,6 +610,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     myLineHeight = -1;
     myDescent = -1;
     myPlainFontMetrics = null;
+    myLineLayoutCache.reset();
 
     boolean softWrapsUsedBefore = mySoftWrapModel.isSoftWrappingEnabled();
 
@@ -820,6 +846,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
   public void setFontSize(final int fontSize) {
     int oldFontSize = myScheme.getEditorFontSize();
     myScheme.setEditorFontSize(fontSize);
+    myLineLayoutCache.reset();
     myPropertyChangeSupport.firePropertyChange(PROP_FONT_SIZE, oldFontSize, fontSize);
     // Update vertical scroll bar bounds if necessary (we had a problem that use increased editor font size and it was not possible
     // to scroll to the bottom of the document).
@@ -1301,6 +1328,22 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       x += myPrefixWidthInPixels;
     }
     if (length <= 0) return x;
+
+    LineLayoutCache.LineLayout layout = myLineLayoutCache.get(startOffset, x, length);
+    if (layout == null) {
+      layout = layoutLine(startOffset, x, Math.max(length, MIN_LAYOUT_COLUMNS));
+      myLineLayoutCache.put(startOffset, layout);
+    }
+    return layout.getX(length, this);
+  }
+
+  /**
+   * Walks the visual line starting at the given offset until the given number of columns is reached or the line ends
+   * and records x coordinate of every visual column on the way.
+   */
+  private LineLayoutCache.LineLayout layoutLine(int startOffset, int startX, int length) {
+    LineLayoutCache.LineLayout layout = new LineLayoutCache.LineLayout(startX);
+    int x = startX;
     int offset = startOffset;
     CharSequence text = myDocument.getCharsNoThreadCheck();
     int textLength = myDocument.getTextLength();
@@ -1323,6 +1366,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
         if (softWrap != null && offset > startOffset) {
           column++;
           x += getSoftWrapModel().getMinDrawingWidthInPixels(SoftWrapDrawingType.BEFORE_SOFT_WRAP_LINE_FEED);
+          layout.addStep(column, x, fontType);
           // Assuming that first soft wrap symbol is line feed or all soft wrap symbols before the first line feed are spaces.
           break;
         }
@@ -1334,6 +1378,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
           for (char aPlaceholder : placeholder) {
             x += EditorUtil.charWidth(aPlaceholder, fontType, this);
             column++;
+            layout.addStep(column, x, fontType);
             if (column >= length) break outer;
           }
           offset = region.getEndOffset();
@@ -1359,15 +1404,17 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
             x += EditorUtil.charWidth(c, fontType, this);
             column++;
           }
+          layout.addStep(column, x, fontType);
           offset++;
         }
       }
 
-      if (column != length) {
-        x += EditorUtil.getSpaceWidth(fontType, this) * (length - column);
+      if (column < length) {
+        // the visual line is over, the rest columns are virtual spaces
+        layout.finish(column, x, fontType);
       }
 
-      return x;
+      return layout;
     }
     finally {
       state.dispose();
@@ -1381,6 +1428,8 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
 
   @Override
   public void repaint(final int startOffset, final int endOffset) {
+    // the tokens may have been highlighted differently
+    myLineLayoutCache.invalidate(startOffset, endOffset);
     if (!isShowing() || myScrollPane == null || myDocument.isInBulkUpdate()) {
       return;
     }
@@ -1475,6 +1524,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
   }
 
   private void changedUpdate(DocumentEvent e) {
+    myLineLayoutCache.reset();
     if (myScrollPane == null || myDocument.isInBulkUpdate()) return;
 
     stopOptimizedScrolling();
@@ -1634,6 +1684,43 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
   }
 
   void paint(Graphics g) {
+    long started = System.nanoTime();
+    int layoutHits = myLineLayoutCache.getHits();
+    int layoutMisses = myLineLayoutCache.getMisses();
+    try {
+      doPaint(g);
+    }
+    finally {
+      paintFinished(started, myLineLayoutCache.getHits() - layoutHits, myLineLayoutCache.getMisses() - layoutMisses);
+    }
+  }
+
+  private void paintFinished(long startedNanos, int layoutHits, int layoutMisses) {
+    long time = System.nanoTime() - startedNanos;
+    ourPaintCount.incrementAndGet();
+    ourPaintTime.addAndGet(time);
+    long max;
+    while (time > (max = ourMaxPaintTime.get()) && !ourMaxPaintTime.compareAndSet(max, time)) {
+      // retry
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("paint: " + time / 1000000 + "ms, visual lines taken from layout cache: " + layoutHits + ", laid out: " + layoutMisses);
+    }
+  }
+
+  public static long getPaintCount() {
+    return ourPaintCount.get();
+  }
+
+  public static long getTotalPaintTimeMs() {
+    return ourPaintTime.get() / 1000000;
+  }
+
+  public static long getMaxPaintTimeMs() {
+    return ourMaxPaintTime.get() / 1000000;
+  }
+
+  private void doPaint(Graphics g) {
     startOptimizedScrolling();
 
     if (myUpdateCursor) {
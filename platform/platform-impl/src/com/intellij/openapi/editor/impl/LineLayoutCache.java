@@ -0,0 +1,180 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.openapi.editor.ex.util.EditorUtil;
+import com.intellij.util.ArrayUtil;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntProcedure;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Keeps x coordinates of the visual columns of the recently painted visual lines, so that mapping positions to points
+ * doesn't walk the highlighters and measure every char of the line again on each repaint.
+ * <p/>
+ * Layouts are keyed by the start offset of the visual line. Any change of the text, folding, soft wraps or fonts drops
+ * the whole cache, highlighting changes drop the layouts of the affected lines only.
+ * <p/>
+ * Is mostly used from the EDT, but positions may be mapped to points from other threads too.
+ *
+ * @see EditorImpl#visualPositionToXY
+ */
+class LineLayoutCache {
+  /** Max number of cached visual lines, the cache is dropped when it's exceeded. */
+  private static final int MAX_LINES = 2000;
+  /** Whether layouts are kept at all; without the cache every visual line is laid out on each request. */
+  static boolean USE_CACHE = !"false".equals(System.getProperty("idea.editor.line.layout.cache"));
+
+  private final TIntObjectHashMap<LineLayout> myLayouts = new TIntObjectHashMap<LineLayout>();
+  private int myHits;
+  private int myMisses;
+
+  /**
+   * @return layout of the visual line starting at the given offset and painted from the given x, if it's cached
+   *         and covers the given number of columns
+   */
+  @Nullable
+  synchronized LineLayout get(int startOffset, int startX, int columns) {
+    if (!USE_CACHE) return null;
+    final LineLayout layout = myLayouts.get(startOffset);
+    if (layout != null && layout.myStartX == startX && layout.covers(columns)) {
+      myHits++;
+      return layout;
+    }
+    myMisses++;
+    return null;
+  }
+
+  synchronized void put(int startOffset, LineLayout layout) {
+    if (!USE_CACHE) return;
+    if (myLayouts.size() >= MAX_LINES) {
+      myLayouts.clear();
+    }
+    myLayouts.put(startOffset, layout);
+  }
+
+  synchronized void reset() {
+    if (!myLayouts.isEmpty()) {
+      myLayouts.clear();
+    }
+  }
+
+  /**
+   * Drops layouts of the visual lines that may be painted differently because of a change in the given range.
+   * <p/>
+   * The visual line containing the range start may begin several logical lines earlier, when they are folded,
+   * or in the middle of a logical line, after a soft wrap. As visual lines don't overlap, the cached line
+   * starting last at or before the range start is the only one that may contain it.
+   */
+  synchronized void invalidate(final int startOffset, int endOffset) {
+    if (myLayouts.isEmpty()) return;
+    final int end = endOffset < 0 ? Integer.MAX_VALUE : endOffset;
+    final TIntArrayList toRemove = new TIntArrayList();
+    final int[] containingLineStart = {-1};
+    myLayouts.forEachKey(new TIntProcedure() {
+      @Override
+      public boolean execute(int offset) {
+        if (offset <= startOffset) {
+          containingLineStart[0] = Math.max(containingLineStart[0], offset);
+        }
+        else if (offset <= end) {
+          toRemove.add(offset);
+        }
+        return true;
+      }
+    });
+    if (containingLineStart[0] >= 0) {
+      toRemove.add(containingLineStart[0]);
+    }
+    for (int i = 0; i < toRemove.size(); i++) {
+      myLayouts.remove(toRemove.get(i));
+    }
+  }
+
+  synchronized int getHits() {
+    return myHits;
+  }
+
+  synchronized int getMisses() {
+    return myMisses;
+  }
+
+  /**
+   * X coordinates of the visual columns of a line prefix, recorded as the steps of the line walk: a step is a char,
+   * a folding placeholder char, a tab (possibly taking several columns) or a soft wrap sign.
+   */
+  static class LineLayout {
+    private final int myStartX;
+    private int[] myColumns = new int[16];
+    private int[] myX = new int[16];
+    private int[] myFontTypes = new int[16];
+    private int mySize;
+    private boolean myComplete; // whether the steps reach the end of the visual line
+
+    LineLayout(int startX) {
+      myStartX = startX;
+    }
+
+    void addStep(int column, int x, int fontType) {
+      if (mySize == myColumns.length) {
+        final int newLength = mySize * 2;
+        myColumns = ArrayUtil.realloc(myColumns, newLength);
+        myX = ArrayUtil.realloc(myX, newLength);
+        myFontTypes = ArrayUtil.realloc(myFontTypes, newLength);
+      }
+      myColumns[mySize] = column;
+      myX[mySize] = x;
+      myFontTypes[mySize] = fontType;
+      mySize++;
+    }
+
+    /**
+     * Marks the end of the visual line, columns after it are considered to be spaces of the given font type.
+     */
+    void finish(int column, int x, int fontType) {
+      addStep(column, x, fontType);
+      myComplete = true;
+    }
+
+    int getLastColumn() {
+      return mySize == 0 ? 0 : myColumns[mySize - 1];
+    }
+
+    boolean covers(int columns) {
+      return myComplete || getLastColumn() >= columns;
+    }
+
+    /**
+     * @return x coordinate of the given column, the same as if the line was walked until the column is reached
+     */
+    int getX(int column, EditorImpl editor) {
+      int low = 0;
+      int high = mySize - 1;
+      while (low < high) {
+        final int middle = (low + high) >>> 1;
+        if (myColumns[middle] < column) {
+          low = middle + 1;
+        }
+        else {
+          high = middle;
+        }
+      }
+      // the step may end after the column (a tab), or the column may be past the line end
+      return myX[low] + EditorUtil.getSpaceWidth(myFontTypes[low], editor) * (column - myColumns[low]);
+    }
+  }
+}
@@ -15,7 +15,10 @@
  */
 package com.intellij.openapi.editor.impl.softwrap.mapping;
 
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.application.ex.ApplicationManagerEx;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.*;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.event.DocumentListener;
@@ -33,12 +36,14 @@ import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.openapi.util.text.StringUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import javax.swing.*;
 import java.awt.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The general idea of soft wraps processing is to build a cache to use for quick document dimensions mapping
@@ -67,6 +72,24 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
     CUSTOM
   }
 
+  private static final Logger LOG = Logger.getInstance("#" + SoftWrapApplianceManager.class.getName());
+
+  /**
+   * Whole document recalculation for the documents of at least this length processes the lines around the viewport first
+   * and the rest of the document in {@link #SLICE_TIME_MS short} slices at the following EDT events; negative value disables that.
+   */
+  private static final int DEFAULT_LAZY_RECALCULATION_THRESHOLD = Integer.getInteger("idea.editor.soft.wraps.lazy.threshold", -1);
+  private static final long SLICE_TIME_MS = 20;
+  private static final int DEFAULT_SLICE_LINES = 500;
+
+  private static volatile int ourLazyRecalculationThreshold = DEFAULT_LAZY_RECALCULATION_THRESHOLD;
+  private static volatile int ourSliceLines = DEFAULT_SLICE_LINES;
+  private static volatile boolean ourLazyRecalculationInTests;
+
+  private static final AtomicLong ourRecalculationCount = new AtomicLong();
+  private static final AtomicLong ourRecalculationTime = new AtomicLong(); // nanos
+  private static final AtomicLong ourMaxRecalculationTime = new AtomicLong(); // nanos
+
   private final List<SoftWrapAwareDocumentParsingListener> myListeners            = new ArrayList<SoftWrapAwareDocumentParsingListener>();
   private final List<IncrementalCacheUpdateEvent>          myActiveEvents         = new ArrayList<IncrementalCacheUpdateEvent>();
   private final CacheUpdateEventsStorage                   myEventsStorage        = new CacheUpdateEventsStorage();
@@ -74,6 +97,9 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
   private final FontTypesStorage                           myOffset2fontType      = new FontTypesStorage();
   private final WidthsStorage                              myOffset2widthInPixels = new WidthsStorage();
 
+  /** Document regions which soft wraps are not calculated yet during lazy whole document recalculation. */
+  private final List<PendingRegion>                        myPendingRegions       = new ArrayList<PendingRegion>();
+
   private final SoftWrapsStorage               myStorage;
   private final EditorEx                       myEditor;
   private final SoftWrapPainter myPainter;
@@ -97,6 +123,7 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
   private int                      myCustomIndentValueUsedLastTime;
   private int                      myVisibleAreaWidth;
   private boolean                  myInProgress;
+  private boolean                  mySliceScheduled;
 
   public SoftWrapApplianceManager(@NotNull SoftWrapsStorage storage,
                                   @NotNull EditorEx editor,
@@ -117,6 +144,7 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
 
   public void reset() {
     myEventsStorage.release();
+    myPendingRegions.clear();
     myEventsStorage.add(myEditor.getDocument(), new IncrementalCacheUpdateEvent(myEditor.getDocument()));
     for (SoftWrapAwareDocumentParsingListener listener : myListeners) {
       listener.reset();
@@ -125,6 +153,7 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
   
   public void release() {
     myEventsStorage.release();
+    myPendingRegions.clear();
     myLineWrapPositionStrategy = null;
   }
 
@@ -157,6 +186,9 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
     if (myVisibleAreaWidth <= 0) {
       return false;
     }
+    if (isLazyRecalculationApplicable()) {
+      splitWholeDocumentEvent();
+    }
 
     // There is a possible case that new dirty regions are encountered during processing, hence, we iterate on regions snapshot here.
     List<IncrementalCacheUpdateEvent> events = new ArrayList<IncrementalCacheUpdateEvent>(myEventsStorage.getEvents());
@@ -173,10 +205,157 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
       myActiveEvents.clear();
     }
     updateLastTopLeftCornerOffset();
+    if (!myPendingRegions.isEmpty()) {
+      scheduleSlice();
+    }
     return true;
   }
 
+  private boolean isLazyRecalculationApplicable() {
+    int threshold = ourLazyRecalculationThreshold;
+    if (threshold < 0 || myEditor.getDocument().getTextLength() < threshold) {
+      return false;
+    }
+    Application application = ApplicationManager.getApplication();
+    if (application == null || application.isUnitTestMode() && !ourLazyRecalculationInTests) {
+      return false;
+    }
+    List<IncrementalCacheUpdateEvent> events = myEventsStorage.getEvents();
+    if (events.size() != 1) {
+      return false;
+    }
+    IncrementalCacheUpdateEvent event = events.get(0);
+    return event.getExactOffsetsDiff() == 0 && event.getOldStartOffset() == 0
+           && event.getOldEndOffset() >= myEditor.getDocument().getTextLength() - 1;
+  }
+
+  /**
+   * Replaces the whole document recalculation by recalculation of the lines around the viewport, the rest of the document
+   * is recalculated {@link #processPendingRegions() later}.
+   * <p/>
+   * Regional recalculation shifts the cached data of the following lines, so the regions may be processed in any order.
+   */
+  private void splitWholeDocumentEvent() {
+    Document document = myEditor.getDocument();
+    int textLength = document.getTextLength();
+    int anchorOffset = myLastTopLeftCornerOffset >= 0 ? Math.min(myLastTopLeftCornerOffset, textLength)
+                                                      : myEditor.getCaretModel().getOffset();
+    int anchorLine = document.getLineNumber(anchorOffset);
+    int visibleLines = myEditor.getScrollingModel().getVisibleArea().height / myEditor.getLineHeight() + 1;
+
+    // Logical lines are used as there is no information about soft wraps yet, some lines after the viewport are likely to be
+    // pushed out of it by the soft wraps.
+    int startLine = Math.max(0, anchorLine - visibleLines);
+    int endLine = Math.min(document.getLineCount() - 1, anchorLine + 2 * visibleLines);
+    int startOffset = document.getLineStartOffset(startLine);
+    int endOffset = document.getLineEndOffset(endLine);
+    if (startOffset == 0 && endOffset >= textLength - 1) {
+      return;
+    }
+
+    myEventsStorage.release();
+    myEventsStorage.add(document, new IncrementalCacheUpdateEvent(document, startOffset, endOffset));
+    myPendingRegions.clear();
+    if (endOffset < textLength - 1) {
+      myPendingRegions.add(new PendingRegion(endOffset + 1, textLength - 1));
+    }
+    if (startOffset > 0) {
+      myPendingRegions.add(new PendingRegion(0, startOffset - 1));
+    }
+  }
+
+  /**
+   * Makes whole document recalculation lazy for documents of at least the given length, which enables it in unit tests.
+   * Pending regions are recalculated by slices of the given number of lines. Pass a negative threshold to restore the defaults.
+   */
+  @TestOnly
+  public static void setLazyRecalculationForTests(int threshold, int sliceLines) {
+    boolean enabled = threshold >= 0;
+    ourLazyRecalculationThreshold = enabled ? threshold : DEFAULT_LAZY_RECALCULATION_THRESHOLD;
+    ourSliceLines = enabled ? sliceLines : DEFAULT_SLICE_LINES;
+    ourLazyRecalculationInTests = enabled;
+  }
+
+  @TestOnly
+  boolean hasPendingRegions() {
+    return !myPendingRegions.isEmpty();
+  }
+
+  private void scheduleSlice() {
+    if (mySliceScheduled) {
+      return;
+    }
+    mySliceScheduled = true;
+    SwingUtilities.invokeLater(new Runnable() {
+      @Override
+      public void run() {
+        mySliceScheduled = false;
+        processPendingRegions();
+      }
+    });
+  }
+
+  /**
+   * Recalculates soft wraps of the pending document regions until the time slice is over and schedules the next slice
+   * if there is still something to process.
+   */
+  private void processPendingRegions() {
+    if (myPendingRegions.isEmpty() || myEditor.isDisposed()) {
+      return;
+    }
+    if (!myEditor.getSettings().isUseSoftWraps()) {
+      myPendingRegions.clear();
+      return;
+    }
+    if (myInProgress || myVisibleAreaWidth <= 0) {
+      // Processing is resumed on the next recalculation.
+      return;
+    }
+
+    // Soft wraps introduced before the viewport shouldn't scroll its content.
+    ScrollingModelEx scrollingModel = myEditor.getScrollingModel();
+    int yScrollOffset = scrollingModel.getVerticalScrollOffset();
+    int anchorOffset = myLastTopLeftCornerOffset;
+    int softWrapsBefore = anchorOffset >= 0 ? getNumberOfSoftWrapsBefore(anchorOffset) : -1;
+    int softWrapsCount = myStorage.getSoftWraps().size();
+
+    long deadline = System.currentTimeMillis() + SLICE_TIME_MS;
+    do {
+      Document document = myEditor.getDocument();
+      myEventsStorage.add(document, nextPendingEvent(document));
+      recalculateSoftWraps();
+    }
+    while (!myPendingRegions.isEmpty() && System.currentTimeMillis() < deadline);
+
+    adjustViewport(anchorOffset, softWrapsBefore, yScrollOffset);
+    updateLastTopLeftCornerOffset();
+    if (myStorage.getSoftWraps().size() != softWrapsCount) {
+      myEditor.getComponent().repaint();
+    }
+  }
+
+  /**
+   * Cuts up to {@link #ourSliceLines} lines from the start of the first pending region.
+   */
+  private IncrementalCacheUpdateEvent nextPendingEvent(Document document) {
+    PendingRegion region = myPendingRegions.get(0);
+    int textLength = document.getTextLength();
+    int startLine = document.getLineNumber(Math.min(region.startOffset, textLength));
+    int endLine = document.getLineNumber(Math.min(region.endOffset, textLength));
+    int sliceEndLine = Math.min(endLine, startLine + ourSliceLines - 1);
+    int startOffset = document.getLineStartOffset(startLine);
+    int endOffset = document.getLineEndOffset(sliceEndLine);
+    if (sliceEndLine >= endLine) {
+      myPendingRegions.remove(0);
+    }
+    else {
+      region.startOffset = endOffset + 1;
+    }
+    return new IncrementalCacheUpdateEvent(document, startOffset, endOffset);
+  }
+
   private void recalculateSoftWraps(IncrementalCacheUpdateEvent event) {
+    long started = System.nanoTime();
     event.updateNewOffsetsIfNecessary(myEditor.getDocument(), myEditor.getFoldingModel());
     
     //CachingSoftWrapDataMapper.log("xxxxxxxxxxxxxx Processing soft wraps for " + event + ". Document length: " + myEditor.getDocument().getTextLength() 
@@ -199,9 +378,35 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
       //  "xxxxxxxxxxxxxxxxxxx Listeners notification on end is complete in " + (System.currentTimeMillis() - start) 
       //  + " ms. Processing finished " + (normalCompletion ? "normally" : "non-normally")
       //);
+      recordRecalculation(started, event);
+    }
+  }
+
+  private static void recordRecalculation(long startedNanos, IncrementalCacheUpdateEvent event) {
+    final long time = System.nanoTime() - startedNanos;
+    ourRecalculationCount.incrementAndGet();
+    ourRecalculationTime.addAndGet(time);
+    long max;
+    while (time > (max = ourMaxRecalculationTime.get()) && !ourMaxRecalculationTime.compareAndSet(max, time)) {
+      // retry
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("soft wraps recalculation of " + (event.getNewEndOffset() - event.getNewStartOffset()) + " chars: " + time / 1000000 + "ms");
     }
   }
 
+  public static long getRecalculationCount() {
+    return ourRecalculationCount.get();
+  }
+
+  public static long getTotalRecalculationTimeMs() {
+    return ourRecalculationTime.get() / 1000000;
+  }
+
+  public static long getMaxRecalculationTimeMs() {
+    return ourMaxRecalculationTime.get() / 1000000;
+  }
+
   private boolean doRecalculateSoftWraps(IncrementalCacheUpdateEvent event) {
     // Preparation.
     myContext.reset();
@@ -725,23 +930,31 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
       return false;
     }
 
-    // Adjust viewport's 'y' coordinate if necessary.
-    if (softWrapsBefore >= 0) {
-      int softWrapsNow = getNumberOfSoftWrapsBefore(anchorOffset);
-      if (softWrapsNow != softWrapsBefore) {
-        scrollingModel.disableAnimation();
-        try {
-          scrollingModel.scrollVertically(yScrollOffset + (softWrapsNow - softWrapsBefore) * myEditor.getLineHeight());
-        }
-        finally {
-          scrollingModel.enableAnimation();
-        }
-      }
-    }
+    adjustViewport(anchorOffset, softWrapsBefore, yScrollOffset);
     updateLastTopLeftCornerOffset();
     return result;
   }
 
+  /**
+   * Adjusts viewport's <code>'y'</code> coordinate if the number of soft wraps before the given anchor offset has changed.
+   */
+  private void adjustViewport(int anchorOffset, int softWrapsBefore, int yScrollOffset) {
+    if (softWrapsBefore < 0) {
+      return;
+    }
+    int softWrapsNow = getNumberOfSoftWrapsBefore(anchorOffset);
+    if (softWrapsNow != softWrapsBefore) {
+      ScrollingModelEx scrollingModel = myEditor.getScrollingModel();
+      scrollingModel.disableAnimation();
+      try {
+        scrollingModel.scrollVertically(yScrollOffset + (softWrapsNow - softWrapsBefore) * myEditor.getLineHeight());
+      }
+      finally {
+        scrollingModel.enableAnimation();
+      }
+    }
+  }
+
   private void updateLastTopLeftCornerOffset() {
     final LogicalPosition logicalPosition = myEditor.visualToLogicalPosition(
       new VisualPosition(1 + myEditor.getScrollingModel().getVisibleArea().y / myEditor.getLineHeight(), 0)
@@ -870,6 +1083,28 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
   @Override
   public void beforeDocumentChange(DocumentEvent event) {
     myEventsStorage.add(event.getDocument(), new IncrementalCacheUpdateEvent(event));
+    if (!myPendingRegions.isEmpty()) {
+      updatePendingRegions(event);
+    }
+  }
+
+  private void updatePendingRegions(DocumentEvent event) {
+    int changeStart = event.getOffset();
+    int changeEnd = changeStart + event.getOldLength();
+    int diff = event.getNewLength() - event.getOldLength();
+    for (PendingRegion region : myPendingRegions) {
+      if (region.endOffset < changeStart) {
+        continue;
+      }
+      if (region.startOffset > changeEnd) {
+        region.startOffset += diff;
+        region.endOffset += diff;
+        continue;
+      }
+      // The changed text itself is recalculated because of the document change.
+      region.startOffset = Math.min(region.startOffset, changeStart);
+      region.endOffset = Math.max(changeStart + event.getNewLength(), region.endOffset + diff);
+    }
   }
 
   @Override
@@ -888,6 +1123,16 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
     );
   }
 
+  private static class PendingRegion {
+    public int startOffset;
+    public int endOffset; // inclusive
+
+    PendingRegion(int startOffset, int endOffset) {
+      this.startOffset = startOffset;
+      this.endOffset = endOffset;
+    }
+  }
+
   /**
    * We need to use correct indent for soft-wrapped lines, i.e. they should be indented to the start of the logical line.
    * This class stores information about logical line start indent. 
@@ -18,8 +18,12 @@ package com.intellij.openapi.progress.util;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.ApplicationAdapter;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ex.ApplicationEx;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.util.EmptyRunnable;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * @author gregsh
@@ -38,4 +42,42 @@ public class ProgressIndicatorUtils {
       }, builder);
     return progress;
   }
+
+  /**
+   * Runs the action in a read action which is canceled when a write action is requested, and restarts it
+   * after the write action has finished, until it completes or the current progress is canceled.
+   * The action must therefore be safe to run several times.
+   *
+   * @return true if the action has completed, false if the current progress was canceled
+   */
+  public static boolean runWithWriteActionPriority(@NotNull Runnable action) {
+    final ApplicationEx application = (ApplicationEx)ApplicationManager.getApplication();
+    final ProgressIndicator outer = ProgressManager.getInstance().getProgressIndicator();
+    while (true) {
+      if (outer != null && outer.isCanceled()) {
+        return false;
+      }
+      if (application.runReadActionWithWriteActionPriority(action, new SensitiveProgressWrapper(outer))) {
+        return true;
+      }
+      // the lock prefers writers, so this returns only after the pending write action has finished
+      application.runReadAction(EmptyRunnable.getInstance());
+    }
+  }
+
+  /**
+   * Canceled either directly or together with the wrapped indicator
+   */
+  private static class SensitiveProgressWrapper extends ProgressIndicatorBase {
+    @Nullable private final ProgressIndicator myOriginal;
+
+    private SensitiveProgressWrapper(@Nullable ProgressIndicator original) {
+      myOriginal = original;
+    }
+
+    @Override
+    public boolean isCanceled() {
+      return super.isCanceled() || myOriginal != null && myOriginal.isCanceled();
+    }
+  }
 }
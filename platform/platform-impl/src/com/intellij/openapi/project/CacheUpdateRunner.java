@@ -20,12 +20,14 @@ import com.intellij.ide.caches.FileContent;
 import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationAdapter;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ex.ApplicationEx;
 import com.intellij.openapi.application.impl.ApplicationImpl;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.util.ProgressIndicatorBase;
+import com.intellij.openapi.util.EmptyRunnable;
 import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -35,6 +37,9 @@ import gnu.trove.THashSet;
 import java.util.Collection;
 import java.util.Set;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 class CacheUpdateRunner {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.project.CacheUpdateRunner");
@@ -42,6 +47,8 @@ class CacheUpdateRunner {
   private final Project myProject;
   private final Collection<CacheUpdater> myUpdaters;
   private CacheUpdateSession mySession;
+  private final AtomicInteger myIndexedFiles = new AtomicInteger();
+  private final AtomicLong myIndexingTime = new AtomicLong();
 
   CacheUpdateRunner(Project project, Collection<CacheUpdater> updaters) {
     myProject = project;
@@ -66,6 +73,7 @@ class CacheUpdateRunner {
   public void processFiles(final ProgressIndicator indicator, boolean processInReadAction) {
     try {
       indicator.checkCanceled();
+      final long started = System.currentTimeMillis();
       final FileContentQueue queue = new FileContentQueue();
       Collection<VirtualFile> files = mySession.getFilesToUpdate();
       final double total = files.size();
@@ -97,12 +105,22 @@ class CacheUpdateRunner {
         if (processSomeFilesWhileUserIsInactive(queue, progressUpdater, processInReadAction)) {
           break;
         }
+        if (processInReadAction && !ApplicationManager.getApplication().isReadAccessAllowed()) {
+          // the lock prefers writers, so this returns only after the write action which canceled the processing has finished
+          ApplicationManager.getApplication().runReadAction(EmptyRunnable.getInstance());
+        }
       }
 
       if (myProject.isDisposed()) {
         indicator.cancel();
         indicator.checkCanceled();
       }
+
+      if (total > 0 && LOG.isDebugEnabled()) {
+        LOG.debug("Processed " + myIndexedFiles.get() + " files in " + (System.currentTimeMillis() - started) + "ms; " +
+                 "loading " + queue.getLoadedFilesCount() + " files (" + queue.getLoadedBytes() / 1024 + "K): " + queue.getLoadingTime() + "ms, " +
+                 "indexing: " + TimeUnit.NANOSECONDS.toMillis(myIndexingTime.get()) + "ms (total time of all threads)");
+      }
     }
     catch (ProcessCanceledException e) {
       mySession.canceled();
@@ -190,7 +208,7 @@ class CacheUpdateRunner {
     private final Ref<Boolean> myFinished;
     private final Consumer<VirtualFile> myProgressUpdater;
     private final boolean myProcessInReadAction;
-    private final Application myApplication;
+    private final ApplicationEx myApplication;
 
     public MyRunnable(ProgressIndicatorBase innerIndicator,
                       FileContentQueue queue,
@@ -202,7 +220,7 @@ class CacheUpdateRunner {
       myFinished = finished;
       myProgressUpdater = progressUpdater;
       myProcessInReadAction = processInReadAction;
-      myApplication = application;
+      myApplication = (ApplicationEx)application;
     }
 
     public void run() {
@@ -225,10 +243,20 @@ class CacheUpdateRunner {
 
               final VirtualFile file = fileContent.getVirtualFile();
               myProgressUpdater.consume(file);
+              final long started = System.nanoTime();
               mySession.processFile(fileContent);
+              myIndexingTime.addAndGet(System.nanoTime() - started);
+              myIndexedFiles.incrementAndGet();
             }
           };
-          if (myProcessInReadAction) {
+          if (myProcessInReadAction && !myApplication.isReadAccessAllowed()) {
+            // gives way to write actions: canceled when one is requested and not started while one is pending,
+            // processFiles() retries the file after the write action
+            if (!myApplication.runReadActionWithWriteActionPriority(action, myInnerIndicator)) {
+              throw new ProcessCanceledException();
+            }
+          }
+          else if (myProcessInReadAction) {
             myApplication.runReadAction(action);
           }
           else {
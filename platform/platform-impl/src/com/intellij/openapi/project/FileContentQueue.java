@@ -21,6 +21,7 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.InvalidVirtualFileAccessException;
 import com.intellij.openapi.vfs.VirtualFile;
 import org.jetbrains.annotations.NotNull;
@@ -29,9 +30,12 @@ import org.jetbrains.annotations.Nullable;
 import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
 * @author peter
@@ -39,9 +43,13 @@ import java.util.concurrent.TimeUnit;
 @SuppressWarnings({"SynchronizeOnThis"})
 public class FileContentQueue {
   private static final Logger LOG = Logger.getInstance("#com.intellij.ide.startup.FileContentQueue");
-  private static final long SIZE_THRESHOLD = 1024*1024;
-  private static final long TAKEN_FILES_THRESHOLD = 1024*1024*3;
-  private static final long LARGE_SIZE_REQUEST_THRESHOLD = TAKEN_FILES_THRESHOLD - 1024 * 300; // 300k for other threads
+  private static final int PROC_COUNT = Runtime.getRuntime().availableProcessors();
+  private static final long MEGABYTE = 1024 * 1024;
+
+  // limits on loaded but not yet taken and on taken but not yet released content scale with the heap: 1/64 of it, but 1..16M
+  private final long mySizeThreshold = Math.max(MEGABYTE, Math.min(16 * MEGABYTE, Runtime.getRuntime().maxMemory() / 64));
+  private final long myTakenFilesThreshold = mySizeThreshold * 3;
+  private final long myLargeSizeRequestThreshold = myTakenFilesThreshold - 1024 * 300; // 300k for other threads
 
   private long myTotalSize;
   private long myTakenSize;
@@ -50,39 +58,82 @@ public class FileContentQueue {
   private final ArrayBlockingQueue<FileContent> myQueue = new ArrayBlockingQueue<FileContent>(256);
   private final Queue<FileContent> myPushbackBuffer = new ArrayDeque<FileContent>();
   private volatile boolean myContentLoadingThreadTerminated = false;
+  private volatile boolean myContentLoadingCanceled = false;
+
+  private final AtomicInteger myLoadedFiles = new AtomicInteger();
+  private final AtomicLong myLoadedBytes = new AtomicLong();
+  private final AtomicLong myLoadingTime = new AtomicLong();
 
   public void queue(final Collection<VirtualFile> files, @Nullable final ProgressIndicator indicator) {
+    final Iterator<VirtualFile> iterator = files.iterator();
+    final int loadersCount = getContentLoadersCount(files.size());
+    final AtomicInteger activeLoaders = new AtomicInteger(loadersCount);
+
     final Runnable contentLoadingRunnable = new Runnable() {
       public void run() {
         try {
-          for (VirtualFile file : files) {
+          while (true) {
             if (indicator != null) {
               indicator.checkCanceled();
             }
+            final VirtualFile file;
+            synchronized (iterator) {
+              if (!iterator.hasNext()) break;
+              file = iterator.next();
+            }
             addLast(file);
           }
-
-          // put end-of-queue marker only if not canceled
-          try {
-            myQueue.put(new FileContent(null));
-          }
-          catch (InterruptedException e) {
-            LOG.error(e);
-          }
         }
         catch (ProcessCanceledException e) {
-          // Do nothing, exit the thread.
+          myContentLoadingCanceled = true;
         }
         catch (InterruptedException e) {
+          myContentLoadingCanceled = true;
           LOG.error(e);
         }
         finally {
-          myContentLoadingThreadTerminated = true;
+          if (activeLoaders.decrementAndGet() == 0) {
+            // put end-of-queue marker only if not canceled
+            if (!myContentLoadingCanceled) {
+              try {
+                myQueue.put(new FileContent(null));
+              }
+              catch (InterruptedException e) {
+                LOG.error(e);
+              }
+            }
+            myContentLoadingThreadTerminated = true;
+          }
         }
       }
     };
 
-    ApplicationManager.getApplication().executeOnPooledThread(contentLoadingRunnable);
+    for (int i = 0; i < loadersCount; i++) {
+      ApplicationManager.getApplication().executeOnPooledThread(contentLoadingRunnable);
+    }
+  }
+
+  private static int getContentLoadersCount(int filesCount) {
+    int loadersCount = Registry.intValue("caches.contentLoaderThreadsCount");
+    if (loadersCount <= 0) {
+      loadersCount = Math.max(1, Math.min(PROC_COUNT / 2, 4));
+    }
+    return Math.max(1, Math.min(loadersCount, filesCount));
+  }
+
+  public int getLoadedFilesCount() {
+    return myLoadedFiles.get();
+  }
+
+  public long getLoadedBytes() {
+    return myLoadedBytes.get();
+  }
+
+  /**
+   * @return total time (ms) content loading threads spent reading files, not counting the time they waited for consumers
+   */
+  public long getLoadingTime() {
+    return TimeUnit.NANOSECONDS.toMillis(myLoadingTime.get());
   }
 
   private void addLast(VirtualFile file) throws InterruptedException {
@@ -107,7 +158,7 @@ public class FileContentQueue {
     boolean counterUpdated = false;
     try {
       synchronized (this) {
-        while (myTotalSize > SIZE_THRESHOLD) {
+        while (myTotalSize > mySizeThreshold) {
           if (indicator != null) {
             indicator.checkCanceled();
           }
@@ -117,7 +168,11 @@ public class FileContentQueue {
         counterUpdated = true;
       }
 
+      final long started = System.nanoTime();
       content.getBytes(); // Reads the content bytes and caches them.
+      myLoadingTime.addAndGet(System.nanoTime() - started);
+      myLoadedFiles.incrementAndGet();
+      myLoadedBytes.addAndGet(contentLength);
 
       return true;
     }
@@ -161,13 +216,13 @@ public class FileContentQueue {
           }
         }
         synchronized (this) {
-          boolean requestingLargeSize = length > LARGE_SIZE_REQUEST_THRESHOLD;
+          boolean requestingLargeSize = length > myLargeSizeRequestThreshold;
           if (requestingLargeSize) {
             myLargeSizeRequested = true;
           }
           try {
             if (myLargeSizeRequested && !requestingLargeSize ||
-                myTakenSize + length > Math.max(TAKEN_FILES_THRESHOLD, length))
+                myTakenSize + length > Math.max(myTakenFilesThreshold, length))
               wait(300L);
             else {
               myTakenSize += length;
@@ -41,11 +41,16 @@ import gnu.trove.TIntArrayList;
 import gnu.trove.TObjectIntHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 @SuppressWarnings({"PointlessArithmeticExpression", "HardCodedStringLiteral"})
 public class FSRecords implements Forceable {
@@ -85,8 +90,26 @@ public class FSRecords implements Forceable {
   private static final int SAFELY_CLOSED_MAGIC = 0x1f2f3f4f;
   private static final int CORRUPTED_MAGIC = 0xabcf7f7f;
 
+  private static final int UNCOMPRESSED_CONTENTS_VERSION_DELTA = 0x10000;
+
   private static final String CHILDREN_ATT = "FsRecords.DIRECTORY_CHILDREN";
-  private static final Object lock = new Object();
+
+  /**
+   * Structural changes (record creation/deletion, children lists, field updates) take the write lock. Getters of a single
+   * record field take no lock at all: they read the field optimistically and fall back to the read lock only when a writer
+   * interleaved, see {@link #readRecordInt(int, int)}. Other getters need the read lock and may run concurrently.
+   * Set <code>idea.vfs.concurrent.reads=false</code> to serialize readers as well.
+   */
+  private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private static final Lock w = lock.writeLock();
+  private static final boolean CONCURRENT_READS = Boolean.parseBoolean(System.getProperty("idea.vfs.concurrent.reads", "true"));
+  private static volatile boolean ourConcurrentReads = CONCURRENT_READS;
+  private static volatile Lock r = CONCURRENT_READS ? lock.readLock() : w;
+
+  // the paged records storage isn't thread safe, so reads under the read lock serialize on this monitor for a buffer access
+  private static final Object ourRecordsAccessLock = new Object();
+  // odd while a writer holds the write lock
+  private static volatile int ourRecordsVersion;
 
   private static volatile int ourLocalModificationCount = 0;
   private static volatile boolean ourIsDisposed;
@@ -107,6 +130,10 @@ public class FSRecords implements Forceable {
     private static Storage myAttributes;
     private static RefCountingStorage myContents;
     private static ResizeableMappedFile myRecords;
+    private static File myRecordsFile;
+    // read-only mapping of the whole records file used by optimistic reads. It's replaced when the file grows and is never
+    // unmapped explicitly, so a reader still holding an old view can't touch unmapped memory.
+    private static volatile ByteBuffer myRecordsView;
     private static final TIntArrayList myFreeRecords = new TIntArrayList();
 
     private static boolean myDirty = false;
@@ -114,7 +141,8 @@ public class FSRecords implements Forceable {
     private static boolean myCorrupted = false;
 
     public static void connect() {
-      synchronized (lock) {
+      writeLock();
+      try {
         if (!ourInitialized) {
           init();
           scanFreeRecords();
@@ -122,6 +150,9 @@ public class FSRecords implements Forceable {
           ourInitialized = true;
         }
       }
+      finally {
+        writeUnlock();
+      }
     }
 
     private static void scanFreeRecords() {
@@ -191,6 +222,7 @@ public class FSRecords implements Forceable {
         myAttributes = new Storage(attributesFile.getCanonicalPath());
         myContents = new RefCountingStorage(contentsFile.getCanonicalPath());
         myRecords = new ResizeableMappedFile(recordsFile, 20 * 1024, new PagedFileStorage.StorageLock(false));
+        myRecordsFile = recordsFile;
 
         if (myRecords.length() == 0) {
           cleanRecord(0); // Clean header
@@ -319,7 +351,8 @@ public class FSRecords implements Forceable {
     }
 
     public static void force() {
-      synchronized (lock) {
+      writeLock();
+      try {
         if (myRecords != null) {
           markClean();
         }
@@ -330,12 +363,16 @@ public class FSRecords implements Forceable {
           myRecords.force();
         }
       }
+      finally {
+        writeUnlock();
+      }
     }
 
     public static void flushSome() {
       if (!isDirty() || HeavyProcessLatch.INSTANCE.isRunning()) return;
 
-      synchronized (lock) {
+      writeLock();
+      try {
         if (myFlushingFuture == null) {
           return; // avoid NPE when close has already taken place
         }
@@ -348,6 +385,9 @@ public class FSRecords implements Forceable {
           myRecords.force();
         }
       }
+      finally {
+        writeUnlock();
+      }
     }
 
     public static boolean isDirty() {
@@ -357,23 +397,28 @@ public class FSRecords implements Forceable {
 
     private static int getVersion() {
       final int recordsVersion = myRecords.getInt(HEADER_VERSION_OFFSET);
-      if (myAttributes.getVersion() != recordsVersion || myContents.getVersion() != recordsVersion) return -1;
+      if (myAttributes.getVersion() != recordsVersion || myContents.getVersion() != getContentsVersion(recordsVersion)) return -1;
 
       return recordsVersion;
     }
 
     public static long getTimestamp() {
-      return myRecords.getLong(HEADER_TIMESTAMP_OFFSET);
+      return getRecordLong(0, HEADER_TIMESTAMP_OFFSET);
     }
 
     private static void setCurrentVersion() {
       myRecords.putInt(HEADER_VERSION_OFFSET, VERSION);
       myRecords.putLong(HEADER_TIMESTAMP_OFFSET, System.currentTimeMillis());
       myAttributes.setVersion(VERSION);
-      myContents.setVersion(VERSION);
+      myContents.setVersion(getContentsVersion(VERSION));
       myRecords.putInt(HEADER_CONNECTION_STATUS_OFFSET, SAFELY_CLOSED_MAGIC);
     }
 
+    // switching between compressed and uncompressed contents requires rebuilding the storage
+    private static int getContentsVersion(int version) {
+      return myContents.isCompressed() ? version : version + UNCOMPRESSED_CONTENTS_VERSION_DELTA;
+    }
+
     public static void cleanRecord(final int id) {
       myRecords.put(id * RECORD_SIZE, ZEROES, 0, RECORD_SIZE);
     }
@@ -412,6 +457,34 @@ public class FSRecords implements Forceable {
         myRecords.close();
         myRecords = null;
       }
+      myRecordsView = null;
+    }
+
+    /**
+     * Called by the last write unlock, so the view covers every record before the version becomes even again.
+     */
+    private static void updateRecordsView() {
+      if (!ourConcurrentReads) return;
+      if (myRecords == null) {
+        myRecordsView = null;
+        return;
+      }
+
+      final ByteBuffer view = myRecordsView;
+      if (view != null && myRecords.length() <= view.limit()) return;
+      try {
+        final RandomAccessFile file = new RandomAccessFile(myRecordsFile, "r");
+        try {
+          myRecordsView = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        finally {
+          file.close();
+        }
+      }
+      catch (IOException e) {
+        LOG.info(e);
+        myRecordsView = null;
+      }
     }
 
     private static void markClean() {
@@ -422,14 +495,16 @@ public class FSRecords implements Forceable {
     }
 
     private static int getAttributeId(String attId) throws IOException {
-      if (myAttributeIds.containsKey(attId)) {
-        return myAttributeIds.get(attId);
-      }
+      synchronized (myAttributeIds) {
+        if (myAttributeIds.containsKey(attId)) {
+          return myAttributeIds.get(attId);
+        }
 
-      int id = myNames.enumerate(attId);
-      myAttributeIds.put(attId, id);
+        int id = myNames.enumerate(attId);
+        myAttributeIds.put(attId, id);
 
-      return id;
+        return id;
+      }
     }
 
     private static RuntimeException handleError(final Throwable e) {
@@ -438,7 +513,10 @@ public class FSRecords implements Forceable {
         if (!myCorrupted) {
           createBrokenMarkerFile(e);
           myCorrupted = true;
-          force();
+          // read lock can't be upgraded, the corruption marker is enough, the header will be updated on the next flush
+          if (lock.isWriteLockedByCurrentThread() || lock.getReadHoldCount() == 0) {
+            force();
+          }
         }
       }
 
@@ -458,9 +536,13 @@ public class FSRecords implements Forceable {
   }
 
   public static long getCreationTimestamp() {
-    synchronized (lock) {
+    r.lock();
+    try {
       return DbConnection.getTimestamp();
     }
+    finally {
+      r.unlock();
+    }
   }
 
   private static ResizeableMappedFile getRecords() {
@@ -480,39 +562,43 @@ public class FSRecords implements Forceable {
   }
 
   public static int createRecord() {
-    synchronized (lock) {
-      try {
-        DbConnection.markDirty();
-
-        final int free = DbConnection.getFreeRecord();
-        if (free == 0) {
-          final int filelength = (int)getRecords().length();
-          LOG.assertTrue(filelength % RECORD_SIZE == 0);
-          int newrecord = filelength / RECORD_SIZE;
-          DbConnection.cleanRecord(newrecord);
-          assert filelength + RECORD_SIZE == getRecords().length();
-          return newrecord;
-        }
-        else {
-          DbConnection.cleanRecord(free);
-          return free;
-        }
+    writeLock();
+    try {
+      DbConnection.markDirty();
+
+      final int free = DbConnection.getFreeRecord();
+      if (free == 0) {
+        final int filelength = (int)getRecords().length();
+        LOG.assertTrue(filelength % RECORD_SIZE == 0);
+        int newrecord = filelength / RECORD_SIZE;
+        DbConnection.cleanRecord(newrecord);
+        assert filelength + RECORD_SIZE == getRecords().length();
+        return newrecord;
       }
-      catch (Throwable e) {
-        throw DbConnection.handleError(e);
+      else {
+        DbConnection.cleanRecord(free);
+        return free;
       }
     }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+    finally {
+      writeUnlock();
+    }
   }
 
   public static void deleteRecordRecursively(int id) {
-    synchronized (lock) {
-      try {
-        incModCount(id);
-        doDeleteRecursively(id);
-      }
-      catch (Throwable e) {
-        throw DbConnection.handleError(e);
-      }
+    writeLock();
+    try {
+      incModCount(id);
+      doDeleteRecursively(id);
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+    finally {
+      writeUnlock();
     }
   }
 
@@ -525,17 +611,19 @@ public class FSRecords implements Forceable {
   }
 
   private static void deleteRecord(final int id) {
-    synchronized (lock) {
-      try {
-        DbConnection.markDirty();
-        deleteContentAndAttributes(id);
+    writeLock();
+    try {
+      DbConnection.markDirty();
+      deleteContentAndAttributes(id);
 
-        DbConnection.cleanRecord(id);
-        addToFreeRecordsList(id);
-      }
-      catch (Throwable e) {
-        throw DbConnection.handleError(e);
-      }
+      DbConnection.cleanRecord(id);
+      addToFreeRecordsList(id);
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+    finally {
+      writeUnlock();
     }
   }
 
@@ -564,7 +652,8 @@ public class FSRecords implements Forceable {
   }
 
   public static int[] listRoots() throws IOException {
-    synchronized (lock) {
+    writeLock();
+    try {
       DbConnection.markDirty();
       final DataInputStream input = readAttribute(1, CHILDREN_ATT);
       if (input == null) return ArrayUtil.EMPTY_INT_ARRAY;
@@ -584,6 +673,9 @@ public class FSRecords implements Forceable {
 
       return result;
     }
+    finally {
+      writeUnlock();
+    }
   }
 
   @Override
@@ -597,7 +689,8 @@ public class FSRecords implements Forceable {
   }
 
   public static int findRootRecord(String rootUrl) throws IOException {
-    synchronized (lock) {
+    writeLock();
+    try {
       DbConnection.markDirty();
       final int root = getNames().enumerate(rootUrl);
 
@@ -644,10 +737,14 @@ public class FSRecords implements Forceable {
 
       return id;
     }
+    finally {
+      writeUnlock();
+    }
   }
 
   public static void deleteRootRecord(int id) throws IOException {
-    synchronized (lock) {
+    writeLock();
+    try {
       DbConnection.markDirty();
       final DataInputStream input = readAttribute(1, CHILDREN_ATT);
       assert input != null;
@@ -686,55 +783,66 @@ public class FSRecords implements Forceable {
         output.close();
       }
     }
+    finally {
+      writeUnlock();
+    }
   }
 
   public static int[] list(int id) {
-    synchronized (lock) {
-      try {
-        final DataInputStream input = readAttribute(id, CHILDREN_ATT);
-        if (input == null) return ArrayUtil.EMPTY_INT_ARRAY;
+    r.lock();
+    try {
+      final DataInputStream input = readAttribute(id, CHILDREN_ATT);
+      if (input == null) return ArrayUtil.EMPTY_INT_ARRAY;
 
-        final int count = input.readInt();
-        final int[] result = ArrayUtil.newIntArray(count);
-        for (int i = 0; i < count; i++) {
-          result[i] = input.readInt();
-        }
-        input.close();
-        return result;
-      }
-      catch (Throwable e) {
-        throw DbConnection.handleError(e);
+      final int count = input.readInt();
+      final int[] result = ArrayUtil.newIntArray(count);
+      for (int i = 0; i < count; i++) {
+        result[i] = input.readInt();
       }
+      input.close();
+      return result;
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+    finally {
+      r.unlock();
     }
   }
   public static Pair<String[],int[]> listAll(int parentId) {
-    synchronized (lock) {
-      try {
-        final DataInputStream input = readAttribute(parentId, CHILDREN_ATT);
-        if (input == null) return Pair.create(ArrayUtil.EMPTY_STRING_ARRAY, ArrayUtil.EMPTY_INT_ARRAY);
+    r.lock();
+    try {
+      final DataInputStream input = readAttribute(parentId, CHILDREN_ATT);
+      if (input == null) return Pair.create(ArrayUtil.EMPTY_STRING_ARRAY, ArrayUtil.EMPTY_INT_ARRAY);
 
-        final int count = input.readInt();
-        final int[] ids = ArrayUtil.newIntArray(count);
-        final String[] names = ArrayUtil.newStringArray(count);
-        for (int i = 0; i < count; i++) {
-          int id = input.readInt();
-          ids[i] = id;
-          names[i] = getName(id);
-        }
-        input.close();
-        return Pair.create(names, ids);
-      }
-      catch (Throwable e) {
-        throw DbConnection.handleError(e);
+      final int count = input.readInt();
+      final int[] ids = ArrayUtil.newIntArray(count);
+      final String[] names = ArrayUtil.newStringArray(count);
+      for (int i = 0; i < count; i++) {
+        int id = input.readInt();
+        ids[i] = id;
+        names[i] = getName(id);
       }
+      input.close();
+      return Pair.create(names, ids);
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+    finally {
+      r.unlock();
     }
   }
 
   public static boolean wereChildrenAccessed(int id) {
     try {
-      synchronized (lock) {
+      r.lock();
+      try {
         return findAttributePage(id, CHILDREN_ATT, false) != 0;
       }
+      finally {
+        r.unlock();
+      }
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -742,24 +850,26 @@ public class FSRecords implements Forceable {
   }
 
   public static void updateList(int id, int[] children) {
-    synchronized (lock) {
-      try {
-        DbConnection.markDirty();
-        final DataOutputStream record = writeAttribute(id, CHILDREN_ATT, false);
-        record.writeInt(children.length);
-        for (int child : children) {
-          if (child == id) {
-            LOG.error("Cyclic parent child relations");
-          }
-          else {
-            record.writeInt(child);
-          }
+    writeLock();
+    try {
+      DbConnection.markDirty();
+      final DataOutputStream record = writeAttribute(id, CHILDREN_ATT, false);
+      record.writeInt(children.length);
+      for (int child : children) {
+        if (child == id) {
+          LOG.error("Cyclic parent child relations");
+        }
+        else {
+          record.writeInt(child);
         }
-        record.close();
-      }
-      catch (Throwable e) {
-        throw DbConnection.handleError(e);
       }
+      record.close();
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+    finally {
+      writeUnlock();
     }
   }
 
@@ -781,25 +891,21 @@ public class FSRecords implements Forceable {
   }
 
   public static int getModCount() {
-    synchronized (lock) {
-      return getRecords().getInt(HEADER_GLOBAL_MODCOUNT_OFFSET);
-    }
+    return readRecordInt(0, HEADER_GLOBAL_MODCOUNT_OFFSET);
   }
 
   public static int getParent(int id) {
-    synchronized (lock) {
-      try {
-        final int parentId = getRecordInt(id, PARENT_OFFSET);
-        if (parentId == id) {
-          LOG.error("Cyclic parent child relations in the database. id = " + id);
-          return 0;
-        }
-
-        return parentId;
-      }
-      catch (Throwable e) {
-        throw DbConnection.handleError(e);
+    try {
+      final int parentId = readRecordInt(id, PARENT_OFFSET);
+      if (parentId == id) {
+        LOG.error("Cyclic parent child relations in the database. id = " + id);
+        return 0;
       }
+
+      return parentId;
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
     }
   }
 
@@ -809,101 +915,105 @@ public class FSRecords implements Forceable {
       return;
     }
 
-    synchronized (lock) {
-      try {
-        incModCount(id);
-        putRecordInt(id, PARENT_OFFSET, parent);
-      }
-      catch (Throwable e) {
-        throw DbConnection.handleError(e);
-      }
+    writeLock();
+    try {
+      incModCount(id);
+      putRecordInt(id, PARENT_OFFSET, parent);
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+    finally {
+      writeUnlock();
     }
   }
 
   public static String getName(int id) {
-    synchronized (lock) {
-      try {
-        final int nameId = getRecordInt(id, NAME_OFFSET);
-        return nameId != 0 ? getNames().valueOf(nameId) : "";
-      }
-      catch (Throwable e) {
-        throw DbConnection.handleError(e);
-      }
+    r.lock();
+    try {
+      final int nameId = getRecordInt(id, NAME_OFFSET);
+      return nameId != 0 ? getNames().valueOf(nameId) : "";
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+    finally {
+      r.unlock();
     }
   }
 
   public static void setName(int id, String name) {
-    synchronized (lock) {
-      try {
-        incModCount(id);
-        putRecordInt(id, NAME_OFFSET, getNames().enumerate(name));
-      }
-      catch (Throwable e) {
-        throw DbConnection.handleError(e);
-      }
+    writeLock();
+    try {
+      incModCount(id);
+      putRecordInt(id, NAME_OFFSET, getNames().enumerate(name));
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+    finally {
+      writeUnlock();
     }
   }
 
   public static int getFlags(int id) {
-    synchronized (lock) {
-      return getRecordInt(id, FLAGS_OFFSET);
-    }
+    return readRecordInt(id, FLAGS_OFFSET);
   }
 
   public static void setFlags(int id, int flags, final boolean markAsChange) {
-    synchronized (lock) {
-      try {
-        if (markAsChange) {
-          incModCount(id);
-        }
-        putRecordInt(id, FLAGS_OFFSET, flags);
-      }
-      catch (Throwable e) {
-        throw DbConnection.handleError(e);
+    writeLock();
+    try {
+      if (markAsChange) {
+        incModCount(id);
       }
+      putRecordInt(id, FLAGS_OFFSET, flags);
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+    finally {
+      writeUnlock();
     }
   }
 
   public static long getLength(int id) {
-    synchronized (lock) {
-      return getRecords().getLong(getOffset(id, LENGTH_OFFSET));
-    }
+    return readRecordLong(id, LENGTH_OFFSET);
   }
 
   public static void setLength(int id, long len) {
-    synchronized (lock) {
-      try {
-        incModCount(id);
-        getRecords().putLong(getOffset(id, LENGTH_OFFSET), len);
-      }
-      catch (Throwable e) {
-        throw DbConnection.handleError(e);
-      }
+    writeLock();
+    try {
+      incModCount(id);
+      getRecords().putLong(getOffset(id, LENGTH_OFFSET), len);
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+    finally {
+      writeUnlock();
     }
   }
 
   public static long getTimestamp(int id) {
-    synchronized (lock) {
-      return getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET));
-    }
+    return readRecordLong(id, TIMESTAMP_OFFSET);
   }
 
   public static void setTimestamp(int id, long value) {
-    synchronized (lock) {
-      try {
-        incModCount(id);
-        getRecords().putLong(getOffset(id, TIMESTAMP_OFFSET), value);
-      }
-      catch (Throwable e) {
-        throw DbConnection.handleError(e);
-      }
+    writeLock();
+    try {
+      incModCount(id);
+      getRecords().putLong(getOffset(id, TIMESTAMP_OFFSET), value);
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+    finally {
+      writeUnlock();
     }
   }
 
   public static int getModCount(int id) {
-    synchronized (lock) {
-      return getRecordInt(id, MODCOUNT_OFFSET);
-    }
+    return readRecordInt(id, MODCOUNT_OFFSET);
   }
 
   private static void setModCount(int id, int value) {
@@ -926,8 +1036,92 @@ public class FSRecords implements Forceable {
     putRecordInt(id, ATTREF_OFFSET, value);
   }
 
+  /**
+   * Switches between concurrent and serialized reads. Must not be called while other threads access the records.
+   */
+  @TestOnly
+  public static void setConcurrentReadsForTests(boolean concurrentReads) {
+    writeLock();
+    try {
+      ourConcurrentReads = concurrentReads;
+      r = concurrentReads ? lock.readLock() : w;
+    }
+    finally {
+      writeUnlock();
+    }
+  }
+
+  private static void writeLock() {
+    w.lock();
+    if (lock.getWriteHoldCount() == 1) {
+      ourRecordsVersion++;
+    }
+  }
+
+  private static void writeUnlock() {
+    if (lock.getWriteHoldCount() == 1) {
+      DbConnection.updateRecordsView();
+      ourRecordsVersion++;
+    }
+    w.unlock();
+  }
+
+  /**
+   * Reads a single record field without any lock: the field is read from the records view between two reads of the version,
+   * and the value is used only if the version was even and didn't change in between, i.e. no writer interleaved.
+   * Otherwise the read waits for the writer on the read lock.
+   */
+  private static int readRecordInt(int id, int offset) {
+    if (ourConcurrentReads) {
+      final int version = ourRecordsVersion;
+      final ByteBuffer view = DbConnection.myRecordsView;
+      final int address = getOffset(id, offset);
+      if ((version & 1) == 0 && view != null && address + 4 <= view.limit()) {
+        final int value = view.getInt(address);
+        if (ourRecordsVersion == version) return value;
+      }
+    }
+    r.lock();
+    try {
+      return getRecordInt(id, offset);
+    }
+    finally {
+      r.unlock();
+    }
+  }
+
+  private static long readRecordLong(int id, int offset) {
+    if (ourConcurrentReads) {
+      final int version = ourRecordsVersion;
+      final ByteBuffer view = DbConnection.myRecordsView;
+      final int address = getOffset(id, offset);
+      if ((version & 1) == 0 && view != null && address + 8 <= view.limit()) {
+        final long value = view.getLong(address);
+        if (ourRecordsVersion == version) return value;
+      }
+    }
+    r.lock();
+    try {
+      return getRecordLong(id, offset);
+    }
+    finally {
+      r.unlock();
+    }
+  }
+
   private static int getRecordInt(int id, int offset) {
-    return getRecords().getInt(getOffset(id, offset));
+    final ResizeableMappedFile records = getRecords();
+    // concurrent readers only hold the read lock, while the paged storage itself isn't thread safe
+    synchronized (ourRecordsAccessLock) {
+      return records.getInt(getOffset(id, offset));
+    }
+  }
+
+  private static long getRecordLong(int id, int offset) {
+    final ResizeableMappedFile records = getRecords();
+    synchronized (ourRecordsAccessLock) {
+      return records.getLong(getOffset(id, offset));
+    }
   }
 
   private static void putRecordInt(int id, int offset, int value) {
@@ -942,10 +1136,14 @@ public class FSRecords implements Forceable {
   public static DataInputStream readContent(int fileId) {
     try {
       int page;
-      synchronized (lock) {
+      r.lock();
+      try {
         page = findContentPage(fileId, false);
         if (page == 0) return null;
       }
+      finally {
+        r.unlock();
+      }
       return getContentStorage().readStream(page);
     }
     catch (Throwable e) {
@@ -953,6 +1151,31 @@ public class FSRecords implements Forceable {
     }
   }
 
+  /**
+   * Same as {@link #readContent(int)}, but avoids stream wrappers and extra copies of the content.
+   * @return freshly allocated array with the cached content or null if the content isn't cached
+   */
+  @Nullable
+  public static byte[] readContentBytes(int fileId) {
+    try {
+      int page;
+      long length;
+      r.lock();
+      try {
+        page = findContentPage(fileId, false);
+        if (page == 0) return null;
+        length = getRecordLong(fileId, LENGTH_OFFSET);
+      }
+      finally {
+        r.unlock();
+      }
+      return getContentStorage().readBytes(page, length > 0 && length < Integer.MAX_VALUE ? (int)length : -1);
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+  }
+
   @Nullable
   public static DataInputStream readContentById(int contentId) {
     try {
@@ -968,10 +1191,14 @@ public class FSRecords implements Forceable {
     try {
       synchronized (attId) {
         int page;
-        synchronized (lock) {
+        r.lock();
+        try {
           page = findAttributePage(fileId, attId, false);
           if (page == 0) return null;
         }
+        finally {
+          r.unlock();
+        }
         return getAttributesStorage().readStream(page);
       }
     }
@@ -1043,11 +1270,15 @@ public class FSRecords implements Forceable {
 
   public static int acquireFileContent(int fileId) {
     try {
-      synchronized (lock) {
+      r.lock();
+      try {
         int record = getContentRecordId(fileId);
         if (record > 0) getContentStorage().acquireRecord(record);
         return record;
       }
+      finally {
+        r.unlock();
+      }
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1065,9 +1296,13 @@ public class FSRecords implements Forceable {
 
   public static int getContentId(int fileId) {
     try {
-      synchronized (lock) {
+      r.lock();
+      try {
         return getContentRecordId(fileId);
       }
+      finally {
+        r.unlock();
+      }
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1172,10 +1407,14 @@ public class FSRecords implements Forceable {
 
     public void writeBytes(ByteSequence bytes, int fileId) throws IOException {
       final int page;
-      synchronized (lock) {
+      writeLock();
+      try {
         incModCount(fileId);
         page = findOrCreatePage();
       }
+      finally {
+        writeUnlock();
+      }
 
       getStorage().writeBytes(page, bytes, myFixedSize);
     }
@@ -1186,17 +1425,17 @@ public class FSRecords implements Forceable {
   }
 
   public static void dispose() {
-    synchronized (lock) {
-      try {
-        DbConnection.force();
-        DbConnection.closeFiles();
-      }
-      catch (Throwable e) {
-        throw DbConnection.handleError(e);
-      }
-      finally {
-        ourIsDisposed = true;
-      }
+    writeLock();
+    try {
+      DbConnection.force();
+      DbConnection.closeFiles();
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+    finally {
+      ourIsDisposed = true;
+      writeUnlock();
     }
   }
 
@@ -1207,7 +1446,8 @@ public class FSRecords implements Forceable {
   public static void checkSanity() {
     long t = System.currentTimeMillis();
 
-    synchronized (lock) {
+    r.lock();
+    try {
       final int fileLength = (int)getRecords().length();
       assert fileLength % RECORD_SIZE == 0;
       int recordCount = fileLength / RECORD_SIZE;
@@ -1226,6 +1466,9 @@ public class FSRecords implements Forceable {
         }
       }
     }
+    finally {
+      r.unlock();
+    }
 
     t = System.currentTimeMillis() - t;
     LOG.info("Sanity check took " + t + " ms");
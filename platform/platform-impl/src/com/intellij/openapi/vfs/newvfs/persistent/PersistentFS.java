@@ -477,10 +477,10 @@ public class PersistentFS extends ManagingFS implements ApplicationComponent {
 
   @NotNull
   public byte[] contentsToByteArray(final VirtualFile file, boolean cacheContent) throws IOException {
-    InputStream contentStream = null;
+    byte[] cachedContent = null;
     boolean reloadFromDelegate;
     synchronized (INPUT_LOCK) {
-      reloadFromDelegate = mustReloadContent(file) || (contentStream = readContent(file)) == null;
+      reloadFromDelegate = mustReloadContent(file) || (cachedContent = FSRecords.readContentBytes(getFileId(file))) == null;
     }
 
     if (reloadFromDelegate) {
@@ -502,12 +502,7 @@ public class PersistentFS extends ManagingFS implements ApplicationComponent {
       return content;
     }
     else {
-      try {
-        return FileUtil.loadBytes(contentStream, (int)file.getLength());
-      }
-      catch (IOException e) {
-        throw FSRecords.handleError(e);
-      }
+      return ArrayUtil.realloc(cachedContent, (int)file.getLength());
     }
   }
 
@@ -0,0 +1,127 @@
+package com.intellij.concurrency;
+
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.Processor;
+import com.intellij.util.ThrowableRunnable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class JobUtilTest extends LightPlatformTestCase {
+  private static final int THINGS_COUNT = 200000;
+  private static final int ROUNDS = 10;
+
+  public void testClaimingTasksFromJobPerformance() throws Exception {
+    final boolean wasSubmittingEachTask = JobSchedulerImpl.isSubmittingEachTask();
+    try {
+      final List<Integer> things = createThings();
+      processRounds(things); // warm up
+
+      JobSchedulerImpl.setSubmittingEachTask(true);
+      long start = System.currentTimeMillis();
+      assertEquals(THINGS_COUNT * ROUNDS, processRounds(things));
+      final long submittingEachTask = System.currentTimeMillis() - start;
+
+      JobSchedulerImpl.setSubmittingEachTask(false);
+      start = System.currentTimeMillis();
+      assertEquals(THINGS_COUNT * ROUNDS, processRounds(things));
+      final long claiming = System.currentTimeMillis() - start;
+      System.out.println("invokeConcurrentlyUnderProgress claiming tasks: " + claiming + "ms, submitting each task: " + submittingEachTask + "ms");
+
+      PlatformTestUtil.startPerformanceTest("invokeConcurrentlyUnderProgress", 1500, new ThrowableRunnable() {
+        @Override
+        public void run() throws Throwable {
+          assertEquals(THINGS_COUNT * ROUNDS, processRounds(things));
+        }
+      }).cpuBound().usesAllCPUCores().assertTiming();
+    }
+    finally {
+      JobSchedulerImpl.setSubmittingEachTask(wasSubmittingEachTask);
+    }
+  }
+
+  public void testSwitchingSubmissionModeWithQueuedWork() throws Throwable {
+    final boolean wasSubmittingEachTask = JobSchedulerImpl.isSubmittingEachTask();
+    final List<Integer> things = createThings();
+    final AtomicBoolean stop = new AtomicBoolean();
+    final Throwable[] error = new Throwable[1];
+    final Thread switcher = new Thread("submission mode switcher") {
+      @Override
+      public void run() {
+        try {
+          boolean submitEachTask = false;
+          while (!stop.get()) {
+            JobSchedulerImpl.setSubmittingEachTask(submitEachTask = !submitEachTask);
+            Thread.sleep(1);
+          }
+        }
+        catch (Throwable e) {
+          error[0] = e;
+        }
+      }
+    };
+    switcher.start();
+    try {
+      // queued job workers and single tasks get mixed in the shared queue and must be ordered and run correctly
+      for (int round = 0; round < ROUNDS; round++) {
+        assertEquals(THINGS_COUNT * ROUNDS, processRounds(things));
+      }
+    }
+    finally {
+      stop.set(true);
+      switcher.join();
+      JobSchedulerImpl.setSubmittingEachTask(wasSubmittingEachTask);
+    }
+    if (error[0] != null) throw error[0];
+  }
+
+  public void testAllThingsProcessedOnce() throws Exception {
+    final List<Integer> things = createThings();
+    final AtomicLong sum = new AtomicLong();
+    assertTrue(JobUtil.invokeConcurrentlyUnderProgress(things, new EmptyProgressIndicator(), false, new Processor<Integer>() {
+      @Override
+      public boolean process(Integer thing) {
+        sum.addAndGet(thing.intValue());
+        return true;
+      }
+    }));
+    assertEquals((long)THINGS_COUNT * (THINGS_COUNT - 1) / 2, sum.get());
+  }
+
+  public void testCancelOnFalse() throws Exception {
+    final List<Integer> things = createThings();
+    assertFalse(JobUtil.invokeConcurrentlyUnderProgress(things, new EmptyProgressIndicator(), false, new Processor<Integer>() {
+      @Override
+      public boolean process(Integer thing) {
+        return thing.intValue() != THINGS_COUNT / 2;
+      }
+    }));
+  }
+
+  private static int processRounds(List<Integer> things) {
+    final AtomicInteger processed = new AtomicInteger();
+    for (int round = 0; round < ROUNDS; round++) {
+      assertTrue(JobUtil.invokeConcurrentlyUnderProgress(things, new EmptyProgressIndicator(), false, new Processor<Integer>() {
+        @Override
+        public boolean process(Integer thing) {
+          processed.incrementAndGet();
+          return true;
+        }
+      }));
+    }
+    return processed.get();
+  }
+
+  private static List<Integer> createThings() {
+    final List<Integer> things = new ArrayList<Integer>(THINGS_COUNT);
+    for (int i = 0; i < THINGS_COUNT; i++) {
+      things.add(i);
+    }
+    return things;
+  }
+}
@@ -9,9 +9,14 @@ import com.intellij.openapi.command.undo.UndoManager;
 import com.intellij.openapi.editor.event.DocumentAdapter;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.ex.DocumentEx;
+import com.intellij.openapi.editor.ex.MarkupModelEx;
+import com.intellij.openapi.editor.ex.RangeHighlighterEx;
 import com.intellij.openapi.editor.ex.RangeMarkerEx;
 import com.intellij.openapi.editor.impl.DocumentImpl;
 import com.intellij.openapi.editor.impl.DocumentMarkupModel;
+import com.intellij.openapi.editor.impl.IntervalTreeImpl;
+import com.intellij.openapi.editor.impl.RangeMarkerImpl;
+import com.intellij.openapi.editor.impl.RangeMarkerTree;
 import com.intellij.openapi.editor.impl.RedBlackTree;
 import com.intellij.openapi.editor.markup.HighlighterTargetArea;
 import com.intellij.openapi.editor.markup.MarkupModel;
@@ -25,12 +30,16 @@ import com.intellij.psi.impl.PsiToDocumentSynchronizer;
 import com.intellij.testFramework.LeakHunter;
 import com.intellij.testFramework.LightPlatformTestCase;
 import com.intellij.testFramework.Timings;
+import com.intellij.util.CommonProcessors;
 import org.jetbrains.annotations.NonNls;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author mike
@@ -960,6 +969,168 @@ public class RangeMarkerTest extends LightPlatformTestCase {
     }
   }
 
+  public void testConcurrentOverlappingQueriesDuringEdits_NoVerify() throws Exception {
+    boolean oldUseSnapshots = IntervalTreeImpl.USE_SNAPSHOTS;
+    try {
+      for (boolean useSnapshots : new boolean[]{false, true}) {
+        IntervalTreeImpl.USE_SNAPSHOTS = useSnapshots;
+        long start = System.currentTimeMillis();
+        long queries = runOverlappingQueriesDuringEdits();
+        System.out.println((useSnapshots ? "snapshots: " : "read lock: ") + queries + " queries during edits, " +
+                           (System.currentTimeMillis() - start) + "ms");
+      }
+    }
+    finally {
+      IntervalTreeImpl.USE_SNAPSHOTS = oldUseSnapshots;
+    }
+  }
+
+  private long runOverlappingQueriesDuringEdits() throws Exception {
+    final int N = 20000;
+    final int textLength = N * 10;
+    final Document document = EditorFactory.getInstance().createDocument(StringUtil.repeatSymbol(' ', textLength));
+    final MarkupModelEx markupModel = (MarkupModelEx)DocumentMarkupModel.forDocument(document, getProject(), true);
+    Random gen = new Random(0);
+    for (int i = 0; i < N; i++) {
+      int start = gen.nextInt(textLength - 100);
+      markupModel.addRangeHighlighter(start, start + gen.nextInt(100), 0, null, HighlighterTargetArea.EXACT_RANGE);
+    }
+
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicLong queries = new AtomicLong();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] readers = new Thread[4];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = new Thread("overlapping queries " + i) {
+        @Override
+        public void run() {
+          try {
+            Random random = new Random();
+            while (!done.get()) {
+              int start = random.nextInt(textLength);
+              markupModel.processRangeHighlightersOverlappingWith(start, start + 1000, CommonProcessors.<RangeHighlighterEx>alwaysTrue());
+              queries.incrementAndGet();
+            }
+          }
+          catch (Throwable e) {
+            failure.set(e);
+          }
+        }
+      };
+      readers[i].start();
+    }
+
+    try {
+      for (int i = 0; i < 1000; i++) {
+        final int offset = gen.nextInt(textLength);
+        new WriteCommandAction(getProject()) {
+          @Override
+          protected void run(Result result) throws Exception {
+            document.insertString(offset, " ");
+          }
+        }.execute();
+        ((UndoManagerImpl)UndoManager.getInstance(getProject())).flushCurrentCommandMerger();
+        ((UndoManagerImpl)UndoManager.getInstance(getProject())).clearUndoRedoQueueInTests(document);
+      }
+    }
+    finally {
+      done.set(true);
+      for (Thread reader : readers) {
+        reader.join();
+      }
+      markupModel.removeAllHighlighters();
+    }
+
+    if (failure.get() != null) throw new RuntimeException(failure.get());
+    return queries.get();
+  }
+
+  public void testSnapshotQueriesSameAsLocked() throws Exception {
+    final int textLength = 10000;
+    final DocumentEx document = (DocumentEx)EditorFactory.getInstance().createDocument(StringUtil.repeatSymbol(' ', textLength));
+    final RangeMarkerTree<RangeMarkerEx> tree = new RangeMarkerTree<RangeMarkerEx>(document) {};
+    final List<RangeMarkerEx> markers = new ArrayList<RangeMarkerEx>(); // the tree references markers weakly
+    final Random gen = new Random(0);
+    for (int i = 0; i < 2000; i++) {
+      markers.add(addMarker(tree, document, gen));
+    }
+
+    boolean oldUseSnapshots = IntervalTreeImpl.USE_SNAPSHOTS;
+    try {
+      int found = 0;
+      for (int round = 0; round < 100; round++) {
+        switch (gen.nextInt(3)) {
+          case 0:
+            final int offset = gen.nextInt(document.getTextLength());
+            ApplicationManager.getApplication().runWriteAction(new Runnable() {
+              @Override
+              public void run() {
+                if (gen.nextBoolean()) {
+                  document.insertString(offset, StringUtil.repeatSymbol(' ', gen.nextInt(20)));
+                }
+                else {
+                  document.deleteString(offset, Math.min(document.getTextLength(), offset + gen.nextInt(20)));
+                }
+              }
+            });
+            break;
+          case 1:
+            markers.add(addMarker(tree, document, gen));
+            break;
+          default:
+            tree.removeInterval(markers.remove(gen.nextInt(markers.size())));
+        }
+
+        // enough queries for the snapshot to be built and used after the modification
+        for (int i = 0; i < 50; i++) {
+          int start = gen.nextInt(document.getTextLength());
+          int end = Math.min(document.getTextLength(), start + gen.nextInt(100));
+          found += assertSameWithSnapshot(tree, start, end, 0);
+          found += assertSameWithSnapshot(tree, start, end, 1);
+          found += assertSameWithSnapshot(tree, start, end, 2);
+        }
+      }
+      assertTrue(found > 0);
+    }
+    finally {
+      IntervalTreeImpl.USE_SNAPSHOTS = oldUseSnapshots;
+      tree.dispose();
+    }
+  }
+
+  private static RangeMarkerEx addMarker(RangeMarkerTree<RangeMarkerEx> tree, DocumentEx document, Random gen) {
+    int start = gen.nextInt(document.getTextLength());
+    int end = Math.min(document.getTextLength(), start + gen.nextInt(100));
+    RangeMarkerEx marker = new RangeMarkerImpl(document, start, end, false) {};
+    tree.addInterval(marker, start, end, gen.nextBoolean(), gen.nextBoolean(), 0);
+    return marker;
+  }
+
+  private static int assertSameWithSnapshot(RangeMarkerTree<RangeMarkerEx> tree, int start, int end, int query) {
+    List<RangeMarkerEx> locked = new ArrayList<RangeMarkerEx>();
+    List<RangeMarkerEx> fromSnapshot = new ArrayList<RangeMarkerEx>();
+    IntervalTreeImpl.USE_SNAPSHOTS = false;
+    runQuery(tree, start, end, query, locked);
+    IntervalTreeImpl.USE_SNAPSHOTS = true;
+    runQuery(tree, start, end, query, fromSnapshot);
+    assertEquals("query " + query + " at " + start + "-" + end, locked, fromSnapshot);
+    return locked.size();
+  }
+
+  private static void runQuery(RangeMarkerTree<RangeMarkerEx> tree, int start, int end, int query, List<RangeMarkerEx> result) {
+    CommonProcessors.CollectProcessor<RangeMarkerEx> processor = new CommonProcessors.CollectProcessor<RangeMarkerEx>(result);
+    switch (query) {
+      case 0:
+        tree.processOverlappingWith(start, end, processor);
+        break;
+      case 1:
+        tree.processOverlappingWithOutside(start, end, processor);
+        break;
+      default:
+        tree.processContaining(start, processor);
+    }
+  }
+
   private static RangeMarkerEx createMarker(String s, final int start, final int end) {
     final Document document = EditorFactory.getInstance().createDocument(s);
     return (RangeMarkerEx)document.createRangeMarker(start, end);
@@ -0,0 +1,301 @@
+package com.intellij.openapi.editor.ex.util;
+
+import com.intellij.lang.Language;
+import com.intellij.lexer.Lexer;
+import com.intellij.lexer.LexerBase;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.colors.EditorColorsManager;
+import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.openapi.editor.ex.DocumentEx;
+import com.intellij.openapi.editor.highlighter.HighlighterClient;
+import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.openapi.fileTypes.SyntaxHighlighterBase;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.TokenType;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.util.ui.UIUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+public class LexerEditorHighlighterTest extends LightPlatformTestCase {
+  private static final IElementType WORD = new IElementType("WORD", Language.ANY);
+  private static final IElementType STRING_WORD = new IElementType("STRING_WORD", Language.ANY);
+  private static final IElementType QUOTE = new IElementType("QUOTE", Language.ANY);
+  private static final IElementType OTHER = new IElementType("OTHER", Language.ANY);
+
+  private final List<Runnable> myBackgroundTasks = new ArrayList<Runnable>();
+  private final Random myRandom = new Random(17);
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    LexerEditorHighlighter.setBackgroundRelexForTests(0, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        myBackgroundTasks.add(command);
+      }
+    });
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    LexerEditorHighlighter.setBackgroundRelexForTests(0, null);
+    super.tearDown();
+  }
+
+  public void testMergedBulkChangesRelexedInBackground() {
+    final Document document = createDocument();
+    final LexerEditorHighlighter highlighter = createHighlighter(document);
+
+    bulkUpdate(document, 10);
+    assertContiguous(highlighter.createIterator(0), document.getTextLength());
+    assertEquals(1, myBackgroundTasks.size());
+
+    runBackgroundTasks();
+    assertTrue(myBackgroundTasks.isEmpty());
+    assertSameTokens(document, highlighter);
+  }
+
+  public void testChangesWhileRelexingInBackground() {
+    final Document document = createDocument();
+    final LexerEditorHighlighter highlighter = createHighlighter(document);
+
+    bulkUpdate(document, 10);
+    assertContiguous(highlighter.createIterator(0), document.getTextLength());
+    assertEquals(1, myBackgroundTasks.size());
+
+    // the pending relex is outdated by these, its result is dropped and all the changes are relexed anew
+    for (int i = 0; i < 5; i++) {
+      randomChange(document);
+      assertContiguous(highlighter.createIterator(0), document.getTextLength());
+    }
+    bulkUpdate(document, 5);
+    assertContiguous(highlighter.createIterator(document.getTextLength() / 2), document.getTextLength());
+
+    runBackgroundTasks();
+    assertSameTokens(document, highlighter);
+  }
+
+  public void testSmallChangesRelexedSynchronously() {
+    LexerEditorHighlighter.setBackgroundRelexForTests(Integer.MAX_VALUE, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        fail("small changes must not be relexed in background");
+      }
+    });
+    final Document document = createDocument();
+    final LexerEditorHighlighter highlighter = createHighlighter(document);
+
+    bulkUpdate(document, 10);
+    assertSameTokens(document, highlighter);
+    for (int i = 0; i < 10; i++) {
+      randomChange(document);
+      assertSameTokens(document, highlighter);
+    }
+  }
+
+  private void runBackgroundTasks() {
+    while (!myBackgroundTasks.isEmpty()) {
+      myBackgroundTasks.remove(0).run();
+      UIUtil.dispatchAllInvocationEvents(); // the result is applied on the EDT
+    }
+  }
+
+  private Document createDocument() {
+    final StringBuilder text = new StringBuilder();
+    for (int line = 0; line < 300; line++) {
+      for (int word = 0; word < 8; word++) {
+        text.append(myRandom.nextInt(5) == 0 ? "\"str " + line + "\"" : "word" + word).append(myRandom.nextBoolean() ? " " : ", ");
+      }
+      text.append('\n');
+    }
+    return EditorFactory.getInstance().createDocument(text);
+  }
+
+  private static LexerEditorHighlighter createHighlighter(final Document document) {
+    final LexerEditorHighlighter highlighter =
+      new LexerEditorHighlighter(new TestSyntaxHighlighter(), EditorColorsManager.getInstance().getGlobalScheme());
+    highlighter.setEditor(new HighlighterClient() {
+      @Override
+      public Project getProject() {
+        return LightPlatformTestCase.getProject();
+      }
+
+      @Override
+      public void repaint(int start, int end) {
+      }
+
+      @Override
+      public Document getDocument() {
+        return document;
+      }
+    });
+    highlighter.setText(document.getCharsSequence());
+    document.addDocumentListener(highlighter);
+    return highlighter;
+  }
+
+  private void bulkUpdate(final Document document, final int changes) {
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        ((DocumentEx)document).setInBulkUpdate(true);
+        try {
+          for (int i = 0; i < changes; i++) {
+            randomChange(document);
+          }
+        }
+        finally {
+          ((DocumentEx)document).setInBulkUpdate(false);
+        }
+      }
+    });
+  }
+
+  private void randomChange(final Document document) {
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        final int length = document.getTextLength();
+        final int start = myRandom.nextInt(length);
+        final int end = Math.min(length, start + myRandom.nextInt(200));
+        final String[] replacements = {"", "\"", "new words", " \"quoted\" ", "x\ny"};
+        document.replaceString(start, end, replacements[myRandom.nextInt(replacements.length)]);
+      }
+    });
+  }
+
+  private static void assertContiguous(HighlighterIterator iterator, int textLength) {
+    int end = iterator.getStart();
+    while (!iterator.atEnd()) {
+      assertEquals(end, iterator.getStart());
+      assertTrue(iterator.getEnd() >= iterator.getStart());
+      end = iterator.getEnd();
+      iterator.advance();
+    }
+    assertEquals(textLength, end);
+  }
+
+  private static void assertSameTokens(Document document, LexerEditorHighlighter highlighter) {
+    final LexerEditorHighlighter expected =
+      new LexerEditorHighlighter(new TestSyntaxHighlighter(), EditorColorsManager.getInstance().getGlobalScheme());
+    expected.setText(document.getCharsSequence());
+    assertEquals(dumpTokens(expected.createIterator(0)), dumpTokens(highlighter.createIterator(0)));
+  }
+
+  private static String dumpTokens(HighlighterIterator iterator) {
+    final StringBuilder result = new StringBuilder();
+    while (!iterator.atEnd()) {
+      result.append(iterator.getStart()).append('-').append(iterator.getEnd()).append(':').append(iterator.getTokenType()).append('\n');
+      iterator.advance();
+    }
+    return result.toString();
+  }
+
+  private static class TestSyntaxHighlighter extends SyntaxHighlighterBase {
+    @NotNull
+    @Override
+    public Lexer getHighlightingLexer() {
+      return new TestLexer();
+    }
+
+    @NotNull
+    @Override
+    public TextAttributesKey[] getTokenHighlights(IElementType tokenType) {
+      return EMPTY;
+    }
+  }
+
+  /**
+   * Words, with a separate lexer state for words in double quotes
+   */
+  private static class TestLexer extends LexerBase {
+    private CharSequence myBuffer;
+    private int myEnd;
+    private int myTokenStart;
+    private int myTokenEnd;
+    private int myState;
+    private IElementType myTokenType;
+
+    @Override
+    public void start(CharSequence buffer, int startOffset, int endOffset, int initialState) {
+      myBuffer = buffer;
+      myEnd = endOffset;
+      myState = initialState;
+      myTokenEnd = startOffset;
+      myTokenType = null;
+      advance();
+    }
+
+    @Override
+    public int getState() {
+      return myState;
+    }
+
+    @Override
+    public IElementType getTokenType() {
+      return myTokenType;
+    }
+
+    @Override
+    public int getTokenStart() {
+      return myTokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+      return myTokenEnd;
+    }
+
+    @Override
+    public void advance() {
+      if (myTokenType == QUOTE) {
+        myState = 1 - myState;
+      }
+      myTokenStart = myTokenEnd;
+      if (myTokenStart >= myEnd) {
+        myTokenType = null;
+        return;
+      }
+      final char c = myBuffer.charAt(myTokenStart);
+      if (Character.isLetterOrDigit(c)) {
+        myTokenEnd = skip(myTokenStart, true);
+        myTokenType = myState == 0 ? WORD : STRING_WORD;
+      }
+      else if (Character.isWhitespace(c)) {
+        myTokenEnd = skip(myTokenStart, false);
+        myTokenType = TokenType.WHITE_SPACE;
+      }
+      else {
+        myTokenEnd = myTokenStart + 1;
+        myTokenType = c == '"' ? QUOTE : OTHER;
+      }
+    }
+
+    private int skip(int offset, boolean letters) {
+      while (offset < myEnd) {
+        final char c = myBuffer.charAt(offset);
+        if (letters ? !Character.isLetterOrDigit(c) : !Character.isWhitespace(c)) break;
+        offset++;
+      }
+      return offset;
+    }
+
+    @Override
+    public CharSequence getBufferSequence() {
+      return myBuffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+      return myEnd;
+    }
+  }
+}
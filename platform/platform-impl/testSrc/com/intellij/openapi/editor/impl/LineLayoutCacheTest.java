@@ -0,0 +1,118 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.VisualPosition;
+import com.intellij.openapi.editor.impl.softwrap.mapping.SoftWrapApplianceManager;
+import com.intellij.openapi.editor.markup.HighlighterLayer;
+import com.intellij.openapi.editor.markup.HighlighterTargetArea;
+import com.intellij.openapi.editor.markup.TextAttributes;
+
+import java.awt.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LineLayoutCacheTest extends AbstractEditorProcessingOnDocumentModificationTest {
+  private static final int COLUMNS = 120;
+
+  @Override
+  protected void tearDown() throws Exception {
+    LineLayoutCache.USE_CACHE = true;
+    if (myEditor != null) {
+      myEditor.getSettings().setUseSoftWraps(false);
+    }
+    super.tearDown();
+  }
+
+  public void testCachedPositionsSameAsLaidOutAnew() throws IOException {
+    final StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 30; i++) {
+      text.append(i % 3 == 0 ? "\t" : "").append("int value").append(i).append(" =\t").append(i)
+        .append("; // a comment long enough to be soft wrapped at the visible area width\n");
+    }
+    init(text.toString());
+    initSoftWraps(400);
+    assertFalse(((SoftWrapModelImpl)myEditor.getSoftWrapModel()).getRegisteredSoftWraps().isEmpty());
+
+    final Document document = myEditor.getDocument();
+    final int foldStart = document.getLineStartOffset(2) + 5;
+    final int foldEnd = document.getLineStartOffset(5) + 7;
+    addCollapsedFoldRegion(foldStart, foldEnd, "...");
+    addCollapsedFoldRegion(document.getLineStartOffset(10), document.getLineStartOffset(10) + 12, "\t{}");
+    checkPositions();
+
+    // the changed range is on a visual line which starts several logical lines before it, at the fold start
+    final TextAttributes bold = new TextAttributes();
+    bold.setFontType(Font.BOLD);
+    myEditor.getMarkupModel().addRangeHighlighter(foldEnd + 1, foldEnd + 10, HighlighterLayer.SYNTAX, bold, HighlighterTargetArea.EXACT_RANGE);
+    checkPositions();
+
+    document.insertString(document.getLineStartOffset(7) + 3, "\tinserted\t");
+    checkPositions();
+
+    toggleFoldRegionState(getFoldRegion(foldStart), true);
+    checkPositions();
+
+    document.deleteString(document.getLineStartOffset(3), document.getLineStartOffset(4));
+    checkPositions();
+  }
+
+  /**
+   * Compares positions taken from the cache, while it's warmed by the previous checks and then refilled,
+   * with the positions of lines laid out on each request.
+   */
+  private static void checkPositions() {
+    final List<Integer> fromWarmCache = collectX();
+    final List<Integer> fromCache = collectX();
+    LineLayoutCache.USE_CACHE = false;
+    try {
+      final List<Integer> laidOut = collectX();
+      assertEquals(laidOut, fromWarmCache);
+      assertEquals(laidOut, fromCache);
+    }
+    finally {
+      LineLayoutCache.USE_CACHE = true;
+    }
+  }
+
+  private static List<Integer> collectX() {
+    final int lastLine = myEditor.offsetToVisualPosition(myEditor.getDocument().getTextLength()).line;
+    final List<Integer> result = new ArrayList<Integer>();
+    for (int line = 0; line <= lastLine; line++) {
+      for (int column = 0; column < COLUMNS; column++) {
+        result.add(myEditor.visualPositionToXY(new VisualPosition(line, column)).x);
+      }
+    }
+    return result;
+  }
+
+  private static void initSoftWraps(final int visibleWidth) {
+    myEditor.getSettings().setUseSoftWraps(true);
+    SoftWrapModelImpl model = (SoftWrapModelImpl)myEditor.getSoftWrapModel();
+    model.reinitSettings();
+
+    SoftWrapApplianceManager applianceManager = model.getApplianceManager();
+    applianceManager.setWidthProvider(new SoftWrapApplianceManager.VisibleAreaWidthProvider() {
+      @Override
+      public int getVisibleAreaWidth() {
+        return visibleWidth;
+      }
+    });
+    applianceManager.registerSoftWrapIfNecessary();
+  }
+}
@@ -22,6 +22,7 @@ import com.intellij.openapi.editor.impl.EditorImpl;
 import com.intellij.openapi.editor.impl.SoftWrapModelImpl;
 import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.testFramework.TestFileType;
+import com.intellij.util.ui.UIUtil;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntProcedure;
 import org.jetbrains.annotations.NotNull;
@@ -849,6 +850,86 @@ public class SoftWrapApplianceOnDocumentModificationTest extends AbstractEditorP
     assertEquals(logicalPosition, getEditor().visualToLogicalPosition(visualPosition));
   }
   
+  public void testLazyRecalculationSameAsFullPass() throws IOException {
+    SoftWrapApplianceManager.setLazyRecalculationForTests(0, 7);
+    try {
+      init(300, createTextForLazyRecalculation());
+      assertTrue(getSoftWrapModel().getApplianceManager().hasPendingRegions());
+
+      finishLazyRecalculation();
+      checkSameAsFullPass();
+    }
+    finally {
+      SoftWrapApplianceManager.setLazyRecalculationForTests(-1, 0);
+    }
+  }
+
+  public void testEditsDuringLazyRecalculation() throws IOException {
+    SoftWrapApplianceManager.setLazyRecalculationForTests(0, 7);
+    try {
+      init(300, createTextForLazyRecalculation());
+      assertTrue(getSoftWrapModel().getApplianceManager().hasPendingRegions());
+
+      // changes before, inside and after the regions recalculated already, some of them spanning several lines
+      Document document = myEditor.getDocument();
+      document.insertString(document.getLineStartOffset(3) + 5, "a new token inserted into the line to make it wrap once more");
+      document.deleteString(document.getLineStartOffset(40), document.getLineStartOffset(43) + 10);
+      document.insertString(document.getLineEndOffset(70), "\nnew line\nand another one long enough to be wrapped by the soft wraps");
+      document.replaceString(document.getLineStartOffset(100), document.getLineEndOffset(101), "short");
+      document.insertString(document.getTextLength(), "\nthe last line");
+      assertTrue(getSoftWrapModel().getApplianceManager().hasPendingRegions());
+
+      finishLazyRecalculation();
+      checkSameAsFullPass();
+    }
+    finally {
+      SoftWrapApplianceManager.setLazyRecalculationForTests(-1, 0);
+    }
+  }
+
+  private static String createTextForLazyRecalculation() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 150; i++) {
+      text.append(i % 4 == 0 ? "  " : "").append("line ").append(i);
+      for (int j = 0; j < i % 9; j++) {
+        text.append(" with several words");
+      }
+      text.append('\n');
+    }
+    return text.toString();
+  }
+
+  private static void finishLazyRecalculation() {
+    SoftWrapApplianceManager applianceManager = getSoftWrapModel().getApplianceManager();
+    for (int i = 0; i < 1000 && applianceManager.hasPendingRegions(); i++) {
+      UIUtil.dispatchAllInvocationEvents();
+    }
+    assertFalse(applianceManager.hasPendingRegions());
+  }
+
+  private static void checkSameAsFullPass() {
+    String sliced = dumpSoftWraps();
+    SoftWrapApplianceManager.setLazyRecalculationForTests(-1, 0);
+    SoftWrapApplianceManager applianceManager = getSoftWrapModel().getApplianceManager();
+    applianceManager.reset();
+    applianceManager.registerSoftWrapIfNecessary();
+    assertFalse(applianceManager.hasPendingRegions());
+    assertEquals(dumpSoftWraps(), sliced);
+  }
+
+  private static String dumpSoftWraps() {
+    StringBuilder result = new StringBuilder();
+    for (SoftWrap softWrap : getSoftWrapModel().getRegisteredSoftWraps()) {
+      result.append(softWrap.getStart()).append(':').append(softWrap.getIndentInColumns()).append(' ');
+    }
+    result.append('\n');
+    int textLength = myEditor.getDocument().getTextLength();
+    for (int offset = 0; offset <= textLength; offset++) {
+      result.append(myEditor.offsetToVisualPosition(offset)).append(' ');
+    }
+    return result.toString();
+  }
+
   private void init(final int visibleWidth, @NotNull String fileText) throws IOException {
     init(visibleWidth, fileText, TestFileType.TEXT);
   }
@@ -0,0 +1,116 @@
+package com.intellij.openapi.progress.util;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ex.ApplicationEx;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.util.EmptyRunnable;
+import com.intellij.testFramework.LightPlatformTestCase;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ProgressIndicatorUtilsTest extends LightPlatformTestCase {
+  private static final long TIMEOUT_MS = 10000;
+
+  public void testPendingWriteActionCancelsAndRestartsReader() throws Exception {
+    final AtomicInteger attempts = new AtomicInteger();
+    final AtomicBoolean writeActionDone = new AtomicBoolean();
+    final CountDownLatch readerStarted = new CountDownLatch(1);
+
+    final Future<Boolean> reader = ApplicationManager.getApplication().executeOnPooledThread(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return ProgressIndicatorUtils.runWithWriteActionPriority(new Runnable() {
+          @Override
+          public void run() {
+            attempts.incrementAndGet();
+            readerStarted.countDown();
+            final long start = System.currentTimeMillis();
+            // a long read action which completes only after the write action has run
+            while (!writeActionDone.get() && System.currentTimeMillis() - start < TIMEOUT_MS) {
+              ProgressManager.checkCanceled();
+              try {
+                Thread.sleep(1);
+              }
+              catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+            }
+          }
+        });
+      }
+    });
+
+    assertTrue(readerStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    final long start = System.currentTimeMillis();
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        writeActionDone.set(true);
+      }
+    });
+    assertTrue("write action waited for the reader", System.currentTimeMillis() - start < TIMEOUT_MS);
+
+    assertTrue(reader.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    assertEquals("reader must be canceled by the write action and restarted after it", 2, attempts.get());
+  }
+
+  public void testSharedIndicatorIsCanceledWhileAnyReaderRuns() throws Exception {
+    final ApplicationEx application = (ApplicationEx)ApplicationManager.getApplication();
+    final ProgressIndicator shared = new ProgressIndicatorBase() {
+      @Override
+      protected boolean isCancelable() {
+        return true;
+      }
+    };
+    final AtomicBoolean writeActionDone = new AtomicBoolean();
+    final CountDownLatch longReaderStarted = new CountDownLatch(1);
+
+    final Future<Boolean> longReader = application.executeOnPooledThread(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return application.runReadActionWithWriteActionPriority(new Runnable() {
+          @Override
+          public void run() {
+            longReaderStarted.countDown();
+            final long start = System.currentTimeMillis();
+            while (!writeActionDone.get() && System.currentTimeMillis() - start < TIMEOUT_MS) {
+              ProgressManager.checkCanceled();
+              try {
+                Thread.sleep(1);
+              }
+              catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+            }
+          }
+        }, shared);
+      }
+    });
+    assertTrue(longReaderStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+    // another reader sharing the indicator completes while the first one still runs
+    final Future<Boolean> shortReader = application.executeOnPooledThread(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return application.runReadActionWithWriteActionPriority(EmptyRunnable.getInstance(), shared);
+      }
+    });
+    assertTrue(shortReader.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+    final long start = System.currentTimeMillis();
+    application.runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        writeActionDone.set(true);
+      }
+    });
+    assertTrue("write action waited for the reader", System.currentTimeMillis() - start < TIMEOUT_MS);
+    assertFalse("the reader must be canceled by the write action", longReader.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+  }
+}
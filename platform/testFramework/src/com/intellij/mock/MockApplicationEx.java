@@ -19,6 +19,7 @@ import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.ex.ApplicationEx;
 import com.intellij.openapi.extensions.ExtensionPointName;
 import com.intellij.openapi.extensions.Extensions;
+import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.InvalidDataException;
 import org.jetbrains.annotations.NotNull;
@@ -117,4 +118,10 @@ public class MockApplicationEx extends MockApplication implements ApplicationEx
   public boolean tryRunReadAction(@NotNull Runnable runnable) {
     return false;
   }
+
+  @Override
+  public boolean runReadActionWithWriteActionPriority(@NotNull Runnable action, @NotNull ProgressIndicator indicator) {
+    action.run();
+    return true;
+  }
 }
@@ -58,6 +58,155 @@ public class TrigramBuilder {
     return caseInsensitive;
   }
 
+  /**
+   * Collects trigrams which any text matched by the regular expression is guaranteed to contain.
+   * Only literal runs of the top-level concatenation are taken into account: groups, character classes and
+   * predefined classes break a run, a character followed by an optional quantifier is dropped from it.
+   * The result is empty when nothing is known about the matched text, e.g. for top-level alternation
+   * or constructs this method doesn't understand.
+   */
+  public static TIntHashSet buildTrigramForRegExp(String regexp) {
+    final TIntHashSet result = new TIntHashSet();
+    final List<String> runs = new ArrayList<String>();
+    final StringBuilder run = new StringBuilder();
+
+    final int length = regexp.length();
+    int depth = 0;
+    int i = 0;
+    while (i < length) {
+      char c = regexp.charAt(i++);
+      if (c == '(' && i < length && regexp.charAt(i) == '?' && hasCommentsFlag(regexp, i + 1)) {
+        // whitespace is not significant in comments mode
+        return result;
+      }
+
+      if (depth > 0) {
+        if (c == '\\') {
+          i++;
+        }
+        else if (c == '[') {
+          i = skipCharClass(regexp, i);
+        }
+        else if (c == '(') {
+          depth++;
+        }
+        else if (c == ')') {
+          depth--;
+        }
+        continue;
+      }
+
+      switch (c) {
+        case '\\':
+          if (i >= length) return result;
+          char escaped = regexp.charAt(i++);
+          if (escaped == 'Q') {
+            int end = regexp.indexOf("\\E", i);
+            if (end < 0) end = length;
+            run.append(regexp, i, end);
+            i = Math.min(end + 2, length);
+          }
+          else if (escaped == 't') {
+            run.append('\t');
+          }
+          else if ("nrdDwWsSbBAzZG".indexOf(escaped) >= 0) {
+            // line separators of the indexed text may differ from the searched ones, the rest are character classes
+            flushRun(run, runs);
+          }
+          else if (Character.isLetterOrDigit(escaped)) {
+            // back references, unicode classes, hex and octal escapes
+            return result;
+          }
+          else {
+            run.append(escaped);
+          }
+          break;
+
+        case '[':
+          i = skipCharClass(regexp, i);
+          flushRun(run, runs);
+          break;
+
+        case '(':
+          depth = 1;
+          flushRun(run, runs);
+          break;
+
+        case ')':
+        case '|':
+          return result;
+
+        case '.':
+        case '^':
+        case '$':
+          flushRun(run, runs);
+          break;
+
+        case '+':
+          flushRun(run, runs);
+          break;
+
+        case '{':
+          int end = regexp.indexOf('}', i);
+          i = end < 0 ? length : end + 1;
+          // fall through: the repetition count may be zero
+        case '*':
+        case '?':
+          if (run.length() > 0) {
+            run.setLength(run.length() - 1);
+          }
+          flushRun(run, runs);
+          break;
+
+        default:
+          run.append(c);
+      }
+    }
+    flushRun(run, runs);
+
+    for (String literal : runs) {
+      result.addAll(buildTrigram(literal).toArray());
+    }
+    return result;
+  }
+
+  private static void flushRun(StringBuilder run, List<String> runs) {
+    if (run.length() >= 3) {
+      runs.add(run.toString());
+    }
+    run.setLength(0);
+  }
+
+  private static int skipCharClass(String regexp, int start) {
+    final int length = regexp.length();
+    int i = start;
+    if (i < length && regexp.charAt(i) == '^') i++;
+    if (i < length && regexp.charAt(i) == ']') i++;
+    int depth = 1;
+    while (i < length) {
+      char c = regexp.charAt(i++);
+      if (c == '\\') {
+        i++;
+      }
+      else if (c == '[') {
+        depth++;
+      }
+      else if (c == ']' && --depth == 0) {
+        break;
+      }
+    }
+    return Math.min(i, length);
+  }
+
+  private static boolean hasCommentsFlag(String regexp, int start) {
+    for (int i = start; i < regexp.length(); i++) {
+      char c = regexp.charAt(i);
+      if (c == 'x') return true;
+      if (c == ':' || c == ')' || c == '-') return false;
+    }
+    return false;
+  }
+
   public static void main(String[] args) throws IOException {
     File root = new File(args[0]);
 
@@ -2,13 +2,86 @@ package com.intellij.util.io;
 
 import com.intellij.openapi.diagnostic.Logger;
 
-class IOStatistics {
+import java.util.concurrent.atomic.AtomicLong;
+
+public class IOStatistics {
   static final boolean DEBUG = System.getProperty("io.access.debug") != null;
   static final int MIN_IO_TIME_TO_REPORT = 100;
   static final Logger LOG = Logger.getInstance("#com.intellij.io.IOStatistics");
   static final int KEYS_FACTOR = 50000;
 
+  // mapped buffers of paged storages
+  private static final AtomicLong ourPageCacheHits = new AtomicLong();
+  private static final AtomicLong ourPageCacheMisses = new AtomicLong();
+  private static final AtomicLong ourPageCacheEvictions = new AtomicLong();
+  private static final AtomicLong ourPageCacheMappedBytes = new AtomicLong();
+
+  // strings of PersistentStringEnumerator returned as already existing instances instead of being read anew
+  private static final AtomicLong ourSharedStrings = new AtomicLong();
+  private static final AtomicLong ourSharedStringBytes = new AtomicLong();
+  private static final int STRING_OVERHEAD = 40; // String object and its char array headers
+
   static void dump(String msg) {
     LOG.info(msg);
   }
+
+  static void pageCacheHit() {
+    ourPageCacheHits.incrementAndGet();
+  }
+
+  static void pageCacheMiss() {
+    final long misses = ourPageCacheMisses.incrementAndGet();
+    if (DEBUG && misses % 1000 == 0) {
+      dump(getPageCacheStatistics());
+    }
+  }
+
+  static void pageCacheEviction() {
+    ourPageCacheEvictions.incrementAndGet();
+  }
+
+  static void pageCacheMapped(long delta) {
+    ourPageCacheMappedBytes.addAndGet(delta);
+  }
+
+  static void sharedStringReused(String s) {
+    ourSharedStrings.incrementAndGet();
+    ourSharedStringBytes.addAndGet(STRING_OVERHEAD + 2 * s.length());
+  }
+
+  public static long getPageCacheHits() {
+    return ourPageCacheHits.get();
+  }
+
+  public static long getPageCacheMisses() {
+    return ourPageCacheMisses.get();
+  }
+
+  public static long getPageCacheEvictions() {
+    return ourPageCacheEvictions.get();
+  }
+
+  public static long getPageCacheMappedBytes() {
+    return ourPageCacheMappedBytes.get();
+  }
+
+  public static long getSharedStrings() {
+    return ourSharedStrings.get();
+  }
+
+  /**
+   * @return approximate number of bytes that copies of the reused strings would have taken
+   */
+  public static long getSharedStringBytes() {
+    return ourSharedStringBytes.get();
+  }
+
+  public static String getSharedStringStatistics() {
+    return "Enumerated strings reused: " + getSharedStrings() + ", saved " + getSharedStringBytes() / 1024 + "K";
+  }
+
+  public static String getPageCacheStatistics() {
+    return "Paged storage buffers: hits " + getPageCacheHits() + ", misses " + getPageCacheMisses() +
+           ", evictions " + getPageCacheEvictions() + ", mapped " + getPageCacheMappedBytes() / (1024 * 1024) + "M";
+  }
 }
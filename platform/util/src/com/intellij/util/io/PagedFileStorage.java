@@ -18,7 +18,6 @@ package com.intellij.util.io;
 import com.intellij.openapi.Forceable;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.SystemInfo;
-import com.intellij.util.containers.hash.LinkedHashMap;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -30,6 +29,7 @@ import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author max
@@ -41,6 +41,12 @@ public class PagedFileStorage implements Forceable {
   final static int DEFAULT_BUFFER_SIZE;
 
   private final static int UPPER_LIMIT;
+  // budget for buffers mapped by all storages; lowered when mapping fails with OOME
+  private static final AtomicLong ourSizeLimit = new AtomicLong();
+  // bytes mapped by caches of all locks, the budget is enforced against it
+  private static final AtomicLong ourMappedSize = new AtomicLong();
+  // bytes of the budget granted to caches as their reserves, see BuffersCache.updateReserve()
+  private static final AtomicLong ourReservedSize = new AtomicLong();
   private static final int LOWER_LIMIT_IN_MEGABYTES = 100;
   private final static int LOWER_LIMIT = LOWER_LIMIT_IN_MEGABYTES * MEGABYTE;
   private static final int UNKNOWN_PAGE = -1;
@@ -50,6 +56,7 @@ public class PagedFileStorage implements Forceable {
     int defaultMaxPagedStorageCacheInMegabytes = SystemInfo.is64Bit ? 500:200;
     UPPER_LIMIT = (maxPagedStorageCacheProperty == null ? defaultMaxPagedStorageCacheInMegabytes:
                    Math.max(Integer.valueOf(maxPagedStorageCacheProperty), LOWER_LIMIT_IN_MEGABYTES))*MEGABYTE;
+    ourSizeLimit.set(UPPER_LIMIT);
 
     String pagedStoragePageSizeProperty = System.getProperty("idea.paged.storage.page.size");
     int defaultPagedStoragePageSizeInMegabytes = 10;
@@ -100,43 +107,43 @@ public class PagedFileStorage implements Forceable {
       return myIndex2Storage.get(index);
     }
 
+    /**
+     * Mapped buffers of all storages sharing the lock. Total size of buffers mapped by all caches is limited by a single budget.
+     * Eviction follows the 2Q scheme: a newly mapped buffer goes to the probational queue and is promoted to the protected one
+     * when accessed again; probational buffers are evicted first while they take more than a quarter of the budget, so a single
+     * pass over a large storage does not flush frequently used buffers.
+     * A cache keeps up to 1/8 of the budget mapped when the budget is exceeded by buffers of other caches, which it can't unmap.
+     * These reserves are granted from the budget, so together they never exceed it.
+     */
     private class BuffersCache {
       private int changeCount;
-      private final LinkedHashMap<Integer, MappedBufferWrapper> myMap;
-      private long mySizeLimit;
+      private final LinkedHashMap<Integer, MappedBufferWrapper> myProbationalQueue = new LinkedHashMap<Integer, MappedBufferWrapper>(10, 0.75f, true);
+      private final LinkedHashMap<Integer, MappedBufferWrapper> myProtectedQueue = new LinkedHashMap<Integer, MappedBufferWrapper>(10, 0.75f, true);
       private long mySize;
-
-      private BuffersCache() {
-        mySizeLimit = UPPER_LIMIT;
-        myMap = new LinkedHashMap<Integer, MappedBufferWrapper>(10) {
-          @Override
-          protected boolean removeEldestEntry(Map.Entry<Integer, MappedBufferWrapper> eldest) {
-            return mySize > mySizeLimit;
-          }
-
-          @Nullable
-          @Override
-          public MappedBufferWrapper remove(Object key) {
-            // this method can be called after removeEldestEntry
-            MappedBufferWrapper wrapper = super.remove(key);
-            if (wrapper != null) {
-              mySize -= wrapper.myLength;
-              wrapper.dispose();
-            }
-            return wrapper;
-          }
-        };
-      }
+      private long myProbationalSize;
+      private long myReservedSize; // part of mySize granted from ourReservedSize
 
       private MappedBufferWrapper get(Integer key) {
-        MappedBufferWrapper wrapper = myMap.get(key);
+        MappedBufferWrapper wrapper = myProtectedQueue.get(key);
+        if (wrapper != null) {
+          IOStatistics.pageCacheHit();
+          return wrapper;
+        }
+        wrapper = myProbationalQueue.remove(key);
         if (wrapper != null) {
+          myProbationalSize -= wrapper.myLength;
+          myProtectedQueue.put(key, wrapper);
+          IOStatistics.pageCacheHit();
           return wrapper;
         }
+        IOStatistics.pageCacheMiss();
 
         long started = IOStatistics.DEBUG ? System.currentTimeMillis() : 0;
         wrapper = createValue(key);
         mySize += wrapper.myLength;
+        myProbationalSize += wrapper.myLength;
+        ourMappedSize.addAndGet(wrapper.myLength);
+        IOStatistics.pageCacheMapped(wrapper.myLength);
 
         if (IOStatistics.DEBUG) {
           long finished = System.currentTimeMillis();
@@ -145,19 +152,90 @@ public class PagedFileStorage implements Forceable {
               "Mapping " + wrapper.myLength + " from " + wrapper.myPosition + " file:" + wrapper.myFile + " for " + (finished - started));
           }
         }
-        myMap.put(key, wrapper);
 
-        ensureSize(mySizeLimit);
+        myProbationalQueue.put(key, wrapper);
+        final long sizeLimit = ourSizeLimit.get();
+        ensureSize(sizeLimit, updateReserve(sizeLimit), key);
         return wrapper;
       }
 
-      private void ensureSize(long sizeLimit) {
-        while (mySize > sizeLimit) {
+      /**
+       * Grows the reserve of this cache up to min(mySize, sizeLimit / 8) as far as the budget has room for it,
+       * or shrinks it if the limit was lowered.
+       * @return the reserve
+       */
+      private long updateReserve(long sizeLimit) {
+        final long wanted = Math.min(mySize, sizeLimit / 8);
+        if (wanted <= myReservedSize) {
+          ourReservedSize.addAndGet(wanted - myReservedSize);
+          myReservedSize = wanted;
+          return myReservedSize;
+        }
+        while (true) {
+          final long reserved = ourReservedSize.get();
+          final long granted = Math.min(wanted - myReservedSize, sizeLimit - reserved);
+          if (granted <= 0) {
+            return myReservedSize;
+          }
+          if (ourReservedSize.compareAndSet(reserved, reserved + granted)) {
+            myReservedSize += granted;
+            return myReservedSize;
+          }
+        }
+      }
+
+      /**
+       * Unmaps buffers of this cache until the total size of buffers mapped by all caches fits the limit or the cache
+       * shrinks to the given size; caches owned by other locks shrink when they map their next buffer.
+       */
+      private void ensureSize(long totalSizeLimit, long ownSizeLimit, @Nullable Integer keyToKeep) {
+        while (ourMappedSize.get() > totalSizeLimit && mySize > ownSizeLimit) {
           // we still have to drop something
-          myMap.doRemoveEldestEntry();
+          boolean fromProbational = myProbationalSize > ourSizeLimit.get() / 4 || myProtectedQueue.isEmpty();
+          if (fromProbational && isOnlyEntry(myProbationalQueue, keyToKeep)) {
+            if (myProtectedQueue.isEmpty()) {
+              break;
+            }
+            fromProbational = false;
+          }
+          final Iterator<MappedBufferWrapper> eldest = (fromProbational ? myProbationalQueue : myProtectedQueue).values().iterator();
+          final MappedBufferWrapper wrapper = eldest.next();
+          eldest.remove();
+          release(wrapper, fromProbational);
+          IOStatistics.pageCacheEviction();
         }
       }
 
+      private boolean isOnlyEntry(Map<Integer, MappedBufferWrapper> queue, @Nullable Integer key) {
+        return queue.isEmpty() || queue.size() == 1 && key != null && queue.containsKey(key);
+      }
+
+      private void remove(Integer key) {
+        MappedBufferWrapper wrapper = myProtectedQueue.remove(key);
+        if (wrapper != null) {
+          release(wrapper, false);
+          return;
+        }
+        wrapper = myProbationalQueue.remove(key);
+        if (wrapper != null) {
+          release(wrapper, true);
+        }
+      }
+
+      private void release(MappedBufferWrapper wrapper, boolean probational) {
+        mySize -= wrapper.myLength;
+        if (probational) {
+          myProbationalSize -= wrapper.myLength;
+        }
+        if (myReservedSize > mySize) {
+          ourReservedSize.addAndGet(mySize - myReservedSize);
+          myReservedSize = mySize;
+        }
+        ourMappedSize.addAndGet(-wrapper.myLength);
+        IOStatistics.pageCacheMapped(-wrapper.myLength);
+        wrapper.dispose();
+      }
+
       @NotNull
       private MappedBufferWrapper createValue(Integer key) {
         checkThreadAccess();
@@ -176,7 +254,7 @@ public class PagedFileStorage implements Forceable {
             wrapper.buf();
             if (oome != null) {
               LOG.info("Successfully recovered OOME in memory mapping: -Xmx=" + Runtime.getRuntime().maxMemory() / MEGABYTE + "MB " +
-                       "new size limit: " + mySizeLimit / MEGABYTE + "MB " +
+                       "new size limit: " + ourSizeLimit.get() / MEGABYTE + "MB " +
                        "trying to allocate " + wrapper.myLength + " block");
             }
             return wrapper;
@@ -184,18 +262,15 @@ public class PagedFileStorage implements Forceable {
           catch (IOException e) {
             if (e.getCause() instanceof OutOfMemoryError) {
               oome = e;
-              if (mySizeLimit > LOWER_LIMIT) {
-                mySizeLimit -= owner.myPageSize;
-              }
-              long newSize = mySize - owner.myPageSize;
-              if (newSize >= 0) {
-                ensureSize(newSize);
+              lowerSizeLimit(owner.myPageSize);
+              if (mySize - owner.myPageSize >= 0) {
+                ensureSize(ourMappedSize.get() - owner.myPageSize, 0, null);
                 continue; // next try
               }
               else {
                 throw new MappingFailedException(
                   "Cannot recover from OOME in memory mapping: -Xmx=" + Runtime.getRuntime().maxMemory() / MEGABYTE + "MB " +
-                  "new size limit: " + mySizeLimit / MEGABYTE + "MB " +
+                  "new size limit: " + ourSizeLimit.get() / MEGABYTE + "MB " +
                   "trying to allocate " + wrapper.myLength + " block", e);
               }
             }
@@ -204,6 +279,16 @@ public class PagedFileStorage implements Forceable {
         }
       }
 
+      // the limit is shared by caches of all locks
+      private void lowerSizeLimit(int delta) {
+        while (true) {
+          final long limit = ourSizeLimit.get();
+          if (limit <= LOWER_LIMIT || ourSizeLimit.compareAndSet(limit, limit - delta)) {
+            return;
+          }
+        }
+      }
+
       private void checkThreadAccess() {
         if (checkThreadAccess && !Thread.holdsLock(StorageLock.this)) {
           throw new IllegalStateException("Must hold StorageLock lock to access PagedFileStorage");
@@ -212,8 +297,14 @@ public class PagedFileStorage implements Forceable {
 
       private @Nullable Map<Integer, MappedBufferWrapper> getBuffersOrderedForOwner(int index) {
         checkThreadAccess();
-        Map<Integer, MappedBufferWrapper> mineBuffers = null;
-        for (Map.Entry<Integer, MappedBufferWrapper> entry : myMap.entrySet()) {
+        Map<Integer, MappedBufferWrapper> mineBuffers = collectBuffersForOwner(myProtectedQueue, index, null);
+        return collectBuffersForOwner(myProbationalQueue, index, mineBuffers);
+      }
+
+      private @Nullable Map<Integer, MappedBufferWrapper> collectBuffersForOwner(Map<Integer, MappedBufferWrapper> queue,
+                                                                                  int index,
+                                                                                  @Nullable Map<Integer, MappedBufferWrapper> mineBuffers) {
+        for (Map.Entry<Integer, MappedBufferWrapper> entry : queue.entrySet()) {
           if ((entry.getKey() & FILE_INDEX_MASK) == index) {
             if (mineBuffers == null) {
               mineBuffers = new TreeMap<Integer, MappedBufferWrapper>(new Comparator<Integer>() {
@@ -234,7 +325,7 @@ public class PagedFileStorage implements Forceable {
 
         if (buffers != null) {
           for (Integer key : buffers.keySet()) {
-            myMap.remove(key);
+            remove(key);
           }
         }
       }
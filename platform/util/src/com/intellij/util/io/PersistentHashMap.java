@@ -22,17 +22,22 @@ import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.ByteSequence;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.CommonProcessors;
+import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.Processor;
 import com.intellij.util.containers.LimitedPool;
 import com.intellij.util.containers.SLRUCache;
+import gnu.trove.*;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Eugene Zhuravlev
@@ -50,6 +55,20 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     INITIAL_INDEX_SIZE = property == null ? 4 * 1024 : Integer.valueOf(property);
   }
 
+  private static final long COMPACTION_MIN_DATA_SIZE = 5 * 1024 * 1024;
+  private static final double COMPACTION_GARBAGE_RATIO;
+  private static final boolean BACKGROUND_COMPACTION = !"false".equals(System.getProperty("idea.phm.background.compaction"));
+  private static final int COMPACTION_SLICE_MS = 20;
+  private static final int COMPACTION_PAUSE_MS = 50;
+  private static final int COMPACTION_RETRY_DELAY_MS = 60 * 1000;
+  // collecting the records to compact starts anew when keys are enumerated in between, after that many restarts it's done in one go
+  private static final int COMPACTION_MAX_COLLECTION_RESTARTS = 3;
+  static {
+    String property = System.getProperty("idea.phm.compaction.garbage.ratio");
+    COMPACTION_GARBAGE_RATIO = property == null ? 0.5 : Double.valueOf(property);
+  }
+  private static ScheduledExecutorService ourCompactionExecutor;
+
   @NonNls
   public static final String DATA_FILE_EXTENSION = ".values";
   private long myLiveAndGarbageKeysCounter; // first four bytes contain live keys count (updated via LIVE_KEY_MASK), last four bytes - number of dead keys
@@ -64,6 +83,31 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private boolean myIntAddressForNewRecord;
   private static final boolean doHardConsistencyChecks = false;
 
+  // incremental compaction state: live values are copied into myCompactedValueStorage while the map keeps working with
+  // myValueStorage. Records are switched to the copies only when all of them are copied, so until then nothing refers to
+  // the compacted storage and an unfinished compaction is just dropped. Values are copied holding only the map's own lock,
+  // PersistentEnumerator.ourLock is taken just around each access to the records.
+  @Nullable private PersistentHashMapValueStorage myCompactedValueStorage;
+  private boolean myCollectingRecords;
+  private TIntHashSet myCollectedRecords;
+  private int myTraversedRecordsCount;
+  private long myEnumeratorSizeAfterCollection;
+  private int myCollectionRestarts;
+  private TIntArrayList myRecordsToCompact;
+  private TIntArrayList myRecordKeysToCompact;
+  private TLongArrayList myCompactedAddresses; // addresses of the copied values, NULL_ADDR if not copied
+  private TIntObjectHashMap<Key> myRecordsChangedDuringCompaction; // their values are copied at the end, as they are then
+  private TIntHashSet myChangedRecordsToCopy; // changed records not copied since their last change
+  private TIntLongHashMap myChangedRecordsCopies; // addresses of the copied values of changed records, NULL_ADDR if removed
+  private TIntHashSet myRecordsOrphanedDuringCompaction; // records left by re-enumeration
+  private int myCompactionPosition;
+  private long myCompactionStarted;
+  private boolean myCompactionScheduled;
+  private long myLastCompactionFailure;
+  @Nullable private Runnable myCompactionCopyListener;
+  private int myCompactionsCount;
+  private long myBytesReclaimedByCompaction;
+
   private static class AppendStream extends DataOutputStream {
     private AppendStream() {
       super(new BufferExposingByteArrayOutputStream());
@@ -118,10 +162,11 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
             myValueStorage.appendBytes(bytes, oldHeaderRecord.address)
           );
 
-          updateValueId(id, headerRecord, oldHeaderRecord, key, 0);
+          updateValueIdAndTrackChanges(id, headerRecord, oldHeaderRecord, key, 0);
           if (oldHeaderRecord == HeaderRecord.EMPTY) {
             myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
           }
+          scheduleCompactionIfNeeded();
 
           myStreamPool.recycle(value);
         }
@@ -218,12 +263,26 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     return myEnumerator.myFile;
   }
 
+  /**
+   * @return number of times the value storage was compacted since the map was opened
+   */
+  public int getCompactionsCount() {
+    return myCompactionsCount;
+  }
+
+  /**
+   * @return total size of garbage removed from the value storage by compactions since the map was opened
+   */
+  public long getBytesReclaimedByCompaction() {
+    return myBytesReclaimedByCompaction;
+  }
+
   private boolean makesSenseToCompact() {
-    final long fileSize = getDataFile(myEnumerator.myFile).length();
-    if (fileSize > 5 * 1024 * 1024) { // file is longer than 5MB and more than 50% of keys is garbage
-      int liveKeys = (int)(myLiveAndGarbageKeysCounter / LIVE_KEY_MASK);
-      int oldKeys = (int)(myLiveAndGarbageKeysCounter & 0xFFFFFFFF);
-      return oldKeys > liveKeys;
+    final long fileSize = myValueStorage.getSize();
+    if (fileSize > COMPACTION_MIN_DATA_SIZE) { // file is longer than 5MB and more than idea.phm.compaction.garbage.ratio (50%) of keys is garbage
+      long liveKeys = myLiveAndGarbageKeysCounter / LIVE_KEY_MASK;
+      long oldKeys = myLiveAndGarbageKeysCounter & 0xFFFFFFFFL;
+      return oldKeys > (liveKeys + oldKeys) * COMPACTION_GARBAGE_RATIO;
     }
     return false;
   }
@@ -253,6 +312,10 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     return new File(file.getParentFile(), file.getName() + DATA_FILE_EXTENSION);
   }
 
+  private static File getCompactedDataFile(final File file) {
+    return new File(file.getParentFile(), file.getName() + DATA_FILE_EXTENSION + ".new");
+  }
+
   public final void put(Key key, Value value) throws IOException {
     synchronized (myEnumerator) {
       doPut(key, value);
@@ -279,7 +342,8 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
       HeaderRecord header = new HeaderRecord(myValueStorage.appendBytes(bytes, 0));
 
-      updateValueId(id, header, oldheader, key, 0);
+      updateValueIdAndTrackChanges(id, header, oldheader, key, 0);
+      scheduleCompactionIfNeeded();
     }
   }
 
@@ -357,7 +421,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       if (readResult.first != null && readResult.first != oldHeader.address) {
         myEnumerator.markDirty(true);
 
-        updateValueId(id, new HeaderRecord(readResult.first), oldHeader, key, 0);
+        updateValueIdAndTrackChanges(id, new HeaderRecord(readResult.first), oldHeader, key, 0);
         if (oldHeader != HeaderRecord.EMPTY) {
           myLiveAndGarbageKeysCounter++;
         }
@@ -410,7 +474,8 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         myLiveAndGarbageKeysCounter++;
       }
 
-      updateValueId(id, HeaderRecord.EMPTY, record, key, 0);
+      updateValueIdAndTrackChanges(id, HeaderRecord.EMPTY, record, key, 0);
+      scheduleCompactionIfNeeded();
     }
   }
 
@@ -440,6 +505,9 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private void clearAppenderCaches() {
     myAppendCache.clear();
     myValueStorage.force();
+    if (myCompactedValueStorage != null) {
+      myCompactedValueStorage.force();
+    }
   }
 
   public final void close() throws IOException {
@@ -453,6 +521,8 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       try {
         myAppendCacheFlusher.stop();
         myAppendCache.clear();
+        // an unfinished compaction is dropped, it's started again after reopening if it still makes sense
+        abortCompaction();
         myValueStorage.dispose();
       }
       finally {
@@ -464,37 +534,343 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   // made public for tests
   public void compact() throws IOException {
     synchronized (myEnumerator) {
-      final long now = System.currentTimeMillis();
-      final String newPath = getDataFile(myEnumerator.myFile).getPath() + ".new";
-      final PersistentHashMapValueStorage newStorage = PersistentHashMapValueStorage.create(newPath);
-      myValueStorage.switchToCompactionMode();
-      myLiveAndGarbageKeysCounter = 0;
-
-      traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
-        public boolean process(final int keyId) throws IOException {
-          final HeaderRecord record = readValueId(keyId);
-          if (record.address != NULL_ADDR) {            
-            Pair<Long, byte[]> readResult = myValueStorage.readBytes(record.address);
-            HeaderRecord value = new HeaderRecord(newStorage.appendBytes(new ByteSequence(readResult.second), 0));
-            updateValueId(keyId, value, record, null, getCurrentKey());
-            myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
-          }
-          return true;
+      if (myCompactedValueStorage == null) {
+        startCompaction();
+      }
+      compactSome(-1);
+    }
+  }
+
+  /**
+   * Does the next step of the compaction for about <code>maxMillis</code> ms (or until done if <code>maxMillis</code> is negative):
+   * collects the records to compact, copies their live values and then the values changed since into the compacted value
+   * storage or switches the map to it. Other map operations can run between the calls. If a step fails, the compaction is dropped.
+   * @return true if there is no compaction in progress anymore
+   */
+  public final boolean compactSome(long maxMillis) throws IOException {
+    synchronized (myEnumerator) {
+      if (myCompactedValueStorage == null) return true;
+
+      final long deadline = maxMillis < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + maxMillis;
+      boolean failed = true;
+      try {
+        final boolean done = doCompactSome(deadline);
+        failed = false;
+        return done;
+      }
+      finally {
+        if (failed) {
+          abortCompaction();
         }
-      });
+      }
+    }
+  }
+
+  private boolean doCompactSome(long deadline) throws IOException {
+    if (myCollectingRecords && !collectRecordsToCompact(deadline)) {
+      return false;
+    }
+    while (myCompactionPosition < myRecordsToCompact.size()) {
+      final int keyId = myRecordsToCompact.get(myCompactionPosition);
+      if (!myRecordsChangedDuringCompaction.containsKey(keyId) && !myRecordsOrphanedDuringCompaction.contains(keyId)) {
+        final HeaderRecord record = readValueIdLocked(keyId);
+        if (record.address != NULL_ADDR) {
+          myCompactedAddresses.set(myCompactionPosition, copyValue(record));
+        }
+      }
+      ++myCompactionPosition;
+      if (System.currentTimeMillis() > deadline) {
+        return false;
+      }
+    }
+
+    // values changed during the compaction are copied as they are now, a record changed again is copied anew
+    while (!myChangedRecordsToCopy.isEmpty()) {
+      final int keyId = myChangedRecordsToCopy.iterator().next();
+      myChangedRecordsToCopy.remove(keyId);
+      final HeaderRecord record = readValueIdLocked(keyId);
+      myChangedRecordsCopies.put(keyId, record.address != NULL_ADDR ? copyValue(record) : NULL_ADDR);
+      if (System.currentTimeMillis() > deadline) {
+        return false;
+      }
+    }
+
+    finishCompaction();
+    return true;
+  }
+
+  private HeaderRecord readValueIdLocked(int keyId) {
+    synchronized (PersistentEnumerator.ourLock) {
+      return readValueId(keyId);
+    }
+  }
+
+  private void startCompaction() throws IOException {
+    myAppendCache.clear();
+
+    final File newFile = getCompactedDataFile(myEnumerator.myFile);
+    FileUtil.delete(newFile); // leftover of interrupted compaction
+    myCompactedValueStorage = PersistentHashMapValueStorage.create(newFile.getPath());
+    myCollectingRecords = true;
+    myCollectedRecords = new TIntHashSet();
+    myTraversedRecordsCount = 0;
+    myEnumeratorSizeAfterCollection = myEnumerator.myStorage.length();
+    myCollectionRestarts = 0;
+    myRecordsToCompact = new TIntArrayList();
+    myRecordKeysToCompact = new TIntArrayList();
+    myCompactedAddresses = new TLongArrayList();
+    myRecordsChangedDuringCompaction = new TIntObjectHashMap<Key>();
+    myChangedRecordsToCopy = new TIntHashSet();
+    myChangedRecordsCopies = new TIntLongHashMap();
+    myRecordsOrphanedDuringCompaction = new TIntHashSet();
+    myCompactionPosition = 0;
+    myCompactionStarted = System.currentTimeMillis();
+  }
+
+  /**
+   * Records traversal can't be suspended, so every slice traverses the records again skipping the ones traversed by the previous
+   * slices. Enumeration of new keys may reorder the records, the traversal starts from the beginning then (collected records are
+   * not collected twice). Records created after the compaction start don't need to be collected: their values are tracked as
+   * changed ones.
+   * @return true if all the records are collected
+   */
+  private boolean collectRecordsToCompact(final long deadline) throws IOException {
+    if (myEnumerator.myStorage.length() != myEnumeratorSizeAfterCollection) {
+      myTraversedRecordsCount = 0;
+      ++myCollectionRestarts;
+    }
+    final long sliceDeadline = myCollectionRestarts > COMPACTION_MAX_COLLECTION_RESTARTS ? Long.MAX_VALUE : deadline;
+    final int toSkip = myTraversedRecordsCount;
+    final int[] position = new int[1];
+    final boolean collected = traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+      public boolean process(final int keyId) throws IOException {
+        if (position[0]++ < toSkip) return true;
+        ++myTraversedRecordsCount;
+        if (myCollectedRecords.add(keyId)) {
+          myRecordsToCompact.add(keyId);
+          myRecordKeysToCompact.add(getCurrentKey());
+          myCompactedAddresses.add(NULL_ADDR);
+        }
+        return System.currentTimeMillis() <= sliceDeadline;
+      }
+    });
+    myEnumeratorSizeAfterCollection = myEnumerator.myStorage.length();
+    if (collected) {
+      myCollectingRecords = false;
+      myCollectedRecords = null;
+    }
+    return collected;
+  }
+
+  private long copyValue(HeaderRecord record) throws IOException {
+    // a chain of chunks is merged into a new chunk of the old storage here, the record keeps the old address which is still valid
+    final Pair<Long, byte[]> readResult = myValueStorage.readBytes(record.address);
+    final long address = myCompactedValueStorage.appendBytes(new ByteSequence(readResult.second), 0);
+    if (myCompactionCopyListener != null) {
+      myCompactionCopyListener.run();
+    }
+    return address;
+  }
+
+  /**
+   * Switches the records to the compacted storage. All the values are copied by now, so this only updates the records, which
+   * can't be split into steps: until every record is switched, an address doesn't tell which storage it belongs to.
+   */
+  private void finishCompaction() throws IOException {
+    final PersistentHashMapValueStorage compacted = myCompactedValueStorage;
+    assert compacted != null;
+    compacted.force();
+
+    // records are switched to the compacted storage, there is no way back from here
+    final TIntArrayList records = myRecordsToCompact;
+    final TIntArrayList recordKeys = myRecordKeysToCompact;
+    final TLongArrayList addresses = myCompactedAddresses;
+    final TIntObjectHashMap<Key> changed = myRecordsChangedDuringCompaction;
+    final TIntLongHashMap changedCopies = myChangedRecordsCopies;
+    final TIntHashSet orphaned = myRecordsOrphanedDuringCompaction;
+    clearCompactionState();
+
+    final long oldSize = myValueStorage.getSize();
+    final long newSize = compacted.getSize();
+    myEnumerator.markDirty(true);
+    long liveKeys = 0;
+    boolean switched = false;
+    try {
+      for (int i = 0; i < records.size(); i++) {
+        final int keyId = records.get(i);
+        if (addresses.get(i) != NULL_ADDR && !changed.containsKey(keyId) && !orphaned.contains(keyId)) {
+          switchToCompactedValue(keyId, addresses.get(i), null, recordKeys.get(i));
+          ++liveKeys;
+        }
+      }
+      for (TIntObjectIterator<Key> it = changed.iterator(); it.hasNext();) {
+        it.advance();
+        final long address = changedCopies.get(it.key());
+        if (address != NULL_ADDR) {
+          switchToCompactedValue(it.key(), address, it.value(), 0);
+          ++liveKeys;
+        }
+      }
+      for (TIntIterator it = orphaned.iterator(); it.hasNext();) {
+        final int keyId = it.next();
+        synchronized (PersistentEnumerator.ourLock) {
+          clearValueId(keyId);
+        }
+      }
 
       myValueStorage.dispose();
-      newStorage.dispose();
+      compacted.dispose();
 
-      FileUtil.rename(new File(newPath), getDataFile(myEnumerator.myFile));
+      FileUtil.rename(getCompactedDataFile(myEnumerator.myFile), getDataFile(myEnumerator.myFile));
 
-      myValueStorage = PersistentHashMapValueStorage.create(getDataFile(myEnumerator.myFile).getPath());
-      LOG.info("Compacted " + myEnumerator.myFile.getPath() + " in " + (System.currentTimeMillis() - now) + "ms.");
+      switched = true;
+    }
+    finally {
+      if (!switched) {
+        // records refer to both storages now
+        myEnumerator.markCorrupted();
+      }
+    }
 
+    myValueStorage = PersistentHashMapValueStorage.create(getDataFile(myEnumerator.myFile).getPath());
+    myLiveAndGarbageKeysCounter = liveKeys * LIVE_KEY_MASK;
+    ++myCompactionsCount;
+    myBytesReclaimedByCompaction += oldSize - newSize;
+    LOG.info("Compacted " + myEnumerator.myFile.getPath() + " in " + (System.currentTimeMillis() - myCompactionStarted) + "ms, " +
+             (oldSize - newSize) + " bytes reclaimed.");
+
+    synchronized (PersistentEnumerator.ourLock) {
       myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
     }
   }
 
+  private void switchToCompactedValue(int keyId, long address, @Nullable Key key, int processingKey) throws IOException {
+    synchronized (PersistentEnumerator.ourLock) {
+      final int id = updateValueId(keyId, new HeaderRecord(address), readValueId(keyId), key, processingKey);
+      if (id != keyId) {
+        // the record left by re-enumeration refers to the old storage
+        clearValueId(keyId);
+      }
+    }
+  }
+
+  private void clearValueId(int keyId) throws IOException {
+    final HeaderRecord record = readValueId(keyId);
+    if (record.address != NULL_ADDR) {
+      updateValueId(keyId, HeaderRecord.EMPTY, record, null, 0);
+    }
+  }
+
+  /**
+   * Drops the compaction in progress if any. Records don't refer to the compacted storage until the compaction is finished,
+   * so it is simply deleted.
+   */
+  private void abortCompaction() {
+    final PersistentHashMapValueStorage compacted = myCompactedValueStorage;
+    if (compacted == null) return;
+    clearCompactionState();
+    compacted.dispose();
+    FileUtil.delete(getCompactedDataFile(myEnumerator.myFile));
+  }
+
+  private void clearCompactionState() {
+    myCompactedValueStorage = null;
+    myCollectingRecords = false;
+    myCollectedRecords = null;
+    myRecordsToCompact = null;
+    myRecordKeysToCompact = null;
+    myCompactedAddresses = null;
+    myRecordsChangedDuringCompaction = null;
+    myChangedRecordsToCopy = null;
+    myChangedRecordsCopies = null;
+    myRecordsOrphanedDuringCompaction = null;
+  }
+
+  /**
+   * @return true if a compaction is in progress
+   */
+  public final boolean isCompacting() {
+    synchronized (myEnumerator) {
+      return myCompactedValueStorage != null;
+    }
+  }
+
+  @TestOnly
+  void startCompactionForTests() throws IOException {
+    synchronized (myEnumerator) {
+      if (myCompactedValueStorage == null) {
+        startCompaction();
+      }
+    }
+  }
+
+  @TestOnly
+  void setCompactionCopyListener(@Nullable Runnable listener) {
+    myCompactionCopyListener = listener;
+  }
+
+  private int updateValueIdAndTrackChanges(int keyId, HeaderRecord value, HeaderRecord oldValue, @Nullable Key key, int processingKey)
+    throws IOException {
+    final int id = updateValueId(keyId, value, oldValue, key, processingKey);
+    if (myCompactedValueStorage != null) {
+      if (id != keyId) {
+        myRecordsChangedDuringCompaction.remove(keyId);
+        myChangedRecordsToCopy.remove(keyId);
+        myChangedRecordsCopies.remove(keyId);
+        myRecordsOrphanedDuringCompaction.add(keyId);
+      }
+      myRecordsChangedDuringCompaction.put(id, key != null ? key : myEnumerator.getValue(id, processingKey));
+      myChangedRecordsToCopy.add(id);
+      myChangedRecordsCopies.remove(id);
+    }
+    return id;
+  }
+
+  private void scheduleCompactionIfNeeded() {
+    if (!BACKGROUND_COMPACTION || myCompactionScheduled || myCompactedValueStorage != null || !makesSenseToCompact()) return;
+    if (myLastCompactionFailure != 0 && System.currentTimeMillis() - myLastCompactionFailure < COMPACTION_RETRY_DELAY_MS) return;
+    myCompactionScheduled = true;
+    getCompactionExecutor().execute(new Runnable() {
+      @Override
+      public void run() {
+        boolean done = true;
+        try {
+          synchronized (myEnumerator) {
+            if (isClosed()) {
+              return;
+            }
+            if (myCompactedValueStorage == null) {
+              startCompaction();
+            }
+            done = compactSome(COMPACTION_SLICE_MS);
+          }
+        }
+        catch (Throwable e) {
+          // the compaction is dropped by now, it's tried again later
+          myLastCompactionFailure = System.currentTimeMillis();
+          LOG.warn("Background compaction of " + myEnumerator.myFile.getPath() + " failed", e);
+        }
+        finally {
+          if (done) {
+            synchronized (myEnumerator) {
+              myCompactionScheduled = false;
+            }
+          }
+        }
+        if (!done) {
+          getCompactionExecutor().schedule(this, COMPACTION_PAUSE_MS, TimeUnit.MILLISECONDS);
+        }
+      }
+    });
+  }
+
+  private static synchronized ScheduledExecutorService getCompactionExecutor() {
+    if (ourCompactionExecutor == null) {
+      ourCompactionExecutor = ConcurrencyUtil.newSingleScheduledThreadExecutor("PersistentHashMap compactor", Thread.MIN_PRIORITY);
+    }
+    return ourCompactionExecutor;
+  }
+
   private HeaderRecord readValueId(final int keyId) {
     long address = myEnumerator.myStorage.getInt(keyId + myParentValueRefOffset);
     if (address == 0 || address == -POSITIVE_VALUE_SHIFT) {
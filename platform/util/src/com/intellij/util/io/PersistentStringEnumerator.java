@@ -16,6 +16,7 @@
 package com.intellij.util.io;
 
 import com.intellij.util.containers.ConcurrentSLRUMap;
+import com.intellij.util.containers.ConcurrentWeakValueHashMap;
 
 import java.io.File;
 import java.io.IOException;
@@ -23,6 +24,8 @@ import java.io.IOException;
 public class PersistentStringEnumerator extends PersistentEnumeratorDelegate<String>{
   private final ConcurrentSLRUMap<Integer, String> myIdToStringCache;
   private final ConcurrentSLRUMap<Integer, Integer> myHashcodeToIdCache;
+  // canonical instances of the strings still referenced from outside, e.g. by StringRefs of loaded stubs
+  private final ConcurrentWeakValueHashMap<Integer, String> myCanonicalStrings;
 
   public PersistentStringEnumerator(final File file) throws IOException {
     this(file, 1024 * 4);
@@ -41,9 +44,11 @@ public class PersistentStringEnumerator extends PersistentEnumeratorDelegate<Str
     if (cacheLastMappings) {
       myIdToStringCache = new ConcurrentSLRUMap<Integer, String>(8192, 8192);
       myHashcodeToIdCache = new ConcurrentSLRUMap<Integer, Integer>(8192, 8192);
+      myCanonicalStrings = new ConcurrentWeakValueHashMap<Integer, String>();
     } else {
       myIdToStringCache = null;
       myHashcodeToIdCache = null;
+      myCanonicalStrings = null;
     }
   }
 
@@ -76,6 +81,22 @@ public class PersistentStringEnumerator extends PersistentEnumeratorDelegate<Str
     if (myIdToStringCache != null) {
       String s = myIdToStringCache.get(idx);
       if (s != null) return s;
+
+      s = myCanonicalStrings.get(idx);
+      if (s != null) {
+        // without the canonical instance a fresh copy would have been read here
+        IOStatistics.sharedStringReused(s);
+      }
+      else {
+        s = super.valueOf(idx);
+        if (s == null) return null;
+        final String existing = myCanonicalStrings.putIfAbsent(idx, s);
+        if (existing != null) {
+          s = existing;
+        }
+      }
+      myIdToStringCache.put(idx, s);
+      return s;
     }
     return super.valueOf(idx);
   }
@@ -91,6 +112,10 @@ public class PersistentStringEnumerator extends PersistentEnumeratorDelegate<Str
     if (myHashcodeToIdCache != null) {
       myHashcodeToIdCache.clear();
     }
+
+    if (myCanonicalStrings != null) {
+      myCanonicalStrings.clear();
+    }
   }
 
   public void markCorrupted() {
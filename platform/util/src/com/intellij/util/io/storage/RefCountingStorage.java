@@ -31,7 +31,9 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.zip.DataFormatException;
 import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 public class RefCountingStorage extends AbstractStorage {
@@ -68,6 +70,43 @@ public class RefCountingStorage extends AbstractStorage {
     }
   }
 
+  /**
+   * Reads record content without intermediate streams. When <code>expectedLength</code> matches the uncompressed content length
+   * the content is inflated right into the resulting array, otherwise it falls back to {@link #readBytes(int)}.
+   */
+  public byte[] readBytes(int record, int expectedLength) throws IOException {
+    if (myDoNotZipCaches || expectedLength <= 0) return readBytes(record);
+    waitForPendingWriteForRecord(record);
+
+    final byte[] compressed = super.readBytes(record);
+    final Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      final byte[] result = new byte[expectedLength];
+      int count = 0;
+      while (count < expectedLength) {
+        int n = inflater.inflate(result, count, expectedLength - count);
+        if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+        count += n;
+      }
+      if (count == expectedLength && (inflater.finished() || inflater.inflate(new byte[1]) == 0 && inflater.finished())) {
+        return result;
+      }
+    }
+    catch (DataFormatException e) {
+      throw new IOException(e.getMessage());
+    }
+    finally {
+      inflater.end();
+    }
+
+    return readBytes(record);
+  }
+
+  public boolean isCompressed() {
+    return !myDoNotZipCaches;
+  }
+
   private void waitForPendingWriteForRecord(int record) {
     Future<?> future = myPendingWriteRequests.get(record);
     if (future != null) {
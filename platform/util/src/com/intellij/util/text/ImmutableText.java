@@ -0,0 +1,357 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.ref.SoftReference;
+
+/**
+ * Immutable text kept as a balanced tree of small char arrays (a rope).
+ * <p/>
+ * {@link #insert(int, CharSequence) Insertion}, {@link #delete(int, int) deletion} and {@link #subSequence(int, int) subsequences}
+ * take O(log n) time and produce new instances sharing most of the tree with the original one, so big texts can be edited without
+ * shifting the whole tail of a char array, and any version of the text can be read from other threads without copying.
+ * <p/>
+ * {@link #getChars()} has to build a flat array of the whole text, it's cached for the instance but should be avoided for big texts.
+ */
+public final class ImmutableText implements CharSequenceBackedByArray {
+  static final int BLOCK_SIZE = 1 << 10;
+
+  public static final ImmutableText EMPTY = new ImmutableText(new Leaf(new char[0]));
+
+  private final Node myRoot;
+  private volatile LeafPosition myLastLeaf; // leaf of the last charAt(), sequential access shouldn't walk the tree for every char
+  private volatile SoftReference<char[]> myChars;
+
+  private ImmutableText(@NotNull Node root) {
+    myRoot = root;
+  }
+
+  @NotNull
+  public static ImmutableText valueOf(@NotNull CharSequence text) {
+    if (text instanceof ImmutableText) return (ImmutableText)text;
+    return text.length() == 0 ? EMPTY : new ImmutableText(nodeOf(text, 0, text.length()));
+  }
+
+  private static Node nodeOf(CharSequence text, int start, int end) {
+    final int length = end - start;
+    if (length <= BLOCK_SIZE) {
+      final char[] chars = new char[length];
+      copyChars(text, start, end, chars, 0);
+      return new Leaf(chars);
+    }
+    // split by whole blocks to keep the leaves full
+    final int middle = start + ((length / BLOCK_SIZE + 1) / 2) * BLOCK_SIZE;
+    return new Composite(nodeOf(text, start, middle), nodeOf(text, middle, end));
+  }
+
+  private static void copyChars(CharSequence text, int start, int end, char[] dest, int destPos) {
+    if (text instanceof String) {
+      ((String)text).getChars(start, end, dest, destPos);
+    }
+    else if (text instanceof StringBuilder) {
+      ((StringBuilder)text).getChars(start, end, dest, destPos);
+    }
+    else if (text instanceof ImmutableText) {
+      ((ImmutableText)text).getChars(start, end, dest, destPos);
+    }
+    else {
+      for (int i = start; i < end; i++) {
+        dest[destPos++] = text.charAt(i);
+      }
+    }
+  }
+
+  @NotNull
+  public ImmutableText concat(@NotNull CharSequence text) {
+    return text.length() == 0 ? this : new ImmutableText(concat(myRoot, valueOf(text).myRoot));
+  }
+
+  @NotNull
+  public ImmutableText insert(int index, @NotNull CharSequence text) {
+    checkRange(index, index);
+    if (text.length() == 0) return this;
+    return new ImmutableText(concat(concat(myRoot.subNode(0, index), valueOf(text).myRoot), myRoot.subNode(index, length())));
+  }
+
+  @NotNull
+  public ImmutableText delete(int start, int end) {
+    checkRange(start, end);
+    if (start == end) return this;
+    return new ImmutableText(concat(myRoot.subNode(0, start), myRoot.subNode(end, length())));
+  }
+
+  @NotNull
+  public ImmutableText replace(int start, int end, @NotNull CharSequence text) {
+    checkRange(start, end);
+    if (start == end) return insert(start, text);
+    final Node head = concat(myRoot.subNode(0, start), valueOf(text).myRoot);
+    return new ImmutableText(concat(head, myRoot.subNode(end, length())));
+  }
+
+  @Override
+  public int length() {
+    return myRoot.length();
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (index < 0 || index >= length()) {
+      throw new IndexOutOfBoundsException("Wrong offset: " + index + "; length: " + length());
+    }
+    LeafPosition position = myLastLeaf;
+    if (position == null || index < position.myOffset || index >= position.myOffset + position.myLeaf.myChars.length) {
+      position = findLeaf(index);
+      myLastLeaf = position;
+    }
+    return position.myLeaf.myChars[index - position.myOffset];
+  }
+
+  private LeafPosition findLeaf(int index) {
+    Node node = myRoot;
+    int offset = 0;
+    while (node instanceof Composite) {
+      final Composite composite = (Composite)node;
+      final int headLength = composite.myHead.length();
+      if (index < offset + headLength) {
+        node = composite.myHead;
+      }
+      else {
+        offset += headLength;
+        node = composite.myTail;
+      }
+    }
+    return new LeafPosition((Leaf)node, offset);
+  }
+
+  @NotNull
+  @Override
+  public ImmutableText subSequence(int start, int end) {
+    checkRange(start, end);
+    if (start == 0 && end == length()) return this;
+    return start == end ? EMPTY : new ImmutableText(myRoot.subNode(start, end));
+  }
+
+  public void getChars(int start, int end, char[] dest, int destPos) {
+    checkRange(start, end);
+    myRoot.getChars(start, end, dest, destPos);
+  }
+
+  @Override
+  public char[] getChars() {
+    final SoftReference<char[]> ref = myChars;
+    char[] chars = ref != null ? ref.get() : null;
+    if (chars == null) {
+      chars = new char[length()];
+      myRoot.getChars(0, length(), chars, 0);
+      myChars = new SoftReference<char[]>(chars);
+    }
+    return chars;
+  }
+
+  @Override
+  public void getChars(char[] dst, int dstOffset) {
+    myRoot.getChars(0, length(), dst, dstOffset);
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    final SoftReference<char[]> ref = myChars;
+    final char[] chars = ref != null ? ref.get() : null;
+    if (chars != null) {
+      return new String(chars);
+    }
+    final char[] result = new char[length()];
+    myRoot.getChars(0, length(), result, 0);
+    return new String(result);
+  }
+
+  /**
+   * @return depth of the tree, for tests
+   */
+  int getDepth() {
+    return myRoot.depth();
+  }
+
+  private void checkRange(int start, int end) {
+    if (start < 0 || end > length() || start > end) {
+      throw new IndexOutOfBoundsException("length: " + length() + ", start: " + start + ", end: " + end);
+    }
+  }
+
+  private static Node concat(Node head, Node tail) {
+    final int headLength = head.length();
+    final int tailLength = tail.length();
+    if (headLength == 0) return tail;
+    if (tailLength == 0) return head;
+
+    if (headLength + tailLength <= BLOCK_SIZE) {
+      final char[] chars = new char[headLength + tailLength];
+      head.getChars(0, headLength, chars, 0);
+      tail.getChars(0, tailLength, chars, headLength);
+      return new Leaf(chars);
+    }
+
+    final int headDepth = head.depth();
+    final int tailDepth = tail.depth();
+    if (headDepth > tailDepth + 1) return joinRight((Composite)head, tail);
+    if (tailDepth > headDepth + 1) return joinLeft(head, (Composite)tail);
+    return new Composite(head, tail);
+  }
+
+  // AVL join: descends the deeper tree along its edge to a subtree of the other tree's depth and rebalances on the way back
+
+  private static Node joinRight(Composite head, Node tail) {
+    final Node left = head.myHead;
+    final Node middle = head.myTail;
+    if (middle.depth() <= tail.depth() + 1) {
+      final Node joined = concat(middle, tail);
+      if (joined.depth() <= left.depth() + 1) return new Composite(left, joined);
+      return new Composite(left, ((Composite)joined).rotateRight()).rotateLeft();
+    }
+    final Node joined = joinRight((Composite)middle, tail);
+    final Composite result = new Composite(left, joined);
+    return joined.depth() <= left.depth() + 1 ? result : result.rotateLeft();
+  }
+
+  private static Node joinLeft(Node head, Composite tail) {
+    final Node middle = tail.myHead;
+    final Node right = tail.myTail;
+    if (middle.depth() <= head.depth() + 1) {
+      final Node joined = concat(head, middle);
+      if (joined.depth() <= right.depth() + 1) return new Composite(joined, right);
+      return new Composite(((Composite)joined).rotateLeft(), right).rotateRight();
+    }
+    final Node joined = joinLeft(head, (Composite)middle);
+    final Composite result = new Composite(joined, right);
+    return joined.depth() <= right.depth() + 1 ? result : result.rotateRight();
+  }
+
+  private abstract static class Node {
+    abstract int length();
+
+    abstract int depth();
+
+    abstract void getChars(int start, int end, char[] dest, int destPos);
+
+    abstract Node subNode(int start, int end);
+  }
+
+  private static final class Leaf extends Node {
+    private final char[] myChars;
+
+    private Leaf(char[] chars) {
+      myChars = chars;
+    }
+
+    @Override
+    int length() {
+      return myChars.length;
+    }
+
+    @Override
+    int depth() {
+      return 0;
+    }
+
+    @Override
+    void getChars(int start, int end, char[] dest, int destPos) {
+      System.arraycopy(myChars, start, dest, destPos, end - start);
+    }
+
+    @Override
+    Node subNode(int start, int end) {
+      if (start == 0 && end == myChars.length) return this;
+      final char[] chars = new char[end - start];
+      System.arraycopy(myChars, start, chars, 0, chars.length);
+      return new Leaf(chars);
+    }
+  }
+
+  private static final class Composite extends Node {
+    private final Node myHead;
+    private final Node myTail;
+    private final int myLength;
+    private final int myDepth;
+
+    private Composite(Node head, Node tail) {
+      myHead = head;
+      myTail = tail;
+      myLength = head.length() + tail.length();
+      myDepth = Math.max(head.depth(), tail.depth()) + 1;
+    }
+
+    @Override
+    int length() {
+      return myLength;
+    }
+
+    @Override
+    int depth() {
+      return myDepth;
+    }
+
+    @Override
+    void getChars(int start, int end, char[] dest, int destPos) {
+      final int headLength = myHead.length();
+      if (end <= headLength) {
+        myHead.getChars(start, end, dest, destPos);
+      }
+      else if (start >= headLength) {
+        myTail.getChars(start - headLength, end - headLength, dest, destPos);
+      }
+      else {
+        myHead.getChars(start, headLength, dest, destPos);
+        myTail.getChars(0, end - headLength, dest, destPos + headLength - start);
+      }
+    }
+
+    @Override
+    Node subNode(int start, int end) {
+      if (start == 0 && end == myLength) return this;
+      final int headLength = myHead.length();
+      if (end <= headLength) return myHead.subNode(start, end);
+      if (start >= headLength) return myTail.subNode(start - headLength, end - headLength);
+      return concat(myHead.subNode(start, headLength), myTail.subNode(0, end - headLength));
+    }
+
+    private Composite rotateRight() {
+      // (P, Q), R -> P, (Q, R)
+      if (!(myHead instanceof Composite)) return this;
+      final Composite head = (Composite)myHead;
+      return new Composite(head.myHead, new Composite(head.myTail, myTail));
+    }
+
+    private Composite rotateLeft() {
+      // P, (Q, R) -> (P, Q), R
+      if (!(myTail instanceof Composite)) return this;
+      final Composite tail = (Composite)myTail;
+      return new Composite(new Composite(myHead, tail.myHead), tail.myTail);
+    }
+  }
+
+  private static final class LeafPosition {
+    private final Leaf myLeaf;
+    private final int myOffset;
+
+    private LeafPosition(Leaf leaf, int offset) {
+      myLeaf = leaf;
+      myOffset = offset;
+    }
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+public class PersistentHashMapCompactionTest extends TestCase {
+  private static final int KEYS_COUNT = 3000;
+
+  private File myDir;
+  private File myFile;
+  private PersistentHashMap<String, String> myMap;
+  private final Map<String, String> myExpected = new HashMap<String, String>();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("persistent", "map");
+    myFile = new File(myDir, "map");
+    myMap = createMap();
+    for (int i = 0; i < KEYS_COUNT; i++) {
+      put("key" + i, "value" + i);
+    }
+    // garbage to compact
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < KEYS_COUNT; i += 3) {
+        put("key" + i, "value" + i + "_" + round);
+      }
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      if (myMap != null) {
+        myMap.close();
+      }
+    }
+    finally {
+      FileUtil.delete(myDir);
+      super.tearDown();
+    }
+  }
+
+  public void testReadsAndWritesDuringCompaction() throws IOException {
+    final Random random = new Random(42);
+    myMap.startCompactionForTests();
+    int slices = 0;
+    while (!myMap.compactSome(0)) {
+      ++slices;
+      for (int i = 0; i < 20; i++) {
+        final String key = "key" + random.nextInt(KEYS_COUNT + KEYS_COUNT / 10);
+        switch (random.nextInt(3)) {
+          case 0:
+            put(key, "changed" + slices + "_" + i);
+            break;
+          case 1:
+            myMap.remove(key);
+            myExpected.remove(key);
+            break;
+          default:
+            assertEquals(myExpected.get(key), myMap.get(key));
+        }
+      }
+    }
+    assertTrue(String.valueOf(slices), slices > 1);
+    assertFalse(myMap.isCompacting());
+    assertEquals(1, myMap.getCompactionsCount());
+    assertTrue(myMap.getBytesReclaimedByCompaction() > 0);
+    assertFalse(getCompactedDataFile().exists());
+    checkContent();
+
+    reopen();
+    checkContent();
+  }
+
+  public void testValuesAreCopiedWithoutGlobalLock() throws IOException {
+    final int[] copied = new int[1];
+    myMap.setCompactionCopyListener(new Runnable() {
+      @Override
+      public void run() {
+        assertFalse(Thread.holdsLock(PersistentEnumerator.ourLock));
+        ++copied[0];
+      }
+    });
+    myMap.startCompactionForTests();
+    int slices = 0;
+    while (!myMap.compactSome(0)) {
+      put("key" + slices % KEYS_COUNT, "changed" + slices);
+      ++slices;
+    }
+    assertTrue(copied[0] >= KEYS_COUNT);
+    assertEquals(1, myMap.getCompactionsCount());
+    checkContent();
+  }
+
+  public void testCloseInTheMiddleOfCompaction() throws IOException {
+    myMap.startCompactionForTests();
+    for (int i = 0; i < 10; i++) {
+      assertFalse(myMap.compactSome(0));
+      put("key" + i * 7, "changed" + i);
+    }
+    assertTrue(myMap.isCompacting());
+    myMap.close();
+    assertFalse(getCompactedDataFile().exists());
+
+    myMap = createMap();
+    checkContent();
+    assertEquals(0, myMap.getCompactionsCount());
+  }
+
+  public void testRecoveryAfterFailedCompaction() throws IOException {
+    final int[] copied = new int[1];
+    myMap.setCompactionCopyListener(new Runnable() {
+      @Override
+      public void run() {
+        if (++copied[0] == KEYS_COUNT / 2) {
+          throw new RuntimeException("compaction failure for tests");
+        }
+      }
+    });
+    myMap.startCompactionForTests();
+    try {
+      while (!myMap.compactSome(0)) {
+        put("key" + copied[0], "changed" + copied[0]);
+      }
+      fail("compaction should fail");
+    }
+    catch (RuntimeException e) {
+      assertEquals("compaction failure for tests", e.getMessage());
+    }
+    assertFalse(myMap.isCompacting());
+    assertFalse(getCompactedDataFile().exists());
+    assertEquals(0, myMap.getCompactionsCount());
+    checkContent();
+
+    myMap.setCompactionCopyListener(null);
+    put("key1", "after failure");
+    myMap.compact();
+    assertEquals(1, myMap.getCompactionsCount());
+    checkContent();
+
+    reopen();
+    checkContent();
+  }
+
+  private PersistentHashMap<String, String> createMap() throws IOException {
+    return new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+  }
+
+  private void reopen() throws IOException {
+    myMap.close();
+    myMap = createMap();
+  }
+
+  private void put(String key, String value) throws IOException {
+    myMap.put(key, value);
+    myExpected.put(key, value);
+  }
+
+  private void checkContent() throws IOException {
+    for (int i = 0; i < KEYS_COUNT + KEYS_COUNT / 10; i++) {
+      final String key = "key" + i;
+      assertEquals(key, myExpected.get(key), myMap.get(key));
+    }
+    assertEquals(myExpected.keySet(), new HashSet<String>(myMap.getAllKeysWithExistingMapping()));
+  }
+
+  private File getCompactedDataFile() {
+    return new File(myDir, "map" + PersistentHashMap.DATA_FILE_EXTENSION + ".new");
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class ImmutableTextTest extends TestCase {
+  // sizes of the texts to measure editing on, in megabytes; e.g. -Didea.immutable.text.benchmark.sizes=1,50,500
+  private static final String BENCHMARK_SIZES = System.getProperty("idea.immutable.text.benchmark.sizes", "1");
+
+  public void testRandomEditsMatchStringBuilder() {
+    final Random random = new Random(42);
+    ImmutableText text = ImmutableText.valueOf(randomText(random, 10000));
+    final StringBuilder expected = new StringBuilder(text.toString());
+    for (int i = 0; i < 10000; i++) {
+      final int start = random.nextInt(expected.length() + 1);
+      final int end = Math.min(expected.length(), start + random.nextInt(50));
+      switch (random.nextInt(3)) {
+        case 0:
+          final String inserted = randomText(random, random.nextInt(3000));
+          text = text.insert(start, inserted);
+          expected.insert(start, inserted);
+          break;
+        case 1:
+          text = text.delete(start, end);
+          expected.delete(start, end);
+          break;
+        default:
+          final String replacement = randomText(random, random.nextInt(20));
+          text = text.replace(start, end, replacement);
+          expected.replace(start, end, replacement);
+      }
+      assertEquals(expected.length(), text.length());
+      if (expected.length() > 0) {
+        final int index = random.nextInt(expected.length());
+        assertEquals(expected.charAt(index), text.charAt(index));
+      }
+    }
+    assertEquals(expected.toString(), text.toString());
+    assertEquals(expected.toString(), new String(text.getChars()));
+    final int start = expected.length() / 3;
+    assertEquals(expected.substring(start, 2 * start), text.subSequence(start, 2 * start).toString());
+  }
+
+  public void testSnapshotsAreNotAffectedByEdits() {
+    final ImmutableText original = ImmutableText.valueOf("abcdef");
+    final ImmutableText edited = original.insert(3, "XYZ").delete(0, 1);
+    assertEquals("abcdef", original.toString());
+    assertEquals("bcXYZdef", edited.toString());
+  }
+
+  public void testTreeStaysBalancedWhileTyping() {
+    ImmutableText text = ImmutableText.valueOf(randomText(new Random(1), 1 << 20));
+    for (int i = 0; i < 100000; i++) {
+      text = text.insert(text.length() / 2 + i % 100, "x");
+    }
+    assertTrue("depth " + text.getDepth(), text.getDepth() < 40);
+  }
+
+  public void testEditingPerformance() {
+    for (String size : BENCHMARK_SIZES.split(",")) {
+      final int length = Integer.parseInt(size.trim()) << 20;
+      final String initial = randomText(new Random(length), length);
+
+      long start = System.currentTimeMillis();
+      ImmutableText text = ImmutableText.valueOf(initial);
+      for (int i = 0; i < 1000; i++) {
+        text = text.insert(length / 2 + i, "x");
+      }
+      final long ropeTyping = System.currentTimeMillis() - start;
+
+      start = System.currentTimeMillis();
+      for (int i = 0; i < 1000; i++) {
+        final int offset = (int)((long)length * i / 1000);
+        text = text.replace(offset, offset + 10, "replacement");
+      }
+      final long ropeReplace = System.currentTimeMillis() - start;
+
+      start = System.currentTimeMillis();
+      final StringBuilder builder = new StringBuilder(initial);
+      for (int i = 0; i < 1000; i++) {
+        builder.insert(length / 2 + i, 'x');
+      }
+      final long arrayTyping = System.currentTimeMillis() - start;
+
+      start = System.currentTimeMillis();
+      for (int i = 0; i < 1000; i++) {
+        final int offset = (int)((long)length * i / 1000);
+        builder.replace(offset, offset + 10, "replacement");
+      }
+      final long arrayReplace = System.currentTimeMillis() - start;
+
+      System.out.println(size + "M text, 1000 edits: typing " + ropeTyping + "ms (char array " + arrayTyping + "ms), " +
+                         "bulk replace " + ropeReplace + "ms (char array " + arrayReplace + "ms)");
+      assertEquals(builder.length(), text.length());
+    }
+  }
+
+  private static String randomText(Random random, int length) {
+    final char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = random.nextInt(40) == 0 ? '\n' : (char)('a' + random.nextInt(26));
+    }
+    return new String(chars);
+  }
+}
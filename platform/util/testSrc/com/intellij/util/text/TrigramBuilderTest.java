@@ -0,0 +1,55 @@
+/*
+ * Copyright 2000-2011 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import com.intellij.openapi.util.text.TrigramBuilder;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+public class TrigramBuilderTest extends TestCase {
+  public void testPlainLiteral() {
+    assertTrigrams("foobar", "foobar");
+    assertTrigrams("foo\\.bar", "foo.bar");
+    assertTrigrams("\\Qa.b*c\\E", "a.b*c");
+  }
+
+  public void testRunsAreBrokenByClassesAndGroups() {
+    assertTrigrams("abc\\w+def[xyz]ghi(jklm)nop", "abc", "def", "ghi", "nop");
+    assertTrigrams("abc.*def", "abc", "def");
+  }
+
+  public void testOptionalCharactersAreDropped() {
+    assertTrigrams("abcd?efg", "abc", "efg");
+    assertTrigrams("abcd*efg", "abc", "efg");
+    assertTrigrams("abcd{0,2}efg", "abc", "efg");
+    assertTrigrams("abcd+efg", "abcd", "efg");
+  }
+
+  public void testNothingIsRequired() {
+    assertTrigrams("foo|bar");
+    assertTrigrams("(?x)foo bar");
+    assertTrigrams("foo\\1bar");
+    assertTrigrams("ab\\ncd");
+  }
+
+  private static void assertTrigrams(String regexp, String... requiredLiterals) {
+    final TIntHashSet expected = new TIntHashSet();
+    for (String literal : requiredLiterals) {
+      expected.addAll(TrigramBuilder.buildTrigram(literal).toArray());
+    }
+    assertEquals(expected, TrigramBuilder.buildTrigramForRegExp(regexp));
+  }
+}